@@ -16,6 +16,12 @@ dependencies {
 
 }
 
+// NameIndex compares file names with the incubating Vector API
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+}
+
 tasks.test {
     useJUnitPlatform()
+    jvmArgs("--add-modules", "jdk.incubator.vector")
 }
\ No newline at end of file
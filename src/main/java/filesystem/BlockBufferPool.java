@@ -0,0 +1,101 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of off-heap block frames for data block I/O.  Frames are direct
+ * <code>ByteBuffer</code>s of one block, carved out of larger slabs so the
+ * native memory is allocated in a few big pieces.
+ *
+ * Every thread keeps a small cache of frames and only goes to the shared
+ * pool when its cache is empty or full, so a thread that acquires and
+ * releases frames in a loop touches no shared state and allocates nothing
+ * once its cache is warm.
+ */
+public class BlockBufferPool {
+    // Frames a thread keeps for itself before handing frames back to the shared pool
+    private static final int THREAD_CACHE_SIZE = 16;
+    // Frames carved out of one direct allocation
+    private static final int FRAMES_PER_SLAB = 64;
+
+    private static final BlockBufferPool SHARED = new BlockBufferPool();
+
+    private final ConcurrentLinkedQueue<ByteBuffer> sharedFrames = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> threadFrames =
+            ThreadLocal.withInitial(() -> new ArrayDeque<>(THREAD_CACHE_SIZE));
+    private final AtomicInteger allocatedFrames = new AtomicInteger();
+
+    /**
+     * Returns the pool shared by all file systems in this process
+     */
+    public static BlockBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a frame from the pool
+     *
+     * @return A cleared direct buffer of <code>Disk.BLOCK_SIZE</code> bytes
+     */
+    public ByteBuffer acquire() {
+        ArrayDeque<ByteBuffer> cache = threadFrames.get();
+        ByteBuffer frame = cache.pollFirst();
+        if (frame == null) {
+            frame = sharedFrames.poll();
+        }
+        if (frame == null) {
+            frame = allocateSlab();
+        }
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Returns a frame to the pool.  The caller must not use it afterwards.
+     *
+     * @param frame A frame obtained from <code>acquire</code>
+     * @throws IllegalArgumentException If <code>frame</code> is not a block frame
+     */
+    public void release(ByteBuffer frame) throws IllegalArgumentException {
+        if (!frame.isDirect() || frame.capacity() != Disk.BLOCK_SIZE) {
+            throw new IllegalArgumentException("BlockBufferPool::release: not a block frame");
+        }
+
+        ArrayDeque<ByteBuffer> cache = threadFrames.get();
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.addFirst(frame);
+        } else {
+            sharedFrames.offer(frame);
+        }
+    }
+
+    /**
+     * Returns the number of frames allocated since the pool was created
+     */
+    public int getAllocatedFrames() {
+        return allocatedFrames.get();
+    }
+
+    /**
+     * Allocates a slab, keeps one frame for the caller and shares the rest
+     */
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE * FRAMES_PER_SLAB);
+        ByteBuffer first = null;
+        for (int i = 0; i < FRAMES_PER_SLAB; i++) {
+            slab.limit((i + 1) * Disk.BLOCK_SIZE).position(i * Disk.BLOCK_SIZE);
+            ByteBuffer frame = slab.slice();
+            if (first == null) {
+                first = frame;
+            } else {
+                sharedFrames.offer(frame);
+            }
+        }
+        allocatedFrames.addAndGet(FRAMES_PER_SLAB);
+        return first;
+    }
+}
@@ -0,0 +1,200 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps the fingerprint and reference count of every data block so that
+ * blocks with identical contents can be shared between files.  The table
+ * is persisted in the block table region of the disk, one entry per block,
+ * and the fingerprint index is rebuilt from it when the table is loaded.
+ *
+ * A block with a reference count of 0 is not tracked by the table and is
+ * owned by a single file.  Adding a reference to such a block starts
+ * tracking it with a count of 2: its owner plus the new reference.
+ * Snapshots use this to share blocks with the live file system.
+ */
+public class BlockReferenceTable {
+    private final Disk disk;
+    private final long[] fingerprints;
+    private final int[] refCounts;
+    private final Map<Long, Integer> blockForFingerprint;
+    private final MessageDigest digest;
+
+    /**
+     * Loads the block table from <code>disk</code>
+     *
+     * @param disk The disk holding the block table
+     * @throws IOException If the block table cannot be read
+     */
+    public BlockReferenceTable(Disk disk) throws IOException {
+        this.disk = disk;
+        this.fingerprints = new long[Disk.NUM_BLOCKS];
+        this.refCounts = new int[Disk.NUM_BLOCKS];
+        this.blockForFingerprint = new HashMap<>();
+
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("BlockReferenceTable: SHA-256 is not available", e);
+        }
+
+        ByteBuffer table = ByteBuffer.wrap(disk.readBlockTable());
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            fingerprints[i] = table.getLong();
+            refCounts[i] = table.getInt();
+            if (refCounts[i] > 0 && fingerprints[i] != 0) {
+                blockForFingerprint.put(fingerprints[i], i);
+            }
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a block of data
+     *
+     * @param blockData Contents of the block
+     * @return The first eight bytes of the SHA-256 digest of <code>blockData</code>
+     */
+    public long fingerprint(byte[] blockData) {
+        byte[] hash = digest.digest(blockData);
+        return ByteBuffer.wrap(hash).getLong();
+    }
+
+    /**
+     * Returns the block registered under <code>fingerprint</code>
+     *
+     * @param fingerprint Fingerprint of the block contents
+     * @return The shared block, or -1 if no block has that fingerprint
+     */
+    public int lookup(long fingerprint) {
+        Integer block = blockForFingerprint.get(fingerprint);
+        return block == null ? -1 : block;
+    }
+
+    /**
+     * Registers a newly written block so later writes of the same contents can share it
+     *
+     * @param whichBlock The block holding the contents
+     * @param fingerprint Fingerprint of the block contents
+     * @throws IOException If the block table entry cannot be written
+     */
+    public void register(int whichBlock, long fingerprint) throws IOException {
+        fingerprints[whichBlock] = fingerprint;
+        refCounts[whichBlock] = 1;
+        blockForFingerprint.put(fingerprint, whichBlock);
+        disk.writeBlockTableEntry(whichBlock, fingerprint, 1);
+    }
+
+    /**
+     * Adds a reference to a shared block
+     *
+     * @param whichBlock The block gaining a reference
+     * @throws IOException If the block table entry cannot be written
+     */
+    public void addReference(int whichBlock) throws IOException {
+        refCounts[whichBlock] = Math.max(refCounts[whichBlock], 1) + 1;
+        disk.writeBlockTableEntry(whichBlock, fingerprints[whichBlock], refCounts[whichBlock]);
+    }
+
+    /**
+     * Adds one reference per entry of <code>blocks</code> and persists the
+     * whole table with a single write
+     *
+     * @param blocks The blocks gaining a reference; a block may appear more than once
+     * @throws IOException If the block table cannot be written
+     */
+    public void addReferences(int[] blocks) throws IOException {
+        for (int whichBlock : blocks) {
+            refCounts[whichBlock] = Math.max(refCounts[whichBlock], 1) + 1;
+        }
+
+        ByteBuffer table = ByteBuffer.allocate(Disk.BYTES_IN_BLOCK_TABLE);
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            table.putLong(fingerprints[i]);
+            table.putInt(refCounts[i]);
+        }
+        disk.writeBlockTable(table.array());
+    }
+
+    /**
+     * Drops a reference to a block
+     *
+     * @param whichBlock The block losing a reference
+     * @return True if that was the last reference and the block should be freed
+     * @throws IOException If the block table entry cannot be written
+     */
+    public boolean release(int whichBlock) throws IOException {
+        if (refCounts[whichBlock] > 1) {
+            refCounts[whichBlock]--;
+            disk.writeBlockTableEntry(whichBlock, fingerprints[whichBlock], refCounts[whichBlock]);
+            return false;
+        }
+
+        if (refCounts[whichBlock] == 1) {
+            Integer registered = blockForFingerprint.get(fingerprints[whichBlock]);
+            if (registered != null && registered == whichBlock) {
+                blockForFingerprint.remove(fingerprints[whichBlock]);
+            }
+            fingerprints[whichBlock] = 0;
+            refCounts[whichBlock] = 0;
+            disk.writeBlockTableEntry(whichBlock, 0, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of references to a block
+     *
+     * @param whichBlock The block
+     * @return The reference count, 0 if the block is not tracked
+     */
+    public int getRefCount(int whichBlock) {
+        return refCounts[whichBlock];
+    }
+
+    /**
+     * Moves the entry of a block whose contents were copied to another block
+     *
+     * @param fromBlock The block the contents were copied from
+     * @param toBlock The block now holding the contents
+     * @throws IOException If the block table entries cannot be written
+     */
+    public void move(int fromBlock, int toBlock) throws IOException {
+        if (refCounts[fromBlock] == 0) {
+            return;
+        }
+
+        fingerprints[toBlock] = fingerprints[fromBlock];
+        refCounts[toBlock] = refCounts[fromBlock];
+        if (refCounts[toBlock] > 0 && fingerprints[toBlock] != 0) {
+            blockForFingerprint.put(fingerprints[toBlock], toBlock);
+        }
+        disk.writeBlockTableEntry(toBlock, fingerprints[toBlock], refCounts[toBlock]);
+
+        fingerprints[fromBlock] = 0;
+        refCounts[fromBlock] = 0;
+        disk.writeBlockTableEntry(fromBlock, 0, 0);
+    }
+
+    /**
+     * Overwrites the reference count of a tracked block
+     *
+     * @param whichBlock The block
+     * @param refCount The corrected number of references, 0 to stop tracking the block
+     * @throws IOException If the block table entry cannot be written
+     */
+    public void setRefCount(int whichBlock, int refCount) throws IOException {
+        if (refCount == 0) {
+            refCounts[whichBlock] = 1;
+            release(whichBlock);
+            return;
+        }
+        refCounts[whichBlock] = refCount;
+        disk.writeBlockTableEntry(whichBlock, fingerprints[whichBlock], refCount);
+    }
+}
@@ -0,0 +1,139 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+
+/**
+ * Measures what verifying checksums adds to the block read path.  A scratch
+ * disk is filled with random blocks, which are then read back repeatedly
+ * with each <code>ChecksumMode</code>, both through
+ * <code>RaidArray.readBlocks</code> in file sized batches, the path every
+ * <code>FileSystem.read</code> takes, and into a caller supplied buffer; the
+ * cost per block and the overhead compared to not verifying at all are
+ * printed.
+ *
+ * Usage: <code>ChecksumBenchmark [blocks] [rounds] [runs]</code>
+ */
+public class ChecksumBenchmark {
+    private static final int DEFAULT_BLOCKS = 4096;
+    private static final int DEFAULT_ROUNDS = 20;
+    private static final int DEFAULT_RUNS = 21;
+    private static final int BATCH_BLOCKS = INode.NUM_BLOCK_POINTERS;
+
+    public static void main(String[] args) throws IOException {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BLOCKS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+
+        File directory = Files.createTempDirectory("checksum-benchmark").toFile();
+        File image = new File(directory, Disk.memberDiskName(0));
+        Disk disk = new Disk(image.getPath());
+        disk.format();
+        RaidArray raid = new RaidArray(new Disk[] {disk}, RaidLevel.RAID0);
+
+        Random random = new Random(42);
+        byte[] blockData = new byte[Disk.BLOCK_SIZE];
+        for (int b = 0; b < blocks; b++) {
+            random.nextBytes(blockData);
+            disk.writeDataBlock(blockData, b);
+        }
+        int[][] batches = new int[(blocks + BATCH_BLOCKS - 1) / BATCH_BLOCKS][];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new int[Math.min(BATCH_BLOCKS, blocks - i * BATCH_BLOCKS)];
+            for (int j = 0; j < batches[i].length; j++) {
+                batches[i][j] = i * BATCH_BLOCKS + j;
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE);
+        ChecksumMode[] modes = {ChecksumMode.OFF, ChecksumMode.ALWAYS, ChecksumMode.FIRST_READ};
+
+        // Warm up every path before timing anything
+        for (ChecksumMode mode : modes) {
+            disk.setChecksumMode(mode);
+            readBatches(raid, batches, rounds);
+            readAll(disk, blocks, rounds, frame);
+        }
+
+        // Modes take turns, starting with a different one each run, so drift in the machine's
+        // speed affects all of them alike; the best run of each is kept to leave scheduling
+        // noise out of the comparison
+        double[] batchNanos = new double[modes.length];
+        double[] frameNanos = new double[modes.length];
+        Arrays.fill(batchNanos, Double.MAX_VALUE);
+        Arrays.fill(frameNanos, Double.MAX_VALUE);
+        for (int run = 0; run < runs; run++) {
+            for (int i = 0; i < modes.length; i++) {
+                int m = (run + i) % modes.length;
+                disk.setChecksumMode(modes[m]);
+                long start = System.nanoTime();
+                readBatches(raid, batches, rounds);
+                batchNanos[m] = Math.min(batchNanos[m], (System.nanoTime() - start) / (double) blocks / rounds);
+
+                start = System.nanoTime();
+                readAll(disk, blocks, rounds, frame);
+                frameNanos[m] = Math.min(frameNanos[m], (System.nanoTime() - start) / (double) blocks / rounds);
+            }
+        }
+
+        System.out.printf("Read %d blocks %d times per run, best of %d runs%n", blocks, rounds, runs);
+        print("readBlocks, " + BATCH_BLOCKS + " blocks per call", modes, batchNanos);
+        print("readDataBlock into a buffer", modes, frameNanos);
+
+        // The checksum alone, which is all that verification adds to a read
+        CRC32C crc = new CRC32C();
+        long checksums = (long) blocks * rounds;
+        double crcNanos = Double.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            for (long i = 0; i < checksums; i++) {
+                frame.clear();
+                crc.reset();
+                crc.update(frame);
+            }
+            crcNanos = Math.min(crcNanos, (System.nanoTime() - start) / (double) checksums);
+        }
+        System.out.printf("CRC32C     %8.1f ns/block  (%.2f%% of an unverified readBlocks)%n", crcNanos,
+                100 * crcNanos / batchNanos[0]);
+
+        raid.shutdown();
+        disk.close();
+        image.delete();
+        directory.delete();
+    }
+
+    private static void print(String path, ChecksumMode[] modes, double[] nanosPerBlock) {
+        System.out.println(path);
+        for (int m = 0; m < modes.length; m++) {
+            System.out.printf("%-10s %8.1f ns/block  %+6.2f%%%n", modes[m], nanosPerBlock[m],
+                    100 * (nanosPerBlock[m] - nanosPerBlock[0]) / nanosPerBlock[0]);
+        }
+    }
+
+    private static void readBatches(RaidArray raid, int[][] batches, int rounds) throws IOException {
+        int checked = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int[] batch : batches) {
+                checked += raid.readBlocks(batch)[0][0];
+            }
+        }
+        if (checked == Integer.MIN_VALUE) {
+            System.out.println(checked);
+        }
+    }
+
+    private static void readAll(Disk disk, int blocks, int rounds, ByteBuffer frame) throws IOException {
+        for (int round = 0; round < rounds; round++) {
+            for (int b = 0; b < blocks; b++) {
+                frame.clear();
+                disk.readDataBlock(b, frame);
+            }
+        }
+    }
+}
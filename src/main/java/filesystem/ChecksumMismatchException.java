@@ -0,0 +1,27 @@
+package filesystem;
+
+import java.io.IOException;
+
+
+/**
+ * Thrown when the contents of a data block do not match the checksum that
+ * was stored when the block was written
+ */
+public class ChecksumMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int whichBlock;
+
+    public ChecksumMismatchException(String diskFileName, int whichBlock, int expected, int actual) {
+        super(String.format("Disk::verify: block %d of %s has checksum %08x, expected %08x",
+                whichBlock, diskFileName, actual, expected));
+        this.whichBlock = whichBlock;
+    }
+
+    /**
+     * Returns the position of the corrupt block on its disk
+     */
+    public int getBlock() {
+        return whichBlock;
+    }
+}
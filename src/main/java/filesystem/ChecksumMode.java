@@ -0,0 +1,23 @@
+package filesystem;
+
+/**
+ * When a <code>Disk</code> verifies the checksum of a data block it reads
+ */
+public enum ChecksumMode {
+    /**
+     * Every read from the device is verified
+     */
+    ALWAYS,
+
+    /**
+     * Only the first read of a block after it was written or the disk was
+     * opened is verified; later reads are assumed to be served from the
+     * operating system's page cache
+     */
+    FIRST_READ,
+
+    /**
+     * Checksums are kept up to date on write but never verified on read
+     */
+    OFF
+}
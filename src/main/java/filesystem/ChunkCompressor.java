@@ -0,0 +1,127 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Compression layer used by <code>FileSystem</code> for files that have
+ * compression turned on.  The contents of a file are split into chunks of
+ * <code>CHUNK_SIZE</code> bytes which are deflated independently and packed
+ * back to back.  The end offset of every compressed chunk is recorded in
+ * the chunk index of the inode, so a chunk can be located without
+ * inflating the ones before it.
+ */
+public class ChunkCompressor {
+    public static final int CHUNK_SIZE = 8 * Disk.BLOCK_SIZE;
+    public static final int MAX_FILE_SIZE = INode.NUM_CHUNK_ENTRIES * CHUNK_SIZE;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private byte[] compressBuffer;
+    private byte[] decompressBuffer;
+
+    public ChunkCompressor() {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        inflater = new Inflater();
+        compressBuffer = new byte[CHUNK_SIZE];
+        decompressBuffer = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Compresses <code>data</code> chunk by chunk and records the end of
+     * each compressed chunk in <code>inode</code>
+     *
+     * @param data Contents of the file
+     * @param inode Inode whose chunk index is filled in
+     * @return The packed compressed chunks, or null if <code>data</code> does not
+     *         get smaller or is too large to be indexed
+     */
+    public byte[] compress(byte[] data, INode inode) {
+        if (data.length > MAX_FILE_SIZE) {
+            return null;
+        }
+
+        int stored = 0;
+        int numChunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int[] chunkEnds = new int[numChunks];
+
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            int start = chunk * CHUNK_SIZE;
+            int length = Math.min(data.length - start, CHUNK_SIZE);
+
+            deflater.reset();
+            deflater.setInput(data, start, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (stored >= data.length) {
+                    // Compressed form is no smaller than the original
+                    return null;
+                }
+                if (stored == compressBuffer.length) {
+                    compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+                }
+                stored += deflater.deflate(compressBuffer, stored, compressBuffer.length - stored);
+            }
+            chunkEnds[chunk] = stored;
+        }
+
+        if (stored >= data.length) {
+            return null;
+        }
+
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            inode.setChunkEnd(chunk, chunkEnds[chunk]);
+        }
+        return Arrays.copyOf(compressBuffer, stored);
+    }
+
+    /**
+     * Inflates the compressed chunks of a file into a buffer that is reused
+     * between calls.  The buffer is only valid until the next call.
+     *
+     * @param stored The packed compressed chunks read from disk
+     * @param inode Inode holding the size and chunk index of the file
+     * @return A buffer whose first <code>inode.getSize()</code> bytes are the file contents
+     * @throws IOException If a chunk cannot be inflated
+     */
+    public byte[] decompress(byte[] stored, INode inode) throws IOException {
+        int size = inode.getSize();
+        if (decompressBuffer.length < size) {
+            decompressBuffer = new byte[size];
+        }
+
+        int numChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int chunkStart = 0;
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            int chunkEnd = inode.getChunkEnd(chunk);
+            int offset = chunk * CHUNK_SIZE;
+            int length = Math.min(size - offset, CHUNK_SIZE);
+
+            inflater.reset();
+            inflater.setInput(stored, chunkStart, chunkEnd - chunkStart);
+            try {
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    int n = inflater.inflate(decompressBuffer, offset + inflated, length - inflated);
+                    if (n == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (inflated != length) {
+                    throw new IOException("ChunkCompressor::decompress: chunk " + chunk +
+                            " inflated to " + inflated + " bytes instead of " + length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("ChunkCompressor::decompress: chunk " + chunk + " is corrupt", e);
+            }
+            chunkStart = chunkEnd;
+        }
+
+        return decompressBuffer;
+    }
+}
@@ -0,0 +1,282 @@
+package filesystem;
+
+import java.io.IOException;
+
+
+/**
+ * Relocates the blocks of fragmented files into contiguous runs while the
+ * file system stays in use.  Work is done one file at a time, either by
+ * calling <code>step</code> directly or from a background thread that is
+ * limited to a number of relocated blocks per second.
+ *
+ * A file is moved by copying its blocks into a free run, preferably one
+ * starting on a stripe boundary, and then writing its inode once with the
+ * new block pointers.  The old blocks are only freed after the inode has
+ * been switched, so a reader sees either the old or the new layout.
+ * Files that share blocks with other files, or whose blocks are being read
+ * or written through the I/O scheduler, are left where they are.
+ */
+public class Defragmenter {
+    private static final long IDLE_SLEEP_MILLIS = 1000;
+
+    private final FileSystem fileSystem;
+    private final int blocksPerSecond;
+    private int nextINode;
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Creates a defragmenter for <code>fileSystem</code>
+     *
+     * @param fileSystem The file system to defragment
+     * @param blocksPerSecond Maximum number of blocks the background thread relocates per second
+     * @throws IllegalArgumentException If <code>blocksPerSecond</code> is not positive
+     */
+    public Defragmenter(FileSystem fileSystem, int blocksPerSecond) throws IllegalArgumentException {
+        if (blocksPerSecond <= 0) {
+            throw new IllegalArgumentException("Defragmenter: blocks per second must be positive, got " +
+                    blocksPerSecond);
+        }
+        this.fileSystem = fileSystem;
+        this.blocksPerSecond = blocksPerSecond;
+        this.nextINode = 0;
+    }
+
+    /**
+     * Measures how fragmented the files and the free space are
+     *
+     * @return The fragmentation metrics
+     * @throws IOException If the metadata cannot be read
+     */
+    public FragmentationReport measure() throws IOException {
+        synchronized (fileSystem) {
+            fileSystem.sync();
+            int files = 0;
+            int fragmentedFiles = 0;
+            int fileExtents = 0;
+
+            for (int i = 0; i < Disk.NUM_INODES; i++) {
+                int[] blocks = blocksOf(fileSystem.diskDevice.readInode(i));
+                if (blocks.length == 0) {
+                    continue;
+                }
+                int extents = countExtents(blocks);
+                files++;
+                fileExtents += extents;
+                if (extents > 1) {
+                    fragmentedFiles++;
+                }
+            }
+
+            byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+            int freeBlocks = 0;
+            int freeExtents = 0;
+            int largestFreeRun = 0;
+            int run = 0;
+            for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+                if (isFree(freeList, i)) {
+                    freeBlocks++;
+                    if (run == 0) {
+                        freeExtents++;
+                    }
+                    run++;
+                    largestFreeRun = Math.max(largestFreeRun, run);
+                } else {
+                    run = 0;
+                }
+            }
+
+            return new FragmentationReport(files, fragmentedFiles, fileExtents,
+                    freeBlocks, freeExtents, largestFreeRun);
+        }
+    }
+
+    /**
+     * Relocates the next fragmented file into a contiguous run
+     *
+     * @return The number of blocks moved, 0 if no file could be improved
+     * @throws IOException If there is an issue reading or writing the disk data.
+     */
+    public int step() throws IOException {
+        synchronized (fileSystem) {
+            // Inodes still in the segment log would be read stale from the inode table
+            fileSystem.sync();
+            for (int scanned = 0; scanned < Disk.NUM_INODES; scanned++) {
+                int inodeNumber = nextINode;
+                nextINode = (nextINode + 1) % Disk.NUM_INODES;
+
+                INode inode = fileSystem.diskDevice.readInode(inodeNumber);
+                int[] blocks = blocksOf(inode);
+                // Blocks of a sparse file are not at consecutive positions, so they cannot be moved into one run
+                if (countExtents(blocks) <= 1 || inode.isSparse() || isShared(blocks) ||
+                        fileSystem.hasIoInFlight(inodeNumber)) {
+                    continue;
+                }
+
+                if (relocate(inodeNumber, inode, blocks)) {
+                    return blocks.length;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Starts relocating files on a background thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "defragmenter");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the background thread after the file it is working on
+     *
+     * @throws InterruptedException If interrupted while waiting for the thread to finish
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        worker.join();
+        worker = null;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                int moved = step();
+                long pause = moved == 0 ? IDLE_SLEEP_MILLIS : (moved * 1000L) / blocksPerSecond;
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Defragmenter: stopping after error: " + e.getMessage());
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * Copies the blocks of a file into a free run and switches its inode over
+     */
+    private boolean relocate(int inodeNumber, INode inode, int[] blocks) throws IOException {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+        freeBlockList.setFreeBlockList(freeList);
+
+        int start = findFreeRun(freeList, blocks.length, fileSystem.raid.getStripeWidth());
+        if (start == -1) {
+            return false;
+        }
+
+        int[] target = new int[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            target[i] = start + i;
+            freeBlockList.allocateBlock(target[i]);
+        }
+        fileSystem.diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+
+        byte[][] contents = fileSystem.raid.readBlocks(blocks);
+        fileSystem.raid.writeBlocks(target, contents);
+        for (int i = 0; i < blocks.length; i++) {
+            fileSystem.blockTable.move(blocks[i], target[i]);
+            inode.setBlockPointer(i, target[i]);
+        }
+
+        // Single inode write switches the file to its new blocks
+        fileSystem.diskDevice.writeInode(inode, inodeNumber);
+        fileSystem.refreshOpenINode(inodeNumber, inode);
+
+        freeBlockList.setFreeBlockList(fileSystem.diskDevice.readFreeBlockList());
+        for (int block : blocks) {
+            freeBlockList.deallocateBlock(block);
+        }
+        fileSystem.diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+
+        System.out.printf("Defragmenter moved %d blocks of inode %d to blocks %d-%d%n",
+                blocks.length, inodeNumber, start, start + blocks.length - 1);
+        return true;
+    }
+
+    /**
+     * Finds <code>length</code> consecutive free blocks, preferring a run that
+     * starts on a stripe boundary
+     *
+     * @return The first block of the run, or -1 if there is no such run
+     */
+    private static int findFreeRun(byte[] freeList, int length, int stripeWidth) {
+        int unaligned = -1;
+        int run = 0;
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            run = isFree(freeList, i) ? run + 1 : 0;
+            if (run >= length) {
+                int start = i - length + 1;
+                if (start % stripeWidth == 0) {
+                    return start;
+                }
+                if (unaligned == -1) {
+                    unaligned = start;
+                }
+            }
+        }
+        return unaligned;
+    }
+
+    private boolean isShared(int[] blocks) {
+        for (int block : blocks) {
+            if (fileSystem.blockTable.getRefCount(block) > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the data blocks of a file, not counting a packed tail or holes
+     */
+    private static int[] blocksOf(INode inode) {
+        if (inode.getFileName() == null || inode.isInline()) {
+            return new int[0];
+        }
+
+        int count = 0;
+        for (int i = 0; i < inode.getBlockSpan(); i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                count++;
+            }
+        }
+        int[] blocks = new int[count];
+        int filled = 0;
+        for (int i = 0; i < inode.getBlockSpan(); i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                blocks[filled++] = inode.getBlockPointer(i);
+            }
+        }
+        return blocks;
+    }
+
+    private static int countExtents(int[] blocks) {
+        if (blocks.length == 0) {
+            return 0;
+        }
+        int extents = 1;
+        for (int i = 1; i < blocks.length; i++) {
+            if (blocks[i] != blocks[i - 1] + 1) {
+                extents++;
+            }
+        }
+        return extents;
+    }
+
+    private static boolean isFree(byte[] freeList, int block) {
+        return (freeList[block / 8] & (1 << (block % 8))) == 0;
+    }
+}
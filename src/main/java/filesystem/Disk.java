@@ -1,7 +1,17 @@
 package filesystem;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 
 public class Disk {
@@ -14,17 +24,98 @@ public class Disk {
 
   public static final int INODE_SIZE = INode.FILE_NAME_SIZE +
                                        INode.SIZE_FIELD_SIZE +
-                                       (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE);
+                                       (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE) +
+                                       INode.FLAGS_FIELD_SIZE +
+                                       INode.TAIL_FIELD_SIZE +
+                                       INode.CHUNK_INDEX_SIZE +
+                                       INode.GENERATION_FIELD_SIZE +
+                                       INode.OWNER_FIELD_SIZE;
+
+  /**
+   * Number of bytes of an inode slot actually written: name, then size,
+   * block pointers, flags, tail block, tail offset, chunk index, generation and owner as integers
+   */
+  static final int INODE_RECORD_SIZE = INode.FILE_NAME_SIZE +
+                                               Integer.BYTES * (1 + INode.NUM_BLOCK_POINTERS + 3 +
+                                                                INode.NUM_CHUNK_ENTRIES + 2);
+
+  /**
+   * Each data block has an entry of fingerprint(long) + reference count(integer)
+   * in the block table, which follows the data blocks
+   */
+  public static final int BLOCK_TABLE_ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+  public static final int BYTES_IN_BLOCK_TABLE = NUM_BLOCKS * BLOCK_TABLE_ENTRY_SIZE;
+  private static final long BLOCK_TABLE_OFFSET = BYTES_IN_FREE_SPACE_LIST + ((long)INODE_SIZE * NUM_INODES) +
+                                                 ((long)BLOCK_SIZE * NUM_BLOCKS);
+
+  /**
+   * Snapshot slots follow the block table.  Each slot holds the snapshot
+   * name, its creation time(long) and a copy of the whole inode region
+   */
+  public static final int NUM_SNAPSHOTS = 4;
+  private static final int SNAPSHOT_HEADER_SIZE = INode.FILE_NAME_SIZE + Long.BYTES;
+  private static final long SNAPSHOT_SLOT_SIZE = SNAPSHOT_HEADER_SIZE + ((long)INODE_SIZE * NUM_INODES);
+  private static final long SNAPSHOT_REGION_OFFSET = BLOCK_TABLE_OFFSET + BYTES_IN_BLOCK_TABLE;
+
+  /**
+   * The superblock follows the snapshot slots: magic, version, state, RAID
+   * level, number of disks, mount count, free block count and file count
+   * (int each), then the inode allocation bitmap and a bitmask of the
+   * failed member disks (int)
+   */
+  private static final int SUPERBLOCK_SIZE = (9 * Integer.BYTES) + (NUM_INODES / 8);
+  private static final long SUPERBLOCK_OFFSET = SNAPSHOT_REGION_OFFSET + (SNAPSHOT_SLOT_SIZE * NUM_SNAPSHOTS);
+
+  /**
+   * The checksum table follows the superblock: the CRC32C(int) of every
+   * data block, updated whenever the block is written
+   */
+  public static final int BYTES_IN_CHECKSUM_TABLE = NUM_BLOCKS * Integer.BYTES;
+  private static final long CHECKSUM_TABLE_OFFSET = SUPERBLOCK_OFFSET + SUPERBLOCK_SIZE;
+
+  /**
+   * Number of blocks read with a single call while scrubbing
+   */
+  private static final int SCRUB_BATCH_BLOCKS = 64;
+
+  private static final long DATA_REGION_OFFSET = BYTES_IN_FREE_SPACE_LIST + ((long)INODE_SIZE * NUM_INODES);
 
   private static String RAW_DISK_MODE = "rw";
 
   private String diskFileName;
   private RandomAccessFile rawDisk;
 
+  // Checksum state, guarded by this disk's lock
+  private final CRC32C crc = new CRC32C();
+  private final int[] checksums = new int[NUM_BLOCKS];
+  private final BitSet verified = new BitSet(NUM_BLOCKS);
+  private final byte[] checksumEntry = new byte[Integer.BYTES];
+  private ChecksumMode checksumMode = ChecksumMode.ALWAYS;
+
   public Disk() {
     this.diskFileName = RAW_DISK_NAME;
   }
 
+  /***
+   * Creates a disk backed by the raw file <code>diskFileName</code>
+   *
+   * @param diskFileName Name of the raw file holding the disk image
+   */
+  public Disk(String diskFileName) {
+    this.diskFileName = diskFileName;
+  }
+
+  /***
+   * Returns the name of the raw file used by member disk <code>whichMember</code>
+   * of a RAID array
+   *
+   * @param whichMember Position of the disk in the array
+   * @return Name of the raw file backing the member disk
+   */
+  public static String memberDiskName(int whichMember) {
+    return RAW_DISK_NAME.replace(".dsk", whichMember + ".dsk");
+  }
+
   /***
    * Initialize a new disk
    *
@@ -44,24 +135,158 @@ public class Disk {
     rawDisk.write(freeListBytes);
 
     /**
-     * write empty inodes
+     * write empty inodes, each at the start of its slot
      */
     for(int i= 0; i < NUM_INODES; i++) {
-      rawDisk.write(emptyINode.getFileNameBytes());
-      rawDisk.write(emptyINode.getSizeBytes());
-
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        byte[] blockPtr = emptyINode.getBlockPointerBytes(blkPtrIndex);
-        rawDisk.write(blockPtr);
-      }
+      writeInode(emptyINode, i);
     }
 
     /**
      * write empty disk data blocks
      */
+    rawDisk.seek((long)BYTES_IN_FREE_SPACE_LIST + ((long)INODE_SIZE * NUM_INODES));
     for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
       rawDisk.write(emptyDiskBlock);
     }
+
+    /**
+     * write an empty block table
+     */
+    rawDisk.write(new byte[BYTES_IN_BLOCK_TABLE]);
+
+    /**
+     * mark every snapshot slot unused
+     */
+    for (int slot= 0; slot < NUM_SNAPSHOTS; slot++) {
+      clearSnapshot(slot);
+    }
+
+    /**
+     * write a blank superblock; the file system fills it in
+     */
+    rawDisk.seek(SUPERBLOCK_OFFSET);
+    rawDisk.write(new byte[SUPERBLOCK_SIZE]);
+
+    /**
+     * every data block starts out holding zeros
+     */
+    crc.reset();
+    crc.update(emptyDiskBlock);
+    ByteBuffer checksumTable = ByteBuffer.allocate(BYTES_IN_CHECKSUM_TABLE);
+    for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
+      checksums[blkCount] = (int) crc.getValue();
+      checksumTable.putInt(checksums[blkCount]);
+    }
+    rawDisk.write(checksumTable.array());
+    verified.clear();
+  }
+
+  /***
+   * Opens an existing raw file without formatting it
+   *
+   * @throws IOException If the raw file does not exist or cannot be opened
+   */
+  public void open() throws IOException {
+    if (!new File(diskFileName).isFile()) {
+      throw new IOException("Disk::open: " + diskFileName + " does not exist");
+    }
+    rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+
+    if (rawDisk.length() < CHECKSUM_TABLE_OFFSET + BYTES_IN_CHECKSUM_TABLE) {
+      rawDisk.close();
+      throw new IOException("Disk::open: " + diskFileName + " has no checksum table; it was formatted " +
+                            "by an older version");
+    }
+    byte[] checksumTable = new byte[BYTES_IN_CHECKSUM_TABLE];
+    rawDisk.seek(CHECKSUM_TABLE_OFFSET);
+    rawDisk.readFully(checksumTable);
+    ByteBuffer.wrap(checksumTable).asIntBuffer().get(checksums);
+    verified.clear();
+  }
+
+  /***
+   * Returns true if the raw file exists
+   */
+  public boolean exists() {
+    return new File(diskFileName).isFile();
+  }
+
+  /***
+   * Forces everything written so far out to the storage device
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void sync() throws IOException {
+    rawDisk.getChannel().force(true);
+  }
+
+  /***
+   * Syncs and closes the raw file
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException {
+    if (rawDisk == null) {
+      // Never opened, e.g. a member image that was missing at mount
+      return;
+    }
+    sync();
+    rawDisk.close();
+  }
+
+  /***
+   * Reads the superblock
+   *
+   * @return The superblock; check <code>isValid</code> before trusting it
+   * @throws IOException If an I/O error occurs
+   */
+  public Superblock readSuperblock() throws IOException {
+    byte[] record = new byte[SUPERBLOCK_SIZE];
+    if (rawDisk.length() >= SUPERBLOCK_OFFSET + SUPERBLOCK_SIZE) {
+      rawDisk.seek(SUPERBLOCK_OFFSET);
+      rawDisk.readFully(record);
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(record);
+    Superblock superblock = new Superblock(RaidLevel.RAID0, 0);
+    superblock.setMagic(buffer.getInt());
+    superblock.setVersion(buffer.getInt());
+    superblock.setState(buffer.getInt());
+    int level = buffer.getInt();
+    superblock.setRaidLevel(level >= 0 && level < RaidLevel.values().length ? RaidLevel.values()[level] : null);
+    superblock.setNumDisks(buffer.getInt());
+    superblock.setMountCount(buffer.getInt());
+    superblock.setFreeBlockCount(buffer.getInt());
+    buffer.getInt(); // file count, derived from the bitmap
+    byte[] bitmap = new byte[NUM_INODES / 8];
+    buffer.get(bitmap);
+    superblock.setInodeBitmap(bitmap);
+    superblock.setFailedMembers(buffer.getInt());
+
+    return superblock;
+  }
+
+  /***
+   * Writes the superblock with a single write
+   *
+   * @param superblock The superblock to store
+   * @throws IOException If an I/O error occurs
+   */
+  public void writeSuperblock(Superblock superblock) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+    buffer.putInt(superblock.getMagic());
+    buffer.putInt(superblock.getVersion());
+    buffer.putInt(superblock.getState());
+    buffer.putInt(superblock.getRaidLevel().ordinal());
+    buffer.putInt(superblock.getNumDisks());
+    buffer.putInt(superblock.getMountCount());
+    buffer.putInt(superblock.getFreeBlockCount());
+    buffer.putInt(superblock.getFileCount());
+    buffer.put(superblock.getInodeBitmap());
+    buffer.putInt(superblock.getFailedMembers());
+
+    rawDisk.seek(SUPERBLOCK_OFFSET);
+    rawDisk.write(buffer.array());
   }
 
   /***
@@ -103,6 +328,132 @@ public class Disk {
   }
 
 
+  /***
+   * Retrieve the block table
+   *
+   * @return Returns an array of bytes holding the fingerprint and reference
+   *         count of every data block
+   * @throws IOException If an I/O error occurs
+   */
+  public byte[] readBlockTable() throws IOException {
+    byte[] blockTable = new byte[BYTES_IN_BLOCK_TABLE];
+
+    rawDisk.seek(BLOCK_TABLE_OFFSET);
+    rawDisk.readFully(blockTable);
+
+    return blockTable;
+  }
+
+
+  /***
+   * Writes the block table entry of a single data block
+   *
+   * @param whichBlock The data block the entry belongs to
+   * @param fingerprint Fingerprint of the block contents
+   * @param refCount Number of references to the block
+   * @throws IOException If an I/O error occurs
+   */
+  public void writeBlockTableEntry(int whichBlock, long fingerprint, int refCount) throws IOException {
+    rawDisk.seek(BLOCK_TABLE_OFFSET + ((long)BLOCK_TABLE_ENTRY_SIZE * whichBlock));
+    rawDisk.writeLong(fingerprint);
+    rawDisk.writeInt(refCount);
+  }
+
+
+  /***
+   * Writes the whole block table
+   *
+   * @param blockTable Array of bytes holding the fingerprint and reference
+   *                   count of every data block
+   * @throws IOException If an I/O error occurs
+   */
+  public void writeBlockTable(byte[] blockTable) throws IOException {
+    if (blockTable.length != BYTES_IN_BLOCK_TABLE) {
+      throw new IllegalArgumentException("Disk::writeBlockTable:  " +
+                                       "is "  +  blockTable.length +
+                                       " bytes long instead of "  +
+                                       BYTES_IN_BLOCK_TABLE +
+                                       " bytes long");
+    }
+
+    rawDisk.seek(BLOCK_TABLE_OFFSET);
+    rawDisk.write(blockTable);
+  }
+
+
+  /***
+   * Stores a snapshot of the inode region in snapshot slot <code>whichSlot</code>
+   *
+   * @param whichSlot The snapshot slot to write
+   * @param name Name of the snapshot
+   * @param createdAt Creation time of the snapshot in milliseconds since the epoch
+   * @param inodeRegion Copy of the inode region, as returned by <code>readInodeRegion</code>
+   * @throws IOException If an I/O error occurs
+   */
+  public void writeSnapshot(int whichSlot, String name, long createdAt, byte[] inodeRegion) throws IOException {
+    INode nameHolder = new INode();
+    nameHolder.setFileName(name);
+
+    ByteBuffer slot = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + inodeRegion.length);
+    slot.put(nameHolder.getFileNameBytes());
+    slot.putLong(createdAt);
+    slot.put(inodeRegion);
+
+    rawDisk.seek(SNAPSHOT_REGION_OFFSET + (SNAPSHOT_SLOT_SIZE * whichSlot));
+    rawDisk.write(slot.array());
+  }
+
+
+  /***
+   * Returns the name of the snapshot in slot <code>whichSlot</code>
+   *
+   * @param whichSlot The snapshot slot to read
+   * @return The snapshot name, or null if the slot is unused
+   * @throws IOException If an I/O error occurs
+   */
+  public String readSnapshotName(int whichSlot) throws IOException {
+    byte[] nameBytes = new byte[INode.FILE_NAME_SIZE];
+
+    rawDisk.seek(SNAPSHOT_REGION_OFFSET + (SNAPSHOT_SLOT_SIZE * whichSlot));
+    rawDisk.readFully(nameBytes);
+
+    int length = 0;
+    while (length < nameBytes.length && nameBytes[length] != 0) {
+      length++;
+    }
+    return length == 0 ? null : new String(nameBytes, 0, length);
+  }
+
+
+  /***
+   * Reads the copy of the inode region held by snapshot slot <code>whichSlot</code>
+   *
+   * @param whichSlot The snapshot slot to read
+   * @return The inode region as it was when the snapshot was taken
+   * @throws IOException If an I/O error occurs
+   */
+  public byte[] readSnapshotInodeRegion(int whichSlot) throws IOException {
+    byte[] region = new byte[INODE_SIZE * NUM_INODES];
+
+    rawDisk.seek(SNAPSHOT_REGION_OFFSET + (SNAPSHOT_SLOT_SIZE * whichSlot) + SNAPSHOT_HEADER_SIZE);
+    rawDisk.readFully(region);
+
+    return region;
+  }
+
+
+  /***
+   * Marks snapshot slot <code>whichSlot</code> unused
+   *
+   * @param whichSlot The snapshot slot to clear
+   * @throws IOException If an I/O error occurs
+   */
+  public void clearSnapshot(int whichSlot) throws IOException {
+    rawDisk.seek(SNAPSHOT_REGION_OFFSET + (SNAPSHOT_SLOT_SIZE * whichSlot));
+    rawDisk.write(new byte[SNAPSHOT_HEADER_SIZE]);
+  }
+
+
   /***
    * Write an <code>INode</code> instance to the appropriate position
    *
@@ -111,26 +462,53 @@ public class Disk {
    * @throws IOException If an I/O error occurs
    */
   public void writeInode(INode inode, int whichInode) throws IOException {
+      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+
+      /**
+       * Seek to correct position in the raw file
+       */
+      rawDisk.seek((long)cursor);
+      rawDisk.write(inodeRecord(inode));
+  }
+
+  /***
+   * Encodes an <code>INode</code> as the record stored in its slot
+   *
+   * @param inode The inode to encode
+   * @return <code>INODE_RECORD_SIZE</code> bytes: name, size, block pointers, flags, tail,
+   *         chunk index, generation and owner
+   */
+  public static byte[] inodeRecord(INode inode) {
       byte[] name = inode.getFileNameBytes();
       byte[] size = inode.getSizeBytes();
+      byte[] flags = inode.getFlagsBytes();
+      byte[] tail = inode.getTailBytes();
+      byte[] chunkIndex = inode.getChunkIndexBytes();
+      byte[] generation = inode.getGenerationBytes();
+      byte[] owner = inode.getOwnerBytes();
       byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
 
       for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
         blockPointers[i] = inode.getBlockPointerBytes(i);
       }
 
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
-
       /**
-       * Seek to correct position in the raw file
+       * Assemble the whole record first so it reaches the raw file in a
+       * single write; readers never see a mix of old and new block pointers
        */
-      rawDisk.seek((long)cursor);
-
-      rawDisk.write(name);
-      rawDisk.write(size);
+      ByteBuffer record = ByteBuffer.allocate(INODE_RECORD_SIZE);
+      record.put(name);
+      record.put(size);
       for (int j= 0; j < INode.NUM_BLOCK_POINTERS; j++) {
-        rawDisk.write(blockPointers[j]);
+        record.put(blockPointers[j]);
       }
+      record.put(flags);
+      record.put(tail);
+      record.put(chunkIndex);
+      record.put(generation);
+      record.put(owner);
+
+      return record.array();
   }
 
   /***
@@ -142,15 +520,66 @@ public class Disk {
    *    *                the random access file has been closed, or if some other I/O error occurs
    */
   public INode readInode(int whichInode) throws IOException {
-      INode inode = new INode();
       int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+      byte[] record = new byte[INODE_RECORD_SIZE];
 
       rawDisk.seek((long)cursor);
+      rawDisk.readFully(record);
+
+      return parseInode(ByteBuffer.wrap(record));
+  }
+
+  /***
+   * Read every <code>INode</code> in the file system with a single read of the inode region
+   *
+   * @return The inodes, indexed by inode number
+   * @throws IOException If an I/O error occurs
+   */
+  public INode[] readInodeTable() throws IOException {
+      return parseInodeTable(readInodeRegion());
+  }
+
+  /***
+   * Read the raw bytes of the whole inode region
+   *
+   * @return The inode region as stored on disk
+   * @throws IOException If an I/O error occurs
+   */
+  public byte[] readInodeRegion() throws IOException {
+      byte[] region = new byte[INODE_SIZE * NUM_INODES];
+
+      rawDisk.seek((long)BYTES_IN_FREE_SPACE_LIST);
+      rawDisk.readFully(region);
+
+      return region;
+  }
+
+  /***
+   * Decodes every <code>INode</code> in a copy of the inode region
+   *
+   * @param region The inode region, as returned by <code>readInodeRegion</code>
+   * @return The inodes, indexed by inode number
+   */
+  public static INode[] parseInodeTable(byte[] region) {
+      INode[] inodes = new INode[NUM_INODES];
+      ByteBuffer buffer = ByteBuffer.wrap(region);
+      for (int i= 0; i < NUM_INODES; i++) {
+        buffer.position(INODE_SIZE * i);
+        inodes[i] = parseInode(buffer);
+      }
+      return inodes;
+  }
+
+  /***
+   * Decodes an <code>INode</code> record starting at the current position of <code>record</code>
+   */
+  static INode parseInode(ByteBuffer record) {
+      INode inode = new INode();
 
       byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
-      int nameReadLen = rawDisk.read(fileNameBytes);
+      record.get(fileNameBytes);
 
-      int fileSizeField = rawDisk.readInt();
+      int fileSizeField = record.getInt();
 
       /**
        * read each block pointer
@@ -158,9 +587,21 @@ public class Disk {
       int[] blockPtrValues = new int[INode.NUM_BLOCK_POINTERS];
 
       for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPtrValues[i]= rawDisk.readInt();
+        blockPtrValues[i]= record.getInt();
+      }
+
+      int flagsField = record.getInt();
+      int tailBlockField = record.getInt();
+      int tailOffsetField = record.getInt();
+
+      int[] chunkEndValues = new int[INode.NUM_CHUNK_ENTRIES];
+      for (int i= 0; i < INode.NUM_CHUNK_ENTRIES; i++) {
+        chunkEndValues[i]= record.getInt();
       }
 
+      int generationField = record.getInt();
+      int ownerField = record.getInt();
+
       String fileName = new String(fileNameBytes);
 
       /**
@@ -182,24 +623,61 @@ public class Disk {
       for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
         inode.setBlockPointer(blkPtrIndex, blockPtrValues[blkPtrIndex]);
       }
-      
+      inode.setFlags(flagsField);
+      inode.setTail(tailBlockField, tailOffsetField);
+      for (int i= 0; i < INode.NUM_CHUNK_ENTRIES; i++) {
+        inode.setChunkEnd(i, chunkEndValues[i]);
+      }
+      inode.setGeneration(generationField);
+      inode.setOwner(ownerField);
+
       return inode;
   }
 
+  /***
+   * Chooses when reads verify the checksum of a data block
+   *
+   * @param checksumMode The verification policy; checksums are kept up to date on write in every mode
+   */
+  public synchronized void setChecksumMode(ChecksumMode checksumMode) {
+    this.checksumMode = checksumMode;
+  }
+
+  public synchronized ChecksumMode getChecksumMode() {
+    return checksumMode;
+  }
+
+  /***
+   * Returns the stored checksum of a data block
+   *
+   * @param whichBlock The position of the data block
+   * @return The CRC32C of the block as it was last written
+   */
+  public synchronized int getChecksum(int whichBlock) {
+    return checksums[whichBlock];
+  }
+
   /***
    * Reads a block of data from appropriate location in raw file
    *
    * @param whichBlock The position of the data block to be read
    * @return A block of data at position <code>whichBlock</code>
+   * @throws ChecksumMismatchException If the block does not match its stored checksum
    * @throws IOException If an I/O error occurs
    */
-  public byte[] readDataBlock(int whichBlock) throws IOException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE * whichBlock);
+  public synchronized byte[] readDataBlock(int whichBlock) throws IOException {
+    long cursor = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock);
     byte[] blockData = new byte[BLOCK_SIZE];
 
     rawDisk.seek(cursor);
     rawDisk.read(blockData);
 
+    if (needsVerification(whichBlock)) {
+      crc.reset();
+      crc.update(blockData, 0, BLOCK_SIZE);
+      verify(whichBlock, (int) crc.getValue());
+    }
+
     return blockData;
   }
 
@@ -213,8 +691,8 @@ public class Disk {
    * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
    *                                  to the length of a data block size
    */
-  public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE *whichBlock);
+  public synchronized void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    long cursor = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock);
 
     if (blockData.length != BLOCK_SIZE) {
        throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
@@ -224,6 +702,283 @@ public class Disk {
 
     rawDisk.seek(cursor);
     rawDisk.write(blockData);
+
+    crc.reset();
+    crc.update(blockData, 0, BLOCK_SIZE);
+    storeChecksum(whichBlock, (int) crc.getValue());
+  }
+
+  /***
+   * Reads a data block into a caller supplied buffer, typically a direct
+   * frame from <code>BlockBufferPool</code>, without allocating
+   *
+   * @param whichBlock The position of the data block to be read
+   * @param into Buffer receiving the data at its position; at most a block,
+   *             or <code>into.remaining()</code> bytes if fewer, is read
+   * @throws ChecksumMismatchException If the block does not match its stored checksum
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void readDataBlock(int whichBlock, ByteBuffer into) throws IOException {
+    if (into.remaining() < BLOCK_SIZE && needsVerification(whichBlock)) {
+      // The checksum covers the whole block, so read all of it into a frame first
+      BlockBufferPool pool = BlockBufferPool.shared();
+      ByteBuffer frame = pool.acquire();
+      try {
+        readAndVerify(whichBlock, frame);
+        frame.flip().limit(into.remaining());
+        into.put(frame);
+      } finally {
+        pool.release(frame);
+      }
+      return;
+    }
+
+    int limit = into.limit();
+    into.limit(into.position() + Math.min(into.remaining(), BLOCK_SIZE));
+    try {
+      if (needsVerification(whichBlock)) {
+        readAndVerify(whichBlock, into);
+      } else {
+        readRaw(whichBlock, into);
+      }
+    } finally {
+      into.limit(limit);
+    }
+  }
+
+  /***
+   * Writes a data block from a caller supplied buffer without allocating
+   *
+   * @param from Buffer holding exactly one block between its position and limit
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>from</code> does not hold exactly one block
+   */
+  public synchronized void writeDataBlock(ByteBuffer from, int whichBlock) throws IOException, IllegalArgumentException {
+    if (from.remaining() != BLOCK_SIZE) {
+       throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
+                     "storing block of size " + from.remaining()  +
+                     "when it should be of size "  + BLOCK_SIZE);
+    }
+
+    int start = from.position();
+    crc.reset();
+    crc.update(from);
+    from.position(start);
+
+    FileChannel channel = rawDisk.getChannel();
+    long position = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock);
+    while (from.hasRemaining()) {
+      position += channel.write(from, position);
+    }
+    storeChecksum(whichBlock, (int) crc.getValue());
+  }
+
+  /***
+   * Sends bytes of the data region straight from the raw file to a channel
+   * without copying them through the Java heap.  The blocks in the range
+   * are checked first the way a read would check them: every block in
+   * <code>ALWAYS</code> mode, those not verified since they were written in
+   * <code>FIRST_READ</code> mode
+   *
+   * @param whichBlock Block the transfer starts in
+   * @param offset Offset of the first byte within <code>whichBlock</code>
+   * @param count Number of bytes to send, which may run into the following blocks
+   * @param target Channel receiving the bytes
+   * @throws ChecksumMismatchException If a block in the range does not match its stored checksum
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void transferDataTo(int whichBlock, int offset, long count, WritableByteChannel target)
+          throws IOException {
+    if (checksumMode != ChecksumMode.OFF) {
+      int lastBlock = whichBlock + (int) ((offset + count - 1) / BLOCK_SIZE);
+      int first = checksumMode == ChecksumMode.ALWAYS ? whichBlock : verified.nextClearBit(whichBlock);
+      if (first <= lastBlock) {
+        BlockBufferPool pool = BlockBufferPool.shared();
+        ByteBuffer frame = pool.acquire();
+        try {
+          for (int b = first; b <= lastBlock; b++) {
+            if (needsVerification(b)) {
+              frame.clear();
+              readAndVerify(b, frame);
+            }
+          }
+        } finally {
+          pool.release(frame);
+        }
+      }
+    }
+
+    FileChannel channel = rawDisk.getChannel();
+    long position = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock) + offset;
+
+    while (count > 0) {
+      long sent = channel.transferTo(position, count, target);
+      position += sent;
+      count -= sent;
+    }
+  }
+
+  /***
+   * Fills data blocks straight from a channel without copying the bytes
+   * through the Java heap.  The checksums of the filled blocks are then
+   * computed by reading them back through a pooled off-heap frame.
+   * <code>transferFrom</code> reports the end of a channel and a channel
+   * with nothing to read yet both as 0 bytes, so only blocking channels
+   * are accepted
+   *
+   * @param source Blocking channel supplying the bytes
+   * @param whichBlock First block to fill
+   * @param count Maximum number of bytes to take from <code>source</code>
+   * @return The number of bytes stored, less than <code>count</code> only
+   *         when <code>source</code> reached its end
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized long transferDataFrom(ReadableByteChannel source, int whichBlock, long count)
+          throws IOException {
+    if (source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+      throw new IllegalArgumentException("Disk::transferDataFrom: source channel is non-blocking");
+    }
+    FileChannel channel = rawDisk.getChannel();
+    long position = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock);
+    long stored = 0;
+
+    while (stored < count) {
+      long received = channel.transferFrom(source, position + stored, count - stored);
+      if (received == 0) {
+        break;
+      }
+      stored += received;
+    }
+
+    BlockBufferPool pool = BlockBufferPool.shared();
+    ByteBuffer frame = pool.acquire();
+    try {
+      for (int b = whichBlock; b < whichBlock + (int) ((stored + BLOCK_SIZE - 1) / BLOCK_SIZE); b++) {
+        frame.clear();
+        readRaw(b, frame);
+        frame.flip();
+        crc.reset();
+        crc.update(frame);
+        storeChecksum(b, (int) crc.getValue());
+      }
+    } finally {
+      pool.release(frame);
+    }
+    return stored;
+  }
+
+  /***
+   * Verifies every data block against its stored checksum, reading the data
+   * region in large batches.  The disk is locked one batch at a time, so
+   * reads and writes carry on while a scrub runs
+   *
+   * @return The positions of the blocks that do not match their checksums
+   * @throws IOException If an I/O error occurs
+   */
+  public List<Integer> scrub() throws IOException {
+    List<Integer> corrupt = new ArrayList<>();
+    ByteBuffer batch = ByteBuffer.allocateDirect(BLOCK_SIZE * SCRUB_BATCH_BLOCKS);
+
+    for (int first = 0; first < NUM_BLOCKS; first += SCRUB_BATCH_BLOCKS) {
+      synchronized (this) {
+        FileChannel channel = rawDisk.getChannel();
+        long position = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * first);
+        batch.clear();
+        while (batch.hasRemaining()) {
+          int read = channel.read(batch, position);
+          if (read == -1) {
+            while (batch.hasRemaining()) {
+              batch.put((byte) 0);
+            }
+            break;
+          }
+          position += read;
+        }
+
+        for (int i = 0; i < SCRUB_BATCH_BLOCKS; i++) {
+          batch.limit((i + 1) * BLOCK_SIZE).position(i * BLOCK_SIZE);
+          crc.reset();
+          crc.update(batch);
+          if ((int) crc.getValue() == checksums[first + i]) {
+            verified.set(first + i);
+          } else {
+            corrupt.add(first + i);
+            verified.clear(first + i);
+          }
+        }
+      }
+    }
+    return corrupt;
+  }
+
+  private boolean needsVerification(int whichBlock) {
+    switch (checksumMode) {
+      case ALWAYS:
+        return true;
+      case FIRST_READ:
+        return !verified.get(whichBlock);
+      default:
+        return false;
+    }
+  }
+
+  private void verify(int whichBlock, int actual) throws ChecksumMismatchException {
+    if (actual != checksums[whichBlock]) {
+      verified.clear(whichBlock);
+      throw new ChecksumMismatchException(diskFileName, whichBlock, checksums[whichBlock], actual);
+    }
+    verified.set(whichBlock);
+  }
+
+  /***
+   * Reads exactly one block into <code>into</code> and verifies it; on a
+   * mismatch the position of <code>into</code> is left where it was
+   */
+  private void readAndVerify(int whichBlock, ByteBuffer into) throws IOException {
+    int start = into.position();
+    readRaw(whichBlock, into);
+    int end = into.position();
+    into.position(start);
+    crc.reset();
+    crc.update(into);
+    verify(whichBlock, (int) crc.getValue());
+    into.position(end);
+  }
+
+  /***
+   * Fills the remaining space of <code>into</code>, at most a block, from the data region
+   */
+  private void readRaw(int whichBlock, ByteBuffer into) throws IOException {
+    FileChannel channel = rawDisk.getChannel();
+    long position = DATA_REGION_OFFSET + ((long)BLOCK_SIZE * whichBlock);
+
+    while (into.hasRemaining()) {
+      int read = channel.read(into, position);
+      if (read == -1) {
+        // Past the end of the raw file, which reads as zeros
+        while (into.hasRemaining()) {
+          into.put((byte) 0);
+        }
+        break;
+      }
+      position += read;
+    }
+  }
+
+  /***
+   * Records the checksum of a block that was just written, in memory and in the checksum table
+   */
+  private void storeChecksum(int whichBlock, int checksum) throws IOException {
+    checksums[whichBlock] = checksum;
+    verified.clear(whichBlock);
+
+    checksumEntry[0] = (byte) (checksum >>> 24);
+    checksumEntry[1] = (byte) (checksum >>> 16);
+    checksumEntry[2] = (byte) (checksum >>> 8);
+    checksumEntry[3] = (byte) checksum;
+    rawDisk.seek(CHECKSUM_TABLE_OFFSET + ((long)Integer.BYTES * whichBlock));
+    rawDisk.write(checksumEntry);
   }
 
   /***
@@ -1,9 +1,23 @@
 package filesystem;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FileSystem {
-    // Array of disks for RAID 0
+    // Array of member disks for RAID 0 or RAID 5
     public Disk[] disks;
     public Disk diskDevice;
     public int iNodeNumber;
@@ -11,23 +25,270 @@ public class FileSystem {
     public INode iNodeForFile;
     public int numDisks;
 
+    // Layout of a shared tail block: tail count, bytes used, then the packed tails
+    static final int TAIL_COUNT_OFFSET = 0;
+    static final int TAIL_USED_OFFSET = 4;
+    static final int TAIL_HEADER_SIZE = 8;
+    private static final int MAX_TAIL_SIZE = Disk.BLOCK_SIZE - TAIL_HEADER_SIZE;
+
+    // Tail block that new tails are packed into, or -1 if none has been started
+    private int currentTailBlock = -1;
+
+    // Compresses and inflates the contents of files that have compression turned on
+    private final ChunkCompressor compressor = new ChunkCompressor();
+
+    // Fingerprints and reference counts of shared blocks
+    public BlockReferenceTable blockTable;
+    private boolean deduplication = false;
+
+    // Off-heap frames for reads and writes of partial blocks
+    private final BlockBufferPool bufferPool = BlockBufferPool.shared();
+
+    // Lays the data blocks out across the member disks
+    public RaidArray raid;
+
+    // Clean/dirty state and allocation summary of the image
+    public Superblock superblock;
+
+    // Tenants by id, the tenant each client thread acts for, and the optional fair I/O scheduler
+    private final Map<Integer, Tenant> tenants = new HashMap<>();
+    private final ThreadLocal<Tenant> currentTenant = new ThreadLocal<>();
+    private IoScheduler scheduler;
+
+    // Segment log and its cleaner while log-structured writes are on, null otherwise
+    private SegmentLog log;
+    private SegmentCleaner cleaner;
+
+    // Receives the operations of the string API while a workload is being recorded, null otherwise
+    private volatile WorkloadTrace recorder;
+
+    // Packed file names by inode number, built from the inode table on first use
+    private NameIndex names;
+
+    // Files whose blocks are read or written outside the lock: inode number -> readers, or -1 for a writer
+    private final Map<Integer, Integer> ioInFlight = new HashMap<>();
+
         //Constructor to initialize the file system with the specified number of disks
         //Set up the RAID 0 disks
         //Format both the RAID disks and the main disk device.
     public FileSystem(int numDisks) throws IOException {
+        this(numDisks, RaidLevel.RAID0);
+    }
+
+        //Constructor to initialize the file system with the specified number of disks and RAID level
+        //Each member disk gets its own raw file; the main disk device holds the metadata.
+    public FileSystem(int numDisks, RaidLevel raidLevel) throws IOException {
+        this(".", numDisks, raidLevel);
+    }
+
+        //Formats a new image, made of the main disk device and one raw file per member, in directory
+    private FileSystem(String directory, int numDisks, RaidLevel raidLevel) throws IOException {
         this.numDisks = numDisks;
 
-       // Initialize the disks array for RAD 0
+       // Initialize the member disks of the array
         this.disks = new Disk[numDisks];
         for (int i = 0; i < numDisks; i++) {
-            disks[i] = new Disk();
+            disks[i] = new Disk(new File(directory, Disk.memberDiskName(i)).getPath());
             // Formats each disk
             disks[i].format();
         }
+        raid = new RaidArray(disks, raidLevel);
 
-        diskDevice = new Disk();
+        diskDevice = new Disk(new File(directory, Disk.RAW_DISK_NAME).getPath());
         // This Format the main disk device
         diskDevice.format();
+        blockTable = new BlockReferenceTable(diskDevice);
+
+        superblock = new Superblock(raidLevel, numDisks);
+        raid.setFailureListener(this::recordFailedMember);
+        markMounted();
+    }
+
+        //Opens an existing image whose superblock has already been read; recovers it if it is dirty
+    private FileSystem(String directory, Disk diskDevice, Superblock superblock) throws IOException {
+        this.numDisks = superblock.getNumDisks();
+        this.disks = new Disk[numDisks];
+        this.diskDevice = diskDevice;
+        this.superblock = superblock;
+
+        // Members that failed earlier hold stale data and stay out of the array; missing images join them
+        List<Integer> lost = new ArrayList<>();
+        for (int i = 0; i < numDisks; i++) {
+            disks[i] = new Disk(new File(directory, Disk.memberDiskName(i)).getPath());
+            if (superblock.isMemberFailed(i) || !disks[i].exists()) {
+                lost.add(i);
+            } else {
+                disks[i].open();
+            }
+        }
+        raid = new RaidArray(disks, superblock.getRaidLevel());
+        raid.setFailureListener(this::recordFailedMember);
+        // A layout with redundancy runs degraded without them
+        for (int member : lost) {
+            try {
+                raid.failDisk(member);
+            } catch (IOException e) {
+                for (Disk disk : disks) {
+                    disk.close();
+                }
+                diskDevice.close();
+                raid.shutdown();
+                throw new IOException("FileSystem::mount: member " + Disk.memberDiskName(member) + " is " +
+                        (superblock.isMemberFailed(member) ? "failed" : "missing") + " and " +
+                        superblock.getRaidLevel() + " cannot do without it", e);
+            }
+        }
+
+        blockTable = new BlockReferenceTable(diskDevice);
+
+        boolean wasClean = superblock.isClean();
+        markMounted();
+        if (!wasClean) {
+            recover();
+        }
+    }
+
+    /**
+     * Mounts the image stored in <code>path</code>.  Nothing is formatted or
+     * scanned: the layout and the allocation summary come from the
+     * superblock.  An image that was not unmounted cleanly is checked and
+     * repaired before it is used.  A missing member image counts as a failed
+     * disk, which layouts with parity or mirrors can run without, and so
+     * does a member recorded as failed in the superblock: its image stopped
+     * receiving writes and is never read again.
+     *
+     * @param path Directory holding the image files
+     * @return The mounted file system
+     * @throws IOException If there is no formatted image in <code>path</code>, or a member image
+     *                     is missing or failed that the layout cannot do without
+     */
+    public static FileSystem mount(String path) throws IOException {
+        Disk diskDevice = new Disk(new File(path, Disk.RAW_DISK_NAME).getPath());
+        diskDevice.open();
+
+        Superblock superblock = diskDevice.readSuperblock();
+        if (!superblock.isValid() || superblock.getRaidLevel() == null) {
+            diskDevice.close();
+            throw new IOException("FileSystem::mount: " + path + " does not hold a formatted image");
+        }
+
+        System.out.println("Mounting " + path + " (" + superblock.getRaidLevel() + " over " +
+                superblock.getNumDisks() + " disks, " + (superblock.isClean() ? "clean" : "dirty") + ")");
+        return new FileSystem(path, diskDevice, superblock);
+    }
+
+    /**
+     * Mounts the image stored in <code>path</code>, formatting a new one
+     * there if it does not hold an image yet
+     *
+     * @param path Directory holding the image files
+     * @param numDisks Number of member disks for a new image
+     * @param raidLevel Layout of a new image
+     * @return The mounted file system
+     * @throws IOException If the existing image has a different layout or cannot be mounted
+     */
+    public static FileSystem mount(String path, int numDisks, RaidLevel raidLevel) throws IOException {
+        if (!new File(path, Disk.RAW_DISK_NAME).isFile()) {
+            new File(path).mkdirs();
+            System.out.println("Formatting a new image in " + path);
+            return new FileSystem(path, numDisks, raidLevel);
+        }
+
+        FileSystem fileSystem = mount(path);
+        if (fileSystem.numDisks != numDisks || fileSystem.raid.getLevel() != raidLevel) {
+            fileSystem.unmount();
+            throw new IOException("FileSystem::mount: " + path + " holds a " + fileSystem.raid.getLevel() +
+                    " image over " + fileSystem.numDisks + " disks");
+        }
+        return fileSystem;
+    }
+
+    /**
+     * Flushes everything to the storage devices, stores the allocation
+     * summary, marks the image clean and closes it.  The file system cannot
+     * be used afterwards.
+     *
+     * @throws IOException If the image cannot be flushed
+     */
+    public void unmount() throws IOException {
+        // The cleaner takes the lock for each step, so it is stopped before the lock is held
+        stopCleaner();
+        synchronized (this) {
+            awaitIdle();
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            superblock.setFreeBlockCount(countFreeBlocks(diskDevice.readFreeBlockList()));
+            for (Disk disk : disks) {
+                disk.close();
+            }
+            diskDevice.sync();
+
+            // Only mark the image clean once all of its data is on the devices
+            superblock.setState(Superblock.STATE_CLEAN);
+            diskDevice.writeSuperblock(superblock);
+            diskDevice.close();
+            raid.shutdown();
+        }
+
+        System.out.println("Unmounted cleanly after mount " + superblock.getMountCount() + ".");
+    }
+
+    /**
+     * Marks the image dirty until it is unmounted, so a crash is detected
+     * at the next mount
+     */
+    private void markMounted() throws IOException {
+        superblock.setState(Superblock.STATE_DIRTY);
+        superblock.setMountCount(superblock.getMountCount() + 1);
+        diskDevice.writeSuperblock(superblock);
+        diskDevice.sync();
+    }
+
+    /**
+     * Repairs an image that was not unmounted cleanly and rebuilds the
+     * allocation summary, which cannot be trusted either
+     */
+    private void recover() throws IOException {
+        System.out.println("Image was not unmounted cleanly, checking it...");
+        int replayed = SegmentLog.replay(raid, diskDevice);
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " inodes from the segment log");
+        }
+        new FileSystemChecker(this).check(true);
+
+        INode[] inodes = diskDevice.readInodeTable();
+        for (int i = 0; i < Disk.NUM_INODES; i++) {
+            superblock.setInodeInUse(i, inodes[i].getFileName() != null);
+        }
+        superblock.setFreeBlockCount(countFreeBlocks(diskDevice.readFreeBlockList()));
+        diskDevice.writeSuperblock(superblock);
+    }
+
+    /**
+     * Stores a member failure in the superblock right away, so the stale
+     * member is kept out of the array after a crash as well
+     */
+    private void recordFailedMember(int whichMember) throws IOException {
+        synchronized (superblock) {
+            if (!superblock.isMemberFailed(whichMember)) {
+                superblock.setMemberFailed(whichMember, true);
+                diskDevice.writeSuperblock(superblock);
+                diskDevice.sync();
+            }
+        }
+    }
+
+    private static int countFreeBlocks(byte[] freeList) {
+        int allocated = 0;
+        for (byte bits : freeList) {
+            allocated += Integer.bitCount(bits & 0xFF);
+        }
+        return Disk.NUM_BLOCKS - allocated;
     }
 
     public FileSystem() throws IOException {
@@ -40,33 +301,42 @@ public class FileSystem {
      * @param fileName - name of the file to create
      * @throws IOException
      */
-    public int create(String fileName) throws IOException {
+    public synchronized int create(String fileName) throws IOException {
         if (fileName == null || fileName.trim().isEmpty()) {
             throw new IllegalArgumentException("File name cannot be null or empty");
         }
 
-        boolean isCreated = false;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isCreated; i++) {
-            INode tmpINode = diskDevice.readInode(i);
-            String name = tmpINode.getFileName();
+        long startNanos = System.nanoTime();
+        int freeINode = -1;
 
-            if (name != null && name.trim().equals(fileName)) {
-                throw new IOException("FileSystem::create: " + fileName + " already exists");
-            } else if (tmpINode.getFileName() == null) {
-                this.iNodeForFile = new INode();
-                this.iNodeForFile.setFileName(fileName);
-                this.iNodeNumber = i;
-                this.fileDescriptor = i;
-                isCreated = true;
-                diskDevice.writeInode(this.iNodeForFile, i);
+        if (names().find(fileName) >= 0) {
+            throw new IOException("FileSystem::create: " + fileName + " already exists");
+        }
+        for (int i = 0; i < Disk.NUM_INODES && freeINode == -1; i++) {
+            // The allocation summary says which slots are empty, so none need be read
+            if (!superblock.isInodeInUse(i)) {
+                freeINode = i;
             }
         }
 
-        if (!isCreated) {
+        if (freeINode == -1) {
             throw new IOException("FileSystem::create: Unable to create file");
         }
 
+        Tenant tenant = currentTenant.get();
+        if (tenant != null) {
+            tenant.chargeInode();
+        }
+
+        this.iNodeForFile = new INode();
+        this.iNodeForFile.setFileName(fileName);
+        this.iNodeForFile.setOwner(tenant == null ? Tenant.NO_TENANT : tenant.getId());
+        this.iNodeNumber = freeINode;
+        this.fileDescriptor = freeINode;
+        storeINode(this.iNodeForFile, freeINode);
+        superblock.setInodeInUse(freeINode, true);
+
+        record(WorkloadOp.Kind.CREATE, fileName, 0, startNanos);
         return fileDescriptor;
     }
 
@@ -76,44 +346,38 @@ public class FileSystem {
      * @param fileName
      * @throws IOException
      */
-    public void delete(String fileName) throws IOException {
+    public synchronized void delete(String fileName) throws IOException {
+        long startNanos = System.nanoTime();
         INode tmpINode = null;
-        boolean isFound = false;
-        int inodeNumForDeletion = -1;
 
         System.out.println("Attempting to delete file: " + fileName);
         /**
-         * Find the non-null named inode that matches,
+         * Find the inode whose name matches,
          * If you find it, set its file name to null
          * to indicate it is unused
          */
-        for (int i = 0; i < Disk.NUM_INODES; i++) {
-            tmpINode = diskDevice.readInode(i);
-
-            if (tmpINode == null) {
-                continue;
-            }
-
-            String fName = tmpINode.getFileName();
-
-            if (fName != null && fName.trim().compareTo(fileName.trim()) == 0) {
-                isFound = true;
-                inodeNumForDeletion = i;
-                break;
-            }
-        }
+        int inodeNumForDeletion = names().find(fileName);
+        boolean isFound = inodeNumForDeletion >= 0;
 
         /***
          * If file found, go ahead and deallocate its
          * blocks and null out the filename.
          */
         if (isFound) {
+            awaitIo(inodeNumForDeletion);
             deallocateBlocksForFile(inodeNumForDeletion);
+            tmpINode = loadINode(inodeNumForDeletion);
             tmpINode.setFileName(null);
-            diskDevice.writeInode(tmpINode, inodeNumForDeletion);
+            storeINode(tmpINode, inodeNumForDeletion);
+            superblock.setInodeInUse(inodeNumForDeletion, false);
+            Tenant owner = tenants.get(tmpINode.getOwner());
+            if (owner != null) {
+                owner.releaseInode();
+            }
             this.iNodeForFile = null;
             this.fileDescriptor = -1;
             this.iNodeNumber = -1;
+            record(WorkloadOp.Kind.DELETE, fileName, 0, startNanos);
         } else {
             throw new IOException("FileSystem::delete: " + fileName + " does not exist");
         }
@@ -125,43 +389,57 @@ public class FileSystem {
      * @return
      * @throws IOException
      */
-    public int open(String fileName) throws IOException {
+    public synchronized int open(String fileName) throws IOException {
         if (fileName == null || fileName.trim().isEmpty()) {
             throw new IllegalArgumentException("File name cannot be null or empty");
         }
 
-        boolean isFound = false;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            INode tmpINode = diskDevice.readInode(i);
-            String fName = tmpINode.getFileName();
-
-            if (fName != null && fName.trim().equals(fileName.trim())) {
-                isFound = true;
-                this.iNodeForFile = tmpINode;
-                this.fileDescriptor = i;
-                this.iNodeNumber = i;
-            }
-        }
+        long startNanos = System.nanoTime();
 
-        if (!isFound) {
+        int i = names().find(fileName);
+        if (i < 0) {
             throw new IOException("FileSystem::open: File not found");
         }
+        this.iNodeForFile = loadINode(i);
+        this.fileDescriptor = i;
+        this.iNodeNumber = i;
 
+        record(WorkloadOp.Kind.OPEN, fileName, 0, startNanos);
         return this.fileDescriptor;
     }
+
+    /**
+     * Lists the files whose names match <code>pattern</code>: either a plain
+     * name, or a glob where <code>*</code> matches any run of characters and
+     * <code>?</code> matches one character.  Only the packed name index is
+     * scanned, no inode is read.
+     *
+     * @param pattern A file name or glob
+     * @return The matching names, in inode order
+     * @throws IOException If the inode table cannot be read to build the index
+     */
+    public synchronized List<String> listFiles(String pattern) throws IOException {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException("FileSystem::listFiles: pattern cannot be null or empty");
+        }
+        List<String> matches = new ArrayList<>();
+        for (int slot : names().list(pattern)) {
+            matches.add(names.getName(slot));
+        }
+        return matches;
+    }
     /***
      * Closes the file
      *
      * @throws IOException If disk is not accessible for writing
      */
-    public void close(int fileDescriptor) throws IOException {
+    public synchronized void close(int fileDescriptor) throws IOException {
         if (fileDescriptor != this.iNodeNumber) {
             throw new IOException("FileSystem::close: Invalid file descriptor"+fileDescriptor + " does not match file descriptor " +
                     "of open file");
         }
 
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
+        storeINode(this.iNodeForFile, this.iNodeNumber);
         this.iNodeForFile = null;
         this.fileDescriptor = -1;
         this.iNodeNumber = -1;
@@ -181,194 +459,2058 @@ public class FileSystem {
             throw new IOException("Invalid file descriptor");
         }
 
-        INode inode = diskDevice.readInode(fileDescriptor);
-        if (inode == null || inode.getFileName() == null) {
-            throw new IOException("FileSystem::read: File not found");
-        }
-
-        int fileSize = inode.getSize();
-        StringBuilder data = new StringBuilder();
-        System.out.println("Reading file of size " + fileSize + " bytes...");
+        long startNanos = System.nanoTime();
+        INode inode;
+        synchronized (this) {
+            inode = loadINode(fileDescriptor);
+            if (inode == null || inode.getFileName() == null) {
+                throw new IOException("FileSystem::read: File not found");
+            }
+            System.out.println("Reading file of size " + inode.getSize() + " bytes...");
+            flushLogFor(inode);
 
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockPointer = inode.getBlockPointer(i);
-            if (blockPointer == -1) break;
+            if (scheduler == null || inode.isInline()) {
+                String contents = decodeContents(inode, readStoredBytes(inode, false));
+                record(WorkloadOp.Kind.READ, inode.getFileName(), inode.getSize(), startNanos);
+                return contents;
+            }
+            beginIo(fileDescriptor, false);
+        }
+        // The blocks are read through the scheduler without the lock; writers of this file wait until we are done.
 
-            byte[] blockData = diskDevice.readDataBlock(blockPointer);
-            int bytesToRead = Math.min(fileSize - (i * Disk.BLOCK_SIZE), Disk.BLOCK_SIZE);
-            data.append(new String(blockData, 0, bytesToRead));
+        try {
+            byte[] stored = readStoredBytes(inode, true);
+            String contents;
+            synchronized (this) {
+                contents = decodeContents(inode, stored);
+            }
+            record(WorkloadOp.Kind.READ, inode.getFileName(), inode.getSize(), startNanos);
+            return contents;
+        } finally {
+            synchronized (this) {
+                endIo(fileDescriptor);
+            }
+        }
+    }
 
-            System.out.printf("Read block %d: %d bytes read\n", blockPointer, bytesToRead);
+    /**
+     * Turns the stored bytes of a file back into its contents, inflating
+     * them if the file is compressed
+     */
+    private String decodeContents(INode inode, byte[] stored) throws IOException {
+        int fileSize = inode.getSize();
+        if (inode.isCompressed()) {
+            byte[] contents = compressor.decompress(stored, inode);
+            System.out.println("Finished reading compressed file. Stored " + stored.length +
+                    " bytes, total size: " + fileSize + " bytes.");
+            return new String(contents, 0, fileSize);
         }
 
         System.out.println("Finished reading file. Total size: " + fileSize + " bytes.");
-        return data.toString();
+        return new String(stored);
     }
 
-     /**
-     * Writes the data to a file that is identified by its file descriptor.
-     * This method allocates blocks for the file and then writes the data across disks in a  RAID 0 like setup.
+    /**
+     * Reads the contents of a file through the scheduler without the lock.
+     * The caller loads the inode and calls <code>beginIo</code> holding the
+     * lock; the read is ended here.
+     */
+    private byte[] readScheduled(int fileDescriptor, INode inode) throws IOException {
+        try {
+            byte[] stored = readStoredBytes(inode, true);
+            synchronized (this) {
+                return inode.isCompressed() ? compressor.decompress(stored, inode) : stored;
+            }
+        } finally {
+            synchronized (this) {
+                endIo(fileDescriptor);
+            }
+        }
+    }
+
+    /**
+     * Reads the contents of a file into a caller supplied buffer.  Data
+     * blocks are read straight into <code>dst</code> and a packed tail goes
+     * through a pooled off-heap frame, so with the file open and a reused
+     * buffer no per-block memory is allocated.  With a scheduler the blocks
+     * are read through it on behalf of the current tenant, without the lock,
+     * and copied into <code>dst</code> from the heap.
      *
-     * @param fileDescriptor The descriptor of the file to write to.
-     * @param data           The data to write to the file.
-     * @throws IOException If the file descriptor is invalid or there are not enough blocks available.
+     * @param fileDescriptor The file to read
+     * @param dst Buffer receiving the contents at its position
+     * @return The number of bytes read
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If the file does not fit in <code>dst</code>
      */
-    public void write(int fileDescriptor, String data) throws IOException {
-        System.out.println("Status... Now Attempting to write data to file with descriptor: " + fileDescriptor);
-        //// Log the start of the write operation with the file descriptor.
-        
+    public int read(int fileDescriptor, ByteBuffer dst) throws IOException, IllegalArgumentException {
         if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
-            throw new IOException("Invalid file descriptor: " + fileDescriptor);
-        }
-        // Validate the file descriptor to ensure it's within a valid range.
-        
-        if (data == null || data.isEmpty()) {
-            throw new IllegalArgumentException("Data to write cannot be null or empty");
+            throw new IOException("Invalid file descriptor");
         }
-        //// Validate that the data is not null or empty before proceeding.
-        
-        byte[] dataBytes = data.getBytes();
-        //Convert the data string into a byte array.
 
-        int totalBlocks = (int) Math.ceil((double) dataBytes.length / Disk.BLOCK_SIZE);
-        //Calculate the number of blocks needed to store the data.
-        
-        System.out.println("Data size: " + dataBytes.length + " bytes, requiring " + totalBlocks + " blocks.");
-        // Log the data size and the number of blocks required.
+        INode inode;
+        int fileSize;
+        synchronized (this) {
+            inode = openOrReadINode(fileDescriptor);
+            if (inode.getFileName() == null) {
+                throw new IOException("FileSystem::read: File not found");
+            }
+            flushLogFor(inode);
 
-        int[] allocatedBlocks = allocateBlocksForFile(fileDescriptor, dataBytes.length);
-        // Allocate blocks on the disk for the file using the file descriptor and data size.
+            fileSize = Math.max(inode.getSize(), 0);
+            if (dst.remaining() < fileSize) {
+                throw new IllegalArgumentException("FileSystem::read: buffer holds " + dst.remaining() +
+                        " bytes, file has " + fileSize);
+            }
 
-        if (allocatedBlocks.length < totalBlocks) {
-            throw new IOException("Not enough blocks available to write data");
+            if (scheduler == null || inode.isInline()) {
+                return readInto(inode, fileSize, dst);
+            }
+            beginIo(fileDescriptor, false);
         }
-        // Check if enough blocks have been allocated; otherwise, throw an error.
 
-        int offset = 0;
-        for (int i = 0; i < totalBlocks; i++) {
-            // Initialize the offset for tracking the data written so far.
+        dst.put(readScheduled(fileDescriptor, inode), 0, fileSize);
+        return fileSize;
+    }
+
+    /**
+     * Reads a file into <code>dst</code> straight from the array
+     */
+    private int readInto(INode inode, int fileSize, ByteBuffer dst) throws IOException {
+        if (inode.isInline() || inode.isCompressed()) {
+            byte[] stored = readStoredBytes(inode);
+            byte[] contents = inode.isCompressed() ? compressor.decompress(stored, inode) : stored;
+            dst.put(contents, 0, fileSize);
+            return fileSize;
+        }
 
-            int diskIndex = i % numDisks;
-            // Determine the disk index for the current block (striping across disks).
+        int offset = 0;
+        for (int i = 0; i < inode.getBlockSpan() && offset < fileSize; i++) {
+            int length = Math.min(fileSize - offset, Disk.BLOCK_SIZE);
+            if (inode.getBlockPointer(i) == -1) {
+                putZeros(dst, length);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + length);
+                raid.readBlock(inode.getBlockPointer(i), dst);
+                dst.limit(limit);
+            }
+            offset += length;
+        }
 
-            int blockPointer = allocatedBlocks[i];
-            // Get the block pointer for the current block from the allocated blocks.
+        if (inode.isTailPacked() && offset < fileSize) {
+            ByteBuffer frame = bufferPool.acquire();
+            try {
+                raid.readBlock(inode.getTailBlock(), frame);
+                frame.limit(inode.getTailOffset() + fileSize - offset).position(inode.getTailOffset());
+                dst.put(frame);
+            } finally {
+                bufferPool.release(frame);
+            }
+        } else if (offset < fileSize) {
+            // Hole at the end of a sparse file
+            putZeros(dst, fileSize - offset);
+        }
+        return fileSize;
+    }
 
-            byte[] blockData = new byte[Disk.BLOCK_SIZE];
-            // Prepare a buffer to hold the data for the current block.
+    private static void putZeros(ByteBuffer dst, int length) {
+        for (int i = 0; i < length; i++) {
+            dst.put((byte) 0);
+        }
+    }
 
-            int length = Math.min(dataBytes.length - offset, Disk.BLOCK_SIZE);
-            // Determine the number of bytes to write to this block (may be less than block size).
+    /**
+     * Replaces the contents of a file with the remaining bytes of a caller
+     * supplied buffer.  Full blocks are written straight from <code>src</code>
+     * and a short last block goes through a pooled off-heap frame.  Files
+     * that are stored inline, compressed or deduplicated, an array with
+     * parity, or a file system with a scheduler, need the bytes on the heap
+     * and take the regular write path.
+     *
+     * @param fileDescriptor The file to write
+     * @param src Buffer holding the new contents between its position and limit
+     * @throws IOException If the file cannot be written
+     */
+    public void write(int fileDescriptor, ByteBuffer src) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor: " + fileDescriptor);
+        }
+        if (!src.hasRemaining()) {
+            throw new IllegalArgumentException("Data to write cannot be null or empty");
+        }
 
-            System.arraycopy(dataBytes, offset, blockData, 0, length);
-            //Copy the relevant portion of the data to the block buffer.
+        synchronized (this) {
+            awaitIo(fileDescriptor);
+            int length = src.remaining();
+            boolean compress = (loadINode(fileDescriptor).getFlags() & INode.FLAG_COMPRESS) != 0;
+            if (length > INode.INLINE_DATA_SIZE && !compress && !deduplication && log == null &&
+                    raid.supportsDirectWrites() && scheduler == null) {
+                writeFrom(fileDescriptor, src);
+                return;
+            }
+        }
 
-            System.out.printf("Writing %d bytes to disk %d, block %d\n", length, diskIndex, blockPointer);
-            // Log the write operation details (bytes written, disk index, block pointer).
+        byte[] contents = new byte[src.remaining()];
+        src.get(contents);
+        writeBytes(fileDescriptor, contents);
+    }
 
-            disks[diskIndex].writeDataBlock(blockData, blockPointer);
-            // Write the block data to the corresponding disk and block.
+    /**
+     * Writes the full blocks of a file straight from <code>src</code>
+     */
+    private void writeFrom(int fileDescriptor, ByteBuffer src) throws IOException {
+        int length = src.remaining();
 
-            offset += Disk.BLOCK_SIZE;
-            // Update the offset to point to the next chunk of data.
+        int tailLength = length % Disk.BLOCK_SIZE;
+        boolean packTail = tailLength > 0 && tailLength <= MAX_TAIL_SIZE;
+        int totalBlocks = packTail ? length / Disk.BLOCK_SIZE : (length + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        // A write the owner's quota rejects leaves the old contents alone
+        checkQuota(loadINode(fileDescriptor), totalBlocks);
 
+        if (loadINode(fileDescriptor).getSize() > 0) {
+            deallocateBlocksForFile(fileDescriptor);
         }
 
-        INode inode = diskDevice.readInode(fileDescriptor);
-        inode.setSize(dataBytes.length);
-        for (int i = 0; i < allocatedBlocks.length; i++) {
-            inode.setBlockPointer(i, allocatedBlocks[i]);
-        }
-        diskDevice.writeInode(inode, fileDescriptor);
+        INode inode = loadINode(fileDescriptor);
+        inode.setGeneration(inode.getGeneration() + 1);
 
-        System.out.println("Finished writing data to file descriptor " + fileDescriptor + ".");
-        // Update the file metadata (inode) with the data size and block pointers, 
-        // then write the updated inode back to the disk, and log the successful completion of the operation.
-    }
+        chargeBlocks(inode.getOwner(), totalBlocks);
+        int[] allocatedBlocks = null;
+        try {
+            allocatedBlocks = totalBlocks > 0 ? allocateBlocksForFile(fileDescriptor, totalBlocks * Disk.BLOCK_SIZE)
+                                              : new int[0];
 
+            int limit = src.limit();
+            for (int i = 0; i < totalBlocks; i++) {
+                if (src.remaining() >= Disk.BLOCK_SIZE) {
+                    src.limit(src.position() + Disk.BLOCK_SIZE);
+                    raid.writeBlock(allocatedBlocks[i], src);
+                    src.limit(limit);
+                } else {
+                    // Short last block that is too big to pack: pad it with zeros in a frame
+                    ByteBuffer frame = bufferPool.acquire();
+                    try {
+                        frame.put(src);
+                        while (frame.hasRemaining()) {
+                            frame.put((byte) 0);
+                        }
+                        frame.flip();
+                        raid.writeBlock(allocatedBlocks[i], frame);
+                    } finally {
+                        bufferPool.release(frame);
+                    }
+                }
+                inode.setBlockPointer(i, allocatedBlocks[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (allocatedBlocks != null) {
+                abandonWrite(new PendingWrite(fileDescriptor, inode, allocatedBlocks, null, 0, null, 0));
+            } else {
+                releaseBlocks(inode.getOwner(), totalBlocks);
+            }
+            throw e;
+        }
 
+        inode.setSize(length);
+        if (packTail) {
+            packTail(inode, src);
+        }
+        storeINode(inode, fileDescriptor);
+        refreshOpenINode(fileDescriptor, inode);
+    }
 
     /**
-     * The main piece of the Pie
-     * Allocates the blocks across multiple disks for a file in a RAID 0 setup.
-     * The method divides the file's data into blocks and distributes these blocks evenly across the disks in a round-robin manner.
+     * Writes <code>data</code> into a file starting at byte <code>offset</code>,
+     * leaving the rest of the file as it is.  Only the blocks the range
+     * touches are allocated: writing past the end of the file leaves a hole
+     * between the old end and <code>offset</code> that takes no space and
+     * reads as zeros.  A file stored inline, compressed or with a packed
+     * tail is first rewritten as plain blocks.
      *
-     * @param iNodeNumber The inode number representing the file for which blocks are being allocated.
-     * @param numBytes    The total size of the file in bytes.
-     * @return An array of block pointers representing the locations of the allocated blocks.
-     * @throws IOException If there are not enough free blocks available to allocate the file.
+     * @param fileDescriptor The file to write
+     * @param offset Byte position in the file to write at
+     * @param data The bytes to write
+     * @throws IOException If the file cannot be found or written, or the range ends past the largest file size
      */
-    public int[] allocateBlocksForFile(int iNodeNumber, int numBytes) throws IOException {
-        // THis Calculates the number of blocks needed for the given file size
-        int numBlocks = (int) Math.ceil((double) numBytes / Disk.BLOCK_SIZE);
-        // The Array to store pointers to the blocks allocated for this file
-        int[] blockPointers = new int[numBlocks];
-        FreeBlockList freeBlockList = new FreeBlockList();
-        byte[] freeList = diskDevice.readFreeBlockList();
-        freeBlockList.setFreeBlockList(freeList);
-        // The stripe size for RAID 0 is the number of disks
-        int stripeSize = numDisks;
-        int blocksAllocated = 0;
+    public synchronized void writeAt(int fileDescriptor, int offset, String data) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor: " + fileDescriptor);
+        }
+        if (data == null || data.isEmpty()) {
+            throw new IllegalArgumentException("Data to write cannot be null or empty");
+        }
+        byte[] bytes = data.getBytes();
+        long end = (long) offset + bytes.length;
+        if (offset < 0 || end > (long) INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE) {
+            throw new IOException("FileSystem::writeAt: bytes " + offset + "-" + end +
+                    " are outside the largest file size");
+        }
 
-        System.out.printf("Will now Allocate %d blocks for inode %d%n", numBlocks, iNodeNumber);
-        // Loops through all the blocks in the disk to find the free blocks and allocate them
-        for (int i = 0; i < Disk.NUM_BLOCKS && blocksAllocated < numBlocks; i++) {
-            if ((freeList[i / 8] & (1 << (i % 8))) == 0) {
-                // This Assigns the current block to a disk in round-robin manner
-                int diskIndex = blocksAllocated % numDisks;
-                int blockInStripe = blocksAllocated / numDisks;
-                freeBlockList.allocateBlock(i);
-                blockPointers[blocksAllocated++] = (diskIndex * stripeSize) + blockInStripe;
+        awaitIo(fileDescriptor);
+        INode inode = loadINode(fileDescriptor);
+        if (inode.getFileName() == null) {
+            throw new IOException("FileSystem::writeAt: File not found");
+        }
+        if (inode.isInline() || inode.isTailPacked() || inode.isCompressed()) {
+            inode = unpack(fileDescriptor, inode);
+        }
+        inode.setGeneration(inode.getGeneration() + 1);
 
-                System.out.printf("Allocated block %d to disk %d, stripe block %d%n",
-                        blocksAllocated - 1, diskIndex, blockInStripe);
+        int first = offset / Disk.BLOCK_SIZE;
+        int last = (int) ((end - 1) / Disk.BLOCK_SIZE);
+        int count = last - first + 1;
+        int[] indexes = new int[count];
+        byte[][] contents = new byte[count][];
+        int freshBlocks = 0;
+        for (int k = 0; k < count; k++) {
+            int index = first + k;
+            int pointer = inode.getBlockPointer(index);
+            int blockStart = index * Disk.BLOCK_SIZE;
+            int from = Math.max(offset, blockStart);
+            int to = (int) Math.min(end, blockStart + Disk.BLOCK_SIZE);
+
+            // A block only partly covered keeps the rest of its old contents
+            boolean partial = to - from < Disk.BLOCK_SIZE;
+            contents[k] = pointer != -1 && partial ? readDataBlocks(new int[]{pointer})[0] : new byte[Disk.BLOCK_SIZE];
+            System.arraycopy(bytes, from - offset, contents[k], from - blockStart, to - from);
+            indexes[k] = index;
+            if (pointer == -1) {
+                freshBlocks++;
             }
         }
+        chargeBlocks(inode.getOwner(), freshBlocks);
 
-        if (blocksAllocated < numBlocks) {
-            throw new IOException("Not enough free blocks available");
+        int[] targets = null;
+        int allocated = 0;
+        try {
+            targets = log == null ? null : log.append(fileDescriptor, indexes, contents);
+            if (targets == null) {
+                // Blocks shared with other files or snapshots, or known to the deduplication index, are copied on write
+                targets = new int[count];
+                for (int k = 0; k < count; k++) {
+                    int pointer = inode.getBlockPointer(indexes[k]);
+                    targets[k] = pointer != -1 && blockTable.getRefCount(pointer) == 0 ? pointer : allocateFreeBlock();
+                    allocated = k + 1;
+                }
+                writeDataBlocks(targets, contents);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Give back the blocks taken for this write; the file still points at its old ones
+            for (int k = 0; k < allocated; k++) {
+                if (targets[k] != inode.getBlockPointer(indexes[k])) {
+                    freeBlock(targets[k]);
+                }
+            }
+            releaseBlocks(inode.getOwner(), freshBlocks);
+            throw e;
         }
 
-        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
-        // Update the file's inode with the list of allocated block pointers
-        INode inode = diskDevice.readInode(iNodeNumber);
-        for (int j = 0; j < blockPointers.length; j++) {
-            inode.setBlockPointer(j, blockPointers[j]);
+        for (int k = 0; k < count; k++) {
+            int pointer = inode.getBlockPointer(indexes[k]);
+            if (pointer != -1 && pointer != targets[k] && blockTable.release(pointer)) {
+                if (log != null) {
+                    log.free(pointer);
+                } else {
+                    freeBlock(pointer);
+                }
+            }
+            inode.setBlockPointer(indexes[k], targets[k]);
         }
-        diskDevice.writeInode(inode, iNodeNumber);
 
-        System.out.println("Block allocation completed successfully.");
-        return blockPointers;
+        inode.setSize((int) Math.max(end, Math.max(inode.getSize(), 0)));
+        boolean holes = inode.getSize() > inode.getBlockSpan() * Disk.BLOCK_SIZE;
+        for (int i = 0; i < inode.getBlockSpan() && !holes; i++) {
+            holes = inode.getBlockPointer(i) == -1;
+        }
+        inode.setFlags(holes ? inode.getFlags() | INode.FLAG_SPARSE : inode.getFlags() & ~INode.FLAG_SPARSE);
+        storeINode(inode, fileDescriptor);
+        refreshOpenINode(fileDescriptor, inode);
+
+        System.out.println("Wrote " + bytes.length + " bytes at offset " + offset + " of file descriptor " +
+                fileDescriptor + (freshBlocks > 0 ? ", allocating " + freshBlocks + " blocks." : "."));
     }
 
     /**
-     * Deallocates blocks associated with a file.
-     * Frees up the blocks in the free block list and updates the files inode to remove references.
+     * Rewrites a file that is stored inline, compressed or with a packed
+     * tail as plain blocks, so that parts of it can be overwritten in place
      *
-     * @param iNodeNumber The inode number of the file to deallocate.
-     * @throws IOException If there is an issue reading or writing the disk data.
+     * @return The inode of the rewritten file
      */
-    void deallocateBlocksForFile(int iNodeNumber) throws IOException {
-        System.out.println("Deallocating blocks for file with inode number: " + iNodeNumber);
+    private INode unpack(int fileDescriptor, INode inode) throws IOException {
+        int size = Math.max(inode.getSize(), 0);
+        flushLogFor(inode);
+        byte[] stored = readStoredBytes(inode, scheduler != null);
+        byte[] contents = inode.isCompressed() ? compressor.decompress(stored, inode) : stored;
+        int numBlocks = (size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        checkQuota(inode, numBlocks);
 
-        INode inode = diskDevice.readInode(iNodeNumber);
-        FreeBlockList freeBlockList = new FreeBlockList();
-        byte[] freeList = diskDevice.readFreeBlockList();
-        freeBlockList.setFreeBlockList(freeList);
+        deallocateBlocksForFile(fileDescriptor);
+        if (numBlocks > 0) {
+            chargeBlocks(inode.getOwner(), numBlocks);
+            int[] blocks = null;
+            try {
+                blocks = allocateBlocksForFile(fileDescriptor, numBlocks * Disk.BLOCK_SIZE);
+                writeDataBlocks(blocks, splitIntoBlocks(contents, numBlocks));
+            } catch (IOException | RuntimeException e) {
+                if (blocks != null) {
+                    abandonWrite(new PendingWrite(fileDescriptor, inode, blocks, null, 0, null, 0));
+                } else {
+                    releaseBlocks(inode.getOwner(), numBlocks);
+                }
+                throw e;
+            }
+        }
 
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockPointer = inode.getBlockPointer(i);
-            if (blockPointer == -1) break;
+        INode unpacked = loadINode(fileDescriptor);
+        unpacked.setSize(size);
+        return unpacked;
+    }
 
-            System.out.printf("Deallocating block %d\n", blockPointer);
-            freeBlockList.deallocateBlock(blockPointer);
-            inode.setBlockPointer(i, -1);
+    /**
+     * Finds the next byte of a file that is backed by a data block, so that
+     * copy and backup tools can skip the holes of sparse files
+     *
+     * @param fileDescriptor The file
+     * @param offset Byte position to start looking at
+     * @return The first position at or after <code>offset</code> holding data, or -1 if there is none
+     * @throws IOException If the file cannot be found
+     */
+    public synchronized int seekData(int fileDescriptor, int offset) throws IOException {
+        INode inode = inodeForSeek(fileDescriptor);
+        int size = Math.max(inode.getSize(), 0);
+        if (offset < 0 || offset >= size) {
+            return -1;
         }
+        if (!inode.isSparse()) {
+            return offset;
+        }
+        for (int i = offset / Disk.BLOCK_SIZE; i < inode.getBlockSpan(); i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                return Math.max(offset, i * Disk.BLOCK_SIZE);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the next hole of a file.  The end of the file counts as a hole,
+     * so a file without holes reports its size.
+     *
+     * @param fileDescriptor The file
+     * @param offset Byte position to start looking at
+     * @return The first position at or after <code>offset</code> in a hole, or -1 if <code>offset</code> is
+     *         past the end of the file
+     * @throws IOException If the file cannot be found
+     */
+    public synchronized int seekHole(int fileDescriptor, int offset) throws IOException {
+        INode inode = inodeForSeek(fileDescriptor);
+        int size = Math.max(inode.getSize(), 0);
+        if (offset < 0 || offset >= size) {
+            return -1;
+        }
+        if (!inode.isSparse()) {
+            return size;
+        }
+        for (int i = offset / Disk.BLOCK_SIZE; i < inode.getBlockSpan(); i++) {
+            if (inode.getBlockPointer(i) == -1) {
+                return Math.max(offset, i * Disk.BLOCK_SIZE);
+            }
+        }
+        return Math.max(offset, Math.min(size, inode.getBlockSpan() * Disk.BLOCK_SIZE));
+    }
+
+    private INode inodeForSeek(int fileDescriptor) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor: " + fileDescriptor);
+        }
+        INode inode = openOrReadINode(fileDescriptor);
+        if (inode.getFileName() == null) {
+            throw new IOException("FileSystem::seek: File not found");
+        }
+        return inode;
+    }
+
+    /**
+     * Copies the contents of a file to a channel.  The data blocks are sent
+     * with <code>FileChannel.transferTo</code> straight from the member disk
+     * images, coalescing blocks that are contiguous on a member, so they
+     * never pass through the Java heap.  Inline and compressed files, which
+     * have no raw blocks to send, are written from memory, and so are all
+     * files when a scheduler is set: their blocks are read through it on
+     * behalf of the current tenant, without the lock.
+     *
+     * @param fileDescriptor The file to export
+     * @param target Channel receiving the contents
+     * @return The number of bytes exported
+     * @throws IOException If the file cannot be read or the channel written
+     */
+    public long exportTo(int fileDescriptor, WritableByteChannel target) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor");
+        }
+
+        INode inode;
+        int fileSize;
+        synchronized (this) {
+            inode = loadINode(fileDescriptor);
+            if (inode.getFileName() == null) {
+                throw new IOException("FileSystem::exportTo: File not found");
+            }
+            flushLogFor(inode);
+
+            fileSize = Math.max(inode.getSize(), 0);
+            if (fileSize == 0) {
+                return 0;
+            }
+            if (scheduler == null || inode.isInline()) {
+                return transferTo(fileDescriptor, inode, fileSize, target);
+            }
+            beginIo(fileDescriptor, false);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(readScheduled(fileDescriptor, inode), 0, fileSize);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        System.out.println("Exported " + fileSize + " bytes of file descriptor " + fileDescriptor + ".");
+        return fileSize;
+    }
+
+    /**
+     * Sends a file to a channel straight from the member disk images
+     */
+    private long transferTo(int fileDescriptor, INode inode, int fileSize, WritableByteChannel target)
+            throws IOException {
+        if (inode.isInline() || inode.isCompressed()) {
+            byte[] stored = readStoredBytes(inode);
+            byte[] contents = inode.isCompressed() ? compressor.decompress(stored, inode) : stored;
+            ByteBuffer buffer = ByteBuffer.wrap(contents, 0, fileSize);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return fileSize;
+        }
+
+        // Runs of data blocks are sent from the images; holes of a sparse file are sent as zeros
+        int span = inode.getBlockSpan();
+        long blockBytes = Math.min(fileSize, (long) span * Disk.BLOCK_SIZE);
+        int runStart = 0;
+        for (int i = 0; i <= span; i++) {
+            if (i < span && inode.getBlockPointer(i) != -1) {
+                continue;
+            }
+            if (i > runStart) {
+                int[] run = new int[i - runStart];
+                for (int j = 0; j < run.length; j++) {
+                    run[j] = inode.getBlockPointer(runStart + j);
+                }
+                long runBytes = Math.min(blockBytes, (long) i * Disk.BLOCK_SIZE) - (long) runStart * Disk.BLOCK_SIZE;
+                raid.transferTo(run, 0, runBytes, target);
+            }
+            if (i < span) {
+                writeZeros(target, Disk.BLOCK_SIZE);
+            }
+            runStart = i + 1;
+        }
+
+        if (inode.isTailPacked()) {
+            raid.transferTo(new int[]{inode.getTailBlock()}, inode.getTailOffset(), fileSize - blockBytes, target);
+        } else if (blockBytes < fileSize) {
+            writeZeros(target, (int) (fileSize - blockBytes));
+        }
+
+        System.out.println("Exported " + fileSize + " bytes of file descriptor " + fileDescriptor + ".");
+        return fileSize;
+    }
+
+    private static void writeZeros(WritableByteChannel target, int length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(length);
+        while (zeros.hasRemaining()) {
+            target.write(zeros);
+        }
+    }
+
+    /**
+     * Creates a file holding everything that can be read from a channel.
+     * Each data block is filled with <code>FileChannel.transferFrom</code>
+     * straight into its member disk image, so the data never passes through
+     * the Java heap; only a short last block is read back to be stored
+     * inline or packed into a tail block.  Layouts that have to see the
+     * data, such as RAID 5 parity or deduplication, read the channel into
+     * memory and write it normally, and so does a file system with a
+     * scheduler, which queues the blocks on behalf of the current tenant.
+     *
+     * If the channel or the disk fails partway, the blocks filled so far are
+     * freed and the file is deleted again.  The channel has to be in
+     * blocking mode: a non-blocking one cannot tell its end apart from a
+     * pause.
+     *
+     * @param source Channel supplying the contents, read until its end
+     * @param fileName Name of the new file
+     * @return The file descriptor of the new file
+     * @throws IOException If the file exists, is too large, or cannot be written
+     */
+    public int importFrom(ReadableByteChannel source, String fileName) throws IOException {
+        if (source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+            throw new IllegalArgumentException("FileSystem::importFrom: " + fileName +
+                    " cannot be imported from a non-blocking channel");
+        }
+        synchronized (this) {
+            if (!deduplication && log == null && raid.supportsDirectWrites() && scheduler == null) {
+                return transferFrom(source, fileName);
+            }
+        }
+
+        // The channel is read without the lock
+        int fd = create(fileName);
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+            while (source.read(buffer) != -1) {
+                contents.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            if (contents.size() > 0) {
+                writeBytes(fd, contents.toByteArray());
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(fileName);
+            throw e;
+        }
+        return fd;
+    }
+
+    /**
+     * Creates a file filled straight from a channel into its data blocks
+     */
+    private int transferFrom(ReadableByteChannel source, String fileName) throws IOException {
+        int fd = create(fileName);
+        INode inode = loadINode(fd);
+        inode.setGeneration(inode.getGeneration() + 1);
+        int numBlocks = 0;
+        int lastFill = Disk.BLOCK_SIZE;
+        int fileSize = 0;
+        ByteBuffer tail = null;
+
+        // The block being filled is not in the inode yet, so a failure has to free it separately
+        int inFlight = -1;
+        try {
+            while (lastFill == Disk.BLOCK_SIZE && numBlocks < INode.NUM_BLOCK_POINTERS) {
+                chargeBlocks(inode.getOwner(), 1);
+                try {
+                    inFlight = allocateFreeBlock();
+                } catch (IOException | RuntimeException e) {
+                    releaseBlocks(inode.getOwner(), 1);
+                    throw e;
+                }
+                lastFill = (int) raid.transferFrom(source, inFlight);
+                if (lastFill == 0) {
+                    break;
+                }
+                inode.setBlockPointer(numBlocks++, inFlight);
+                inFlight = -1;
+                fileSize += lastFill;
+            }
+
+            if (lastFill == Disk.BLOCK_SIZE && numBlocks == INode.NUM_BLOCK_POINTERS) {
+                // Out of block pointers: whatever is left has to fit in a tail
+                tail = ByteBuffer.allocate(MAX_TAIL_SIZE + 1);
+                int received = 0;
+                while (tail.hasRemaining() && received != -1) {
+                    received = source.read(tail);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (inFlight != -1) {
+                freeBlock(inFlight);
+                releaseBlocks(inode.getOwner(), 1);
+            }
+            inode.setSize(fileSize);
+            storeINode(inode, fd);
+            delete(fileName);
+            throw e;
+        }
+        if (inFlight != -1) {
+            // The channel ended on a block boundary
+            freeBlock(inFlight);
+            releaseBlocks(inode.getOwner(), 1);
+        }
+        inode.setSize(fileSize);
+
+        if (tail != null) {
+            if (tail.position() > MAX_TAIL_SIZE) {
+                storeINode(inode, fd);
+                delete(fileName);
+                throw new IOException("FileSystem::importFrom: " + fileName + " is larger than a file can be");
+            }
+            if (tail.position() > 0) {
+                packTail(inode, tail.array(), 0, tail.position());
+                inode.setSize(fileSize + tail.position());
+            }
+        } else if (lastFill > 0 && lastFill < Disk.BLOCK_SIZE &&
+                   (fileSize <= INode.INLINE_DATA_SIZE || lastFill <= MAX_TAIL_SIZE)) {
+            // Short last block: move it inline or into a shared tail block like write does
+            int lastBlock = inode.getBlockPointer(numBlocks - 1);
+            byte[] lastData = readBlock(lastBlock);
+            inode.setBlockPointer(numBlocks - 1, -1);
+            freeBlock(lastBlock);
+            releaseBlocks(inode.getOwner(), 1);
+
+            if (fileSize <= INode.INLINE_DATA_SIZE) {
+                inode.setInlineData(Arrays.copyOf(lastData, fileSize));
+            } else {
+                packTail(inode, lastData, 0, lastFill);
+            }
+        }
+
+        storeINode(inode, fd);
+        refreshOpenINode(fd, inode);
+
+        System.out.println("Imported " + inode.getSize() + " bytes into " + fileName + ".");
+        return fd;
+    }
+
+    /**
+     * Turns compression on or off for a file.  The setting applies to the
+     * next <code>write</code>; contents already on disk are left as they are.
+     *
+     * @param fileDescriptor The descriptor of the file
+     * @param enabled True to compress the file contents
+     * @throws IOException If the file descriptor is invalid or the file cannot be found.
+     */
+    public synchronized void setCompression(int fileDescriptor, boolean enabled) throws IOException {
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor: " + fileDescriptor);
+        }
+
+        INode inode = loadINode(fileDescriptor);
+        if (inode.getFileName() == null) {
+            throw new IOException("FileSystem::setCompression: File not found");
+        }
+
+        if (enabled) {
+            inode.setFlags(inode.getFlags() | INode.FLAG_COMPRESS);
+        } else {
+            inode.setFlags(inode.getFlags() & ~INode.FLAG_COMPRESS);
+        }
+        storeINode(inode, fileDescriptor);
+        refreshOpenINode(fileDescriptor, inode);
+    }
+
+     /**
+     * Writes the data to a file that is identified by its file descriptor.
+     * This method allocates blocks for the file and then writes the data across disks in a  RAID 0 like setup.
+     * Files of up to <code>INode.INLINE_DATA_SIZE</code> bytes are stored in the inode itself, and a
+     * partial final block is packed into a tail block shared with other files.
+     *
+     * @param fileDescriptor The descriptor of the file to write to.
+     * @param data           The data to write to the file.
+     * @throws IOException If the file descriptor is invalid or there are not enough blocks available.
+     */
+    public void write(int fileDescriptor, String data) throws IOException {
+        System.out.println("Status... Now Attempting to write data to file with descriptor: " + fileDescriptor);
+        //// Log the start of the write operation with the file descriptor.
+        
+        if (fileDescriptor < 0 || fileDescriptor >= Disk.NUM_INODES) {
+            throw new IOException("Invalid file descriptor: " + fileDescriptor);
+        }
+        // Validate the file descriptor to ensure it's within a valid range.
+        
+        if (data == null || data.isEmpty()) {
+            throw new IllegalArgumentException("Data to write cannot be null or empty");
+        }
+        //// Validate that the data is not null or empty before proceeding.
+        
+        byte[] contents = data.getBytes();
+        //Convert the data string into a byte array.
+
+        long startNanos = System.nanoTime();
+        writeBytes(fileDescriptor, contents);
+        recordWrite(fileDescriptor, contents.length, startNanos);
+    }
+
+    /**
+     * Replaces the contents of a file.  With a scheduler the plain data
+     * blocks are queued in it on behalf of the current tenant without the
+     * lock; the metadata is settled under the lock before and after.
+     */
+    private void writeBytes(int fileDescriptor, byte[] contents) throws IOException {
+        PendingWrite pending;
+        synchronized (this) {
+            // Appends to the segment log are already sequential, so they are not queued in the scheduler
+            if (scheduler == null || log != null) {
+                awaitIo(fileDescriptor);
+                writeContents(fileDescriptor, contents, false);
+                return;
+            }
+
+            beginIo(fileDescriptor, true);
+            try {
+                pending = writeContents(fileDescriptor, contents, true);
+            } catch (IOException | RuntimeException e) {
+                endIo(fileDescriptor);
+                throw e;
+            }
+            if (pending == null) {
+                endIo(fileDescriptor);
+                return;
+            }
+        }
+        // Metadata is settled under the lock; the data blocks queue in the scheduler without it,
+        // so other tenants' requests are interleaved with this write block by block.
+
+        boolean written = false;
+        try {
+            scheduler.writeBlocks(currentTenant.get(), pending.blocks, pending.blockData);
+            written = true;
+        } finally {
+            synchronized (this) {
+                try {
+                    if (written) {
+                        finishWrite(pending);
+                    } else {
+                        abandonWrite(pending);
+                    }
+                } finally {
+                    endIo(fileDescriptor);
+                }
+            }
+        }
+    }
+
+    /**
+     * A write whose blocks are allocated but not yet on disk
+     */
+    private static class PendingWrite {
+        final int fileDescriptor;
+        final INode inode;
+        final int[] blocks;
+        final byte[][] blockData;
+        final int size;
+        final byte[] dataBytes;
+        final int tailLength;
+
+        PendingWrite(int fileDescriptor, INode inode, int[] blocks, byte[][] blockData, int size,
+                     byte[] dataBytes, int tailLength) {
+            this.fileDescriptor = fileDescriptor;
+            this.inode = inode;
+            this.blocks = blocks;
+            this.blockData = blockData;
+            this.size = size;
+            this.dataBytes = dataBytes;
+            this.tailLength = tailLength;
+        }
+    }
+
+    /**
+     * Replaces the contents of a file, choosing between inline storage,
+     * compression, deduplication and tail packing
+     *
+     * @param deferBlockWrites True to return the plain data blocks unwritten instead of writing them
+     * @return The blocks still to be written, or null if the write is complete
+     */
+    private PendingWrite writeContents(int fileDescriptor, byte[] contents, boolean deferBlockWrites)
+            throws IOException {
+        INode old = loadINode(fileDescriptor);
+        byte[] dataBytes = contents;
+        INode chunkIndex = new INode();
+        if ((old.getFlags() & INode.FLAG_COMPRESS) != 0) {
+            byte[] compressed = compressor.compress(contents, chunkIndex);
+            if (compressed != null) {
+                dataBytes = compressed;
+                System.out.println("Compressed " + contents.length + " bytes to " + dataBytes.length + " bytes.");
+            }
+        }
+        // Compress the contents when the file asks for it and it pays off; the chunk index goes into the inode
+        // once the old contents are released.
+
+        int tailLength = dataBytes.length % Disk.BLOCK_SIZE;
+        boolean packTail = log == null && tailLength > 0 && tailLength <= MAX_TAIL_SIZE;
+        int totalBlocks = dataBytes.length <= INode.INLINE_DATA_SIZE ? 0
+                        : packTail ? dataBytes.length / Disk.BLOCK_SIZE
+                                   : (int) Math.ceil((double) dataBytes.length / Disk.BLOCK_SIZE);
+        //Calculate the number of blocks needed to store the data, leaving out a tail that can be packed.
+        //The segment log writes whole blocks only, since a shared tail block would be rewritten in place.
+
+        checkQuota(old, totalBlocks);
+        // Fail before anything is released if the owner would go over its block quota.
+
+        if (old.getSize() > 0) {
+            deallocateBlocksForFile(fileDescriptor);
+        }
+        // Release whatever the previous contents of the file were using.
+
+        INode inode = loadINode(fileDescriptor);
+        inode.setGeneration(inode.getGeneration() + 1);
+        if (dataBytes != contents) {
+            inode.setFlags(inode.getFlags() | INode.FLAG_COMPRESSED);
+            for (int chunk = 0; chunk < INode.NUM_CHUNK_ENTRIES; chunk++) {
+                inode.setChunkEnd(chunk, chunkIndex.getChunkEnd(chunk));
+            }
+        }
+
+        if (dataBytes.length <= INode.INLINE_DATA_SIZE) {
+            inode.setSize(contents.length);
+            inode.setInlineData(dataBytes);
+            storeINode(inode, fileDescriptor);
+            refreshOpenINode(fileDescriptor, inode);
+
+            System.out.println("Stored " + dataBytes.length + " bytes inline in inode " + fileDescriptor + ".");
+            return null;
+        }
+        // Small files never touch a data block.
+
+        System.out.println("Data size: " + dataBytes.length + " bytes, requiring " + totalBlocks + " blocks.");
+        // Log the data size and the number of blocks required.
+
+        chargeBlocks(inode.getOwner(), totalBlocks);
+        // Charge the owner for the new blocks; every failure below gives the charge back.
+
+        int[] allocatedBlocks = null;
+        int[] plainBlocks = null;
+        try {
+            if (log != null && !deduplication && totalBlocks > 0) {
+                allocatedBlocks = log.append(fileDescriptor, splitIntoBlocks(dataBytes, totalBlocks));
+                if (allocatedBlocks != null) {
+                    System.out.println("Appended " + totalBlocks + " blocks of inode " + fileDescriptor +
+                            " to the segment log at block " + allocatedBlocks[0] + ".");
+                }
+            }
+            // In log-structured mode the blocks go to the segment being filled; with no free segment left they are
+            // allocated one by one like in the regular mode.
+
+            if (deduplication) {
+                allocatedBlocks = writeDeduplicatedBlocks(fileDescriptor, dataBytes, totalBlocks);
+            } else if (allocatedBlocks == null) {
+                allocatedBlocks = new int[0];
+                if (totalBlocks > 0) {
+                    allocatedBlocks = allocateBlocksForFile(fileDescriptor, totalBlocks * Disk.BLOCK_SIZE);
+                }
+                plainBlocks = allocatedBlocks;
+                // Allocate blocks on the disk for the file using the file descriptor and data size.
+
+                if (allocatedBlocks.length < totalBlocks) {
+                    throw new IOException("Not enough blocks available to write data");
+                }
+                // Check if enough blocks have been allocated; otherwise, throw an error.
+
+                byte[][] blocksToWrite = new byte[totalBlocks][];
+                // Collect the blocks so whole stripes can be written together.
+
+                int offset = 0;
+                for (int i = 0; i < totalBlocks; i++) {
+                    // Initialize the offset for tracking the data written so far.
+
+                    int blockPointer = allocatedBlocks[i];
+                    // Get the block pointer for the current block from the allocated blocks.
+
+                    byte[] blockData = new byte[Disk.BLOCK_SIZE];
+                    // Prepare a buffer to hold the data for the current block.
+
+                    int length = Math.min(dataBytes.length - offset, Disk.BLOCK_SIZE);
+                    // Determine the number of bytes to write to this block (may be less than block size).
+
+                    System.arraycopy(dataBytes, offset, blockData, 0, length);
+                    //Copy the relevant portion of the data to the block buffer.
+
+                    System.out.printf("Writing %d bytes to disk %d, block %d\n", length, raid.memberFor(blockPointer), blockPointer);
+                    // Log the write operation details (bytes written, disk index, block pointer).
+
+                    blocksToWrite[i] = blockData;
+                    // Queue the block data for the disk the block is striped onto.
+
+                    offset += Disk.BLOCK_SIZE;
+                    // Update the offset to point to the next chunk of data.
+
+                }
+
+                PendingWrite pending = new PendingWrite(fileDescriptor, inode, allocatedBlocks, blocksToWrite,
+                        contents.length, dataBytes, packTail ? tailLength : 0);
+                if (deferBlockWrites) {
+                    return pending;
+                }
+
+                writeDataBlocks(allocatedBlocks, blocksToWrite);
+                // Write all the blocks at once, letting the array write the disks in parallel.
+                finishWrite(pending);
+                return null;
+            }
+
+            finishWrite(new PendingWrite(fileDescriptor, inode, allocatedBlocks, null,
+                    contents.length, dataBytes, packTail ? tailLength : 0));
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (plainBlocks != null) {
+                // Frees the blocks allocated for the write and gives back their charge; the file is left empty
+                abandonWrite(new PendingWrite(fileDescriptor, inode, plainBlocks, null, 0, null, 0));
+            } else {
+                releaseBlocks(inode.getOwner(), totalBlocks);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Points the inode at the written blocks, packs the tail and stores the inode
+     */
+    private void finishWrite(PendingWrite pending) throws IOException {
+        INode inode = pending.inode;
+        inode.setSize(pending.size);
+        for (int i = 0; i < pending.blocks.length; i++) {
+            inode.setBlockPointer(i, pending.blocks[i]);
+        }
+        if (pending.tailLength > 0) {
+            packTail(inode, pending.dataBytes, pending.blocks.length * Disk.BLOCK_SIZE, pending.tailLength);
+        }
+        storeINode(inode, pending.fileDescriptor);
+        refreshOpenINode(pending.fileDescriptor, inode);
+
+        System.out.println("Finished writing data to file descriptor " + pending.fileDescriptor + ".");
+        // Update the file metadata (inode) with the data size, block pointers and tail location,
+        // then write the updated inode back to the disk, and log the successful completion of the operation.
+    }
+
+    /**
+     * Gives back the blocks of a write whose data could not be written; the
+     * file is left empty
+     */
+    private void abandonWrite(PendingWrite pending) throws IOException {
+        freeAllocatedBlocks(pending.fileDescriptor, pending.blocks);
+        releaseBlocks(pending.inode.getOwner(), pending.blocks.length);
+    }
+
+    /**
+     * Returns blocks from <code>allocateBlocksForFile</code> to the free list
+     * and clears the pointers it stored in the inode, leaving the file empty.
+     * Quota charges are left to the caller.
+     */
+    private void freeAllocatedBlocks(int fileDescriptor, int[] blocks) throws IOException {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        for (int block : blocks) {
+            freeBlockList.deallocateBlock(block);
+        }
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+
+        INode inode = loadINode(fileDescriptor);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, -1);
+        }
+        inode.setSize(0);
+        storeINode(inode, fileDescriptor);
+        refreshOpenINode(fileDescriptor, inode);
+    }
+
+
+
+    /**
+     * The main piece of the Pie
+     * Allocates the blocks across multiple disks for a file in a RAID 0 setup.
+     * The method divides the file's data into blocks and distributes these blocks evenly across the disks in a round-robin manner.
+     *
+     * @param iNodeNumber The inode number representing the file for which blocks are being allocated.
+     * @param numBytes    The total size of the file in bytes.
+     * @return An array of block pointers representing the locations of the allocated blocks.
+     * @throws IOException If there are not enough free blocks available to allocate the file.
+     */
+    public synchronized int[] allocateBlocksForFile(int iNodeNumber, int numBytes) throws IOException {
+        // THis Calculates the number of blocks needed for the given file size
+        int numBlocks = (int) Math.ceil((double) numBytes / Disk.BLOCK_SIZE);
+        // The Array to store pointers to the blocks allocated for this file
+        int[] blockPointers = new int[numBlocks];
+        FreeBlockList freeBlockList = new FreeBlockList();
+        byte[] freeList = diskDevice.readFreeBlockList();
+        freeBlockList.setFreeBlockList(freeList);
+        int blocksAllocated = 0;
+
+        System.out.printf("Will now Allocate %d blocks for inode %d%n", numBlocks, iNodeNumber);
+        // Loops through all the blocks in the disk to find the free blocks and allocate them
+        for (int i = 0; i < Disk.NUM_BLOCKS && blocksAllocated < numBlocks; i++) {
+            if ((freeList[i / 8] & (1 << (i % 8))) == 0) {
+                // The RAID layout decides which disk block i lives on
+                int diskIndex = raid.memberFor(i);
+                freeBlockList.allocateBlock(i);
+                blockPointers[blocksAllocated++] = i;
+
+                System.out.printf("Allocated block %d to disk %d%n", i, diskIndex);
+            }
+        }
+
+        if (blocksAllocated < numBlocks) {
+            throw new IOException("Not enough free blocks available");
+        }
+
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        // Update the file's inode with the list of allocated block pointers
+        INode inode = loadINode(iNodeNumber);
+        for (int j = 0; j < blockPointers.length; j++) {
+            inode.setBlockPointer(j, blockPointers[j]);
+        }
+        storeINode(inode, iNodeNumber);
+
+        System.out.println("Block allocation completed successfully.");
+        return blockPointers;
+    }
+
+    /**
+     * Deallocates blocks associated with a file.
+     * Frees up the blocks in the free block list and updates the files inode to remove references.
+     *
+     * @param iNodeNumber The inode number of the file to deallocate.
+     * @throws IOException If there is an issue reading or writing the disk data.
+     */
+    synchronized void deallocateBlocksForFile(int iNodeNumber) throws IOException {
+        System.out.println("Deallocating blocks for file with inode number: " + iNodeNumber);
+
+        INode inode = loadINode(iNodeNumber);
+        // The segment log frees blocks in batches when it flushes, so the free block list is left alone then
+        FreeBlockList freeBlockList = new FreeBlockList();
+        if (log == null) {
+            freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        }
+
+        int released = 0;
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            if (inode.isInline()) {
+                // The pointer area holds file data, not block numbers
+                inode.setBlockPointer(i, -1);
+                continue;
+            }
+
+            int blockPointer = inode.getBlockPointer(i);
+            if (blockPointer == -1) continue;
+            // Holes of a sparse file are skipped; nothing follows the first -1 of any other file
+            released++;
+
+            if (blockTable.release(blockPointer)) {
+                System.out.printf("Deallocating block %d\n", blockPointer);
+                if (log != null) {
+                    log.free(blockPointer);
+                } else {
+                    freeBlockList.deallocateBlock(blockPointer);
+                }
+            } else {
+                System.out.printf("Block %d is still shared, keeping it\n", blockPointer);
+            }
+            inode.setBlockPointer(i, -1);
+        }
+
+        if (log == null) {
+            diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        }
+        releaseBlocks(inode.getOwner(), released);
+        if (inode.isTailPacked()) {
+            releaseTail(inode);
+        }
+        inode.setFlags(inode.getFlags() & INode.FLAG_COMPRESS);
+        inode.setTail(-1, -1);
+        inode.setSize(0);
+        storeINode(inode, iNodeNumber);
 
-        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
-        inode.setSize(0);
-        diskDevice.writeInode(inode, iNodeNumber);
-
         System.out.println("Finished deallocating blocks for file with inode number: " + iNodeNumber);
     }
+
+    /**
+     * Writes the full blocks of a file, sharing any block whose contents are
+     * already stored.  Only blocks with new contents are allocated and written.
+     * References are taken once the new blocks are on disk; if anything
+     * fails the references taken so far are dropped again and the new blocks
+     * are freed, leaving the file empty.  The quota charge is left to the
+     * caller.
+     *
+     * @param fileDescriptor The descriptor of the file being written
+     * @param dataBytes The stored contents of the file
+     * @param totalBlocks Number of full blocks to write
+     * @return The block pointers of the file
+     * @throws IOException If there are not enough blocks available.
+     */
+    private int[] writeDeduplicatedBlocks(int fileDescriptor, byte[] dataBytes, int totalBlocks) throws IOException {
+        int[] blockPointers = new int[totalBlocks];
+        byte[][] blocks = new byte[totalBlocks][];
+        long[] fingerprints = new long[totalBlocks];
+        // Earlier block of this file holding the same contents, or -1
+        int[] sameAs = new int[totalBlocks];
+        Map<Long, Integer> firstWithFingerprint = new HashMap<>();
+        int freshBlocks = 0;
+
+        for (int i = 0; i < totalBlocks; i++) {
+            blocks[i] = new byte[Disk.BLOCK_SIZE];
+            int length = Math.min(dataBytes.length - (i * Disk.BLOCK_SIZE), Disk.BLOCK_SIZE);
+            System.arraycopy(dataBytes, i * Disk.BLOCK_SIZE, blocks[i], 0, length);
+            fingerprints[i] = blockTable.fingerprint(blocks[i]);
+            blockPointers[i] = -1;
+            sameAs[i] = -1;
+
+            int shared = blockTable.lookup(fingerprints[i]);
+            Integer earlier = firstWithFingerprint.get(fingerprints[i]);
+            if (shared != -1 && Arrays.equals(readDataBlocks(new int[]{shared})[0], blocks[i])) {
+                blockPointers[i] = shared;
+            } else if (earlier != null && Arrays.equals(blocks[earlier], blocks[i])) {
+                sameAs[i] = earlier;
+            } else {
+                firstWithFingerprint.putIfAbsent(fingerprints[i], i);
+                freshBlocks++;
+            }
+        }
+
+        int[] allocated = new int[0];
+        if (freshBlocks > 0) {
+            allocated = allocateBlocksForFile(fileDescriptor, freshBlocks * Disk.BLOCK_SIZE);
+        }
+
+        int next = 0;
+        byte[][] freshData = new byte[freshBlocks][];
+        boolean[] fresh = new boolean[totalBlocks];
+        for (int i = 0; i < totalBlocks; i++) {
+            if (blockPointers[i] != -1) {
+                System.out.printf("Sharing existing block %d\n", blockPointers[i]);
+            } else if (sameAs[i] != -1) {
+                blockPointers[i] = blockPointers[sameAs[i]];
+                System.out.printf("Sharing block %d within the file\n", blockPointers[i]);
+            } else {
+                blockPointers[i] = allocated[next];
+                freshData[next++] = blocks[i];
+                fresh[i] = true;
+                System.out.printf("Writing %d bytes to disk %d, block %d\n", Disk.BLOCK_SIZE,
+                        raid.memberFor(blockPointers[i]), blockPointers[i]);
+            }
+        }
+
+        // Blocks of this file holding a reference so far, in the order they took it
+        int referenced = 0;
+        try {
+            writeDataBlocks(allocated, freshData);
+            for (int i = 0; i < totalBlocks; i++) {
+                // A new block is registered before any later block of the file shares it
+                if (fresh[i]) {
+                    blockTable.register(blockPointers[i], fingerprints[i]);
+                } else {
+                    blockTable.addReference(blockPointers[i]);
+                }
+                referenced++;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Dropping the last reference to a new block also unregisters its fingerprint
+            for (int i = referenced - 1; i >= 0; i--) {
+                blockTable.release(blockPointers[i]);
+            }
+            freeAllocatedBlocks(fileDescriptor, allocated);
+            throw e;
+        }
+
+        System.out.printf("Deduplicated %d of %d blocks\n", totalBlocks - freshBlocks, totalBlocks);
+        return blockPointers;
+    }
+
+    /**
+     * Turns block deduplication on or off for later writes.  Blocks written
+     * while deduplication is on are fingerprinted and shared with any later
+     * block that has the same contents.
+     *
+     * @param enabled True to deduplicate blocks
+     */
+    public synchronized void setDeduplication(boolean enabled) {
+        this.deduplication = enabled;
+    }
+
+    /**
+     * Turns log-structured writes on or off.  While they are on, data blocks
+     * and inodes are appended to segments of consecutive blocks instead of
+     * being placed in the first free blocks and the inode table, and a
+     * background <code>SegmentCleaner</code> compacts segments that have
+     * become mostly dead.  Turning them off writes out the log and
+     * checkpoints the inode map.
+     *
+     * @param enabled True to append writes to the segment log
+     * @throws IOException If the log cannot be written out
+     */
+    public void setLogStructured(boolean enabled) throws IOException {
+        if (!enabled) {
+            // The cleaner takes the lock for each step, so it is stopped before the lock is held
+            stopCleaner();
+        }
+        synchronized (this) {
+            if (enabled && log == null) {
+                awaitIdle();
+                log = new SegmentLog(raid, diskDevice);
+                cleaner = new SegmentCleaner(this);
+                cleaner.start();
+                System.out.println("Log-structured writes on, " + log.getSegmentBlocks() + " blocks per segment.");
+            } else if (!enabled && log != null) {
+                log.close();
+                log = null;
+                System.out.println("Log-structured writes off.");
+            }
+        }
+    }
+
+    public synchronized boolean isLogStructured() {
+        return log != null;
+    }
+
+    /**
+     * Returns the cleaner of the segment log, or null if log-structured writes are off
+     */
+    public synchronized SegmentCleaner getSegmentCleaner() {
+        return cleaner;
+    }
+
+    synchronized SegmentLog getSegmentLog() {
+        return log;
+    }
+
+    /**
+     * Starts or stops recording the operations of the string API, that is
+     * <code>create</code>, <code>open</code>, <code>read</code>,
+     * <code>write</code> and <code>delete</code>, with their sizes and
+     * timings.  The trace can be saved and replayed against another image
+     * with <code>WorkloadReplayer</code>.
+     *
+     * @param trace The trace to add the operations to, or null to stop recording
+     */
+    public void setRecorder(WorkloadTrace trace) {
+        this.recorder = trace;
+    }
+
+    private void record(WorkloadOp.Kind kind, String fileName, int size, long startNanos) {
+        WorkloadTrace trace = recorder;
+        if (trace != null) {
+            trace.record(kind, fileName, size, startNanos, System.nanoTime());
+        }
+    }
+
+    private void recordWrite(int fileDescriptor, int size, long startNanos) throws IOException {
+        WorkloadTrace trace = recorder;
+        if (trace != null) {
+            long endNanos = System.nanoTime();
+            String fileName;
+            synchronized (this) {
+                fileName = loadINode(fileDescriptor).getFileName();
+            }
+            trace.record(WorkloadOp.Kind.WRITE, fileName, size, startNanos, endNanos);
+        }
+    }
+
+    /**
+     * Writes out the segment being filled and copies the inodes held in the
+     * inode map into the inode table, so that the image on disk is complete
+     * without the log.  Does nothing unless log-structured writes are on.
+     *
+     * @throws IOException If the log or the inode table cannot be written
+     */
+    public synchronized void sync() throws IOException {
+        if (log != null) {
+            log.checkpoint();
+        }
+    }
+
+    private void stopCleaner() throws IOException {
+        SegmentCleaner running;
+        synchronized (this) {
+            running = cleaner;
+            cleaner = null;
+        }
+        if (running != null) {
+            try {
+                running.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("FileSystem::stopCleaner: interrupted waiting for the segment cleaner");
+            }
+        }
+    }
+
+    /**
+     * Reads an inode, through the inode map when the segment log holds a
+     * newer version than the inode table
+     */
+    INode loadINode(int inodeNumber) throws IOException {
+        if (log != null) {
+            INode logged = log.getInode(inodeNumber);
+            if (logged != null) {
+                return logged;
+            }
+        }
+        return diskDevice.readInode(inodeNumber);
+    }
+
+    /**
+     * Stores an inode, appending it to the segment log when log-structured
+     * writes are on and writing it into the inode table otherwise
+     */
+    void storeINode(INode inode, int inodeNumber) throws IOException {
+        if (log != null) {
+            log.updateInode(inodeNumber, inode);
+        } else {
+            diskDevice.writeInode(inode, inodeNumber);
+        }
+        if (names != null) {
+            names.set(inodeNumber, inode.getFileName());
+        }
+    }
+
+    /**
+     * Returns the name index, reading the names out of the inode table the
+     * first time it is needed
+     */
+    private NameIndex names() throws IOException {
+        if (names == null) {
+            INode[] inodes = diskDevice.readInodeTable();
+            for (int i = 0; log != null && i < inodes.length; i++) {
+                INode logged = log.getInode(i);
+                if (logged != null) {
+                    inodes[i] = logged;
+                }
+            }
+            names = NameIndex.of(inodes);
+        }
+        return names;
+    }
+
+    /**
+     * Writes out the segment being filled if it holds blocks of the file,
+     * so they can be read from the members
+     */
+    private void flushLogFor(INode inode) throws IOException {
+        if (log == null || inode.isInline()) {
+            return;
+        }
+        for (int i = 0; i < inode.getBlockSpan(); i++) {
+            if (inode.getBlockPointer(i) != -1 && log.isBuffered(inode.getBlockPointer(i))) {
+                log.flush();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cuts the first <code>count</code> blocks out of <code>data</code>, zero padding the last one
+     */
+    private static byte[][] splitIntoBlocks(byte[] data, int count) {
+        byte[][] blocks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int from = i * Disk.BLOCK_SIZE;
+            blocks[i] = Arrays.copyOfRange(data, from, from + Disk.BLOCK_SIZE);
+        }
+        return blocks;
+    }
+
+    /**
+     * Registers a tenant.  Its usage is counted from the files it owns, so
+     * quotas carry over between mounts.
+     *
+     * @param tenant The tenant to register
+     * @throws IOException If the inode table cannot be read
+     * @throws IllegalArgumentException If another tenant has the same id
+     */
+    public synchronized void addTenant(Tenant tenant) throws IOException, IllegalArgumentException {
+        if (tenants.containsKey(tenant.getId())) {
+            throw new IllegalArgumentException("FileSystem::addTenant: tenant id " + tenant.getId() + " is taken");
+        }
+
+        sync();
+        int blocksUsed = 0;
+        int inodesUsed = 0;
+        for (INode inode : diskDevice.readInodeTable()) {
+            if (inode.getFileName() == null || inode.getOwner() != tenant.getId()) {
+                continue;
+            }
+            inodesUsed++;
+            for (int i = 0; i < inode.getBlockSpan(); i++) {
+                if (inode.getBlockPointer(i) != -1) {
+                    blocksUsed++;
+                }
+            }
+        }
+        tenant.setUsage(blocksUsed, inodesUsed);
+        tenants.put(tenant.getId(), tenant);
+    }
+
+    /**
+     * Makes the calling thread act for <code>tenant</code>: files it creates
+     * are charged to the tenant and its block I/O is scheduled in the
+     * tenant's queue
+     *
+     * @param tenant A registered tenant, or null to act for no tenant
+     * @throws IllegalArgumentException If the tenant is not registered
+     */
+    public synchronized void setCurrentTenant(Tenant tenant) throws IllegalArgumentException {
+        if (tenant != null && tenants.get(tenant.getId()) != tenant) {
+            throw new IllegalArgumentException("FileSystem::setCurrentTenant: " + tenant + " is not registered");
+        }
+        currentTenant.set(tenant);
+    }
+
+    /**
+     * Routes the block I/O of <code>read</code> and <code>write</code>
+     * through a scheduler.  The data blocks are then transferred without
+     * holding the file system lock, so a large request no longer stalls
+     * every other client.
+     *
+     * @param scheduler The scheduler, or null to do the I/O inline again
+     */
+    public synchronized void setScheduler(IoScheduler scheduler) {
+        awaitIdleUninterruptibly();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Chooses when data blocks are verified against their checksums as they
+     * are read from the member disks
+     *
+     * @param mode <code>ALWAYS</code>, <code>FIRST_READ</code> when the page cache makes
+     *             repeated reads cheap, or <code>OFF</code>
+     */
+    public void setChecksumMode(ChecksumMode mode) {
+        for (Disk disk : disks) {
+            disk.setChecksumMode(mode);
+        }
+    }
+
+    /**
+     * Verifies every data block on every member disk against its checksum.
+     * The members are read in large batches and in parallel, and other
+     * clients keep working while the scrub runs.
+     *
+     * @param repair True to rebuild corrupt blocks from parity and write them back
+     * @return The corrupt blocks found and how many were repaired
+     * @throws IOException If a member disk cannot be read
+     */
+    public ScrubReport scrub(boolean repair) throws IOException {
+        System.out.println("Scrubbing " + numDisks + " disks...");
+        ScrubReport report = raid.scrub(repair);
+        System.out.println("Scrub finished: " + report);
+        return report;
+    }
+
+    /**
+     * Takes a copy-on-write snapshot of every file.  Only the inode table is
+     * copied; the data blocks are shared with the live files by adding a
+     * reference to each of them, so the cost depends on the amount of
+     * metadata and not on the amount of data.  Because writes always store
+     * new contents in fresh data blocks, a shared data block is never
+     * modified and stays allocated until neither the live file nor the
+     * snapshot uses it.
+     *
+     * Tail blocks are shared the same way but keep changing: live files
+     * append their tails to the current tail block and drop them from its
+     * header.  Only the bytes past those in use are ever written, so the
+     * tails the snapshot points at stay as they were.  The header counts the
+     * live tails alone and reads never look at it, since every inode finds
+     * its tail by offset; the snapshot keeps the block alive through its
+     * reference, and <code>deleteSnapshot</code> frees the block only once
+     * the header shows no live tails either.
+     *
+     * @param snapshotName Name of the snapshot
+     * @throws IOException If the name is taken or all snapshot slots are in use
+     */
+    public synchronized void createSnapshot(String snapshotName) throws IOException {
+        if (snapshotName == null || snapshotName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Snapshot name cannot be null or empty");
+        }
+
+        int freeSlot = -1;
+        for (int slot = 0; slot < Disk.NUM_SNAPSHOTS; slot++) {
+            String name = diskDevice.readSnapshotName(slot);
+            if (snapshotName.equals(name)) {
+                throw new IOException("FileSystem::createSnapshot: " + snapshotName + " already exists");
+            } else if (name == null && freeSlot == -1) {
+                freeSlot = slot;
+            }
+        }
+        if (freeSlot == -1) {
+            throw new IOException("FileSystem::createSnapshot: all " + Disk.NUM_SNAPSHOTS + " snapshot slots are in use");
+        }
+
+        // The snapshot copies the inode table, so it has to hold the inodes still in the segment log
+        sync();
+        byte[] inodeRegion = diskDevice.readInodeRegion();
+        blockTable.addReferences(referencedBlocks(Disk.parseInodeTable(inodeRegion)));
+        diskDevice.writeSnapshot(freeSlot, snapshotName, System.currentTimeMillis(), inodeRegion);
+
+        System.out.println("Created snapshot " + snapshotName + " in slot " + freeSlot + ".");
+    }
+
+    /**
+     * Removes a snapshot, freeing the blocks that only it was using
+     *
+     * @param snapshotName Name of the snapshot
+     * @throws IOException If the snapshot does not exist
+     */
+    public synchronized void deleteSnapshot(String snapshotName) throws IOException {
+        int slot = findSnapshot(snapshotName);
+        INode[] inodes = Disk.parseInodeTable(diskDevice.readSnapshotInodeRegion(slot));
+
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        for (int block : referencedBlocks(inodes)) {
+            if (!blockTable.release(block)) {
+                continue;
+            }
+            // A tail block may have gained live tails since the snapshot was taken
+            if (isTailBlock(inodes, block) && ByteBuffer.wrap(readBlock(block)).getInt(TAIL_COUNT_OFFSET) > 0) {
+                continue;
+            }
+            freeBlockList.deallocateBlock(block);
+            forgetTailBlock(block);
+        }
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        diskDevice.clearSnapshot(slot);
+
+        System.out.println("Deleted snapshot " + snapshotName + ".");
+    }
+
+    /**
+     * Returns the names of the snapshots
+     *
+     * @return The names of the snapshots, in slot order
+     * @throws IOException If the snapshot slots cannot be read
+     */
+    public synchronized List<String> listSnapshots() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (int slot = 0; slot < Disk.NUM_SNAPSHOTS; slot++) {
+            String name = diskDevice.readSnapshotName(slot);
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads a file as it was when a snapshot was taken
+     *
+     * @param snapshotName Name of the snapshot
+     * @param fileName Name of the file
+     * @return The content of the file at the time of the snapshot
+     * @throws IOException If the snapshot or the file does not exist
+     */
+    public synchronized String readSnapshot(String snapshotName, String fileName) throws IOException {
+        int slot = findSnapshot(snapshotName);
+        for (INode inode : Disk.parseInodeTable(diskDevice.readSnapshotInodeRegion(slot))) {
+            String name = inode.getFileName();
+            if (name != null && name.trim().equals(fileName.trim())) {
+                if (inode.getSize() <= 0) {
+                    return "";
+                }
+                byte[] stored = readStoredBytes(inode);
+                if (inode.isCompressed()) {
+                    return new String(compressor.decompress(stored, inode), 0, inode.getSize());
+                }
+                return new String(stored);
+            }
+        }
+        throw new IOException("FileSystem::readSnapshot: " + fileName + " not found in " + snapshotName);
+    }
+
+    private int findSnapshot(String snapshotName) throws IOException {
+        for (int slot = 0; slot < Disk.NUM_SNAPSHOTS; slot++) {
+            if (snapshotName.equals(diskDevice.readSnapshotName(slot))) {
+                return slot;
+            }
+        }
+        throw new IOException("FileSystem::findSnapshot: " + snapshotName + " does not exist");
+    }
+
+    /**
+     * Returns one entry per data block pointer of every file, plus one entry
+     * per distinct tail block
+     */
+    private static int[] referencedBlocks(INode[] inodes) {
+        List<Integer> blocks = new ArrayList<>();
+        Set<Integer> tailBlocks = new HashSet<>();
+        for (INode inode : inodes) {
+            if (inode.getFileName() == null || inode.isInline()) {
+                continue;
+            }
+            for (int i = 0; i < inode.getBlockSpan(); i++) {
+                if (inode.getBlockPointer(i) != -1) {
+                    blocks.add(inode.getBlockPointer(i));
+                }
+            }
+            if (inode.isTailPacked() && tailBlocks.add(inode.getTailBlock())) {
+                blocks.add(inode.getTailBlock());
+            }
+        }
+        return blocks.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean isTailBlock(INode[] inodes, int block) {
+        for (INode inode : inodes) {
+            if (inode.getFileName() != null && inode.isTailPacked() && inode.getTailBlock() == block) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the bytes a file occupies on disk, following its inline,
+     * block and tail layout
+     *
+     * @param inode The inode of the file
+     * @return The stored contents of the file
+     * @throws IOException If there is an issue reading the disk data.
+     */
+    private byte[] readStoredBytes(INode inode) throws IOException {
+        flushLogFor(inode);
+        return readStoredBytes(inode, false);
+    }
+
+    /**
+     * Reads the bytes a file occupies on disk, optionally through the
+     * scheduler on behalf of the current tenant
+     */
+    private byte[] readStoredBytes(INode inode, boolean scheduled) throws IOException {
+        int storedSize = inode.getStoredSize();
+
+        if (inode.isInline()) {
+            return inode.getInlineData(storedSize);
+        }
+
+        byte[] stored = new byte[storedSize];
+        int offset = 0;
+
+        int span = inode.getBlockSpan();
+        int numBlocks = 0;
+        int[] positions = new int[span];
+        for (int i = 0; i < span; i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                positions[numBlocks++] = i;
+            }
+        }
+        int[] blockPointers = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blockPointers[i] = inode.getBlockPointer(positions[i]);
+        }
+        byte[][] blocks = scheduled ? scheduler.readBlocks(currentTenant.get(), blockPointers)
+                                    : raid.readBlocks(blockPointers);
+        // Fetch every block of the file in one request so the disks are read in parallel.
+        // Holes of a sparse file are not read at all; they stay zero in the result.
+
+        for (int i = 0; i < numBlocks; i++) {
+            int blockPointer = blockPointers[i];
+            byte[] blockData = blocks[i];
+            int blockOffset = positions[i] * Disk.BLOCK_SIZE;
+            int bytesToRead = Math.min(storedSize - blockOffset, Disk.BLOCK_SIZE);
+            System.arraycopy(blockData, 0, stored, blockOffset, bytesToRead);
+
+            System.out.printf("Read block %d: %d bytes read\n", blockPointer, bytesToRead);
+        }
+        offset = Math.min(storedSize, span * Disk.BLOCK_SIZE);
+
+        if (inode.isTailPacked()) {
+            byte[] tailData = scheduled ? scheduler.readBlocks(currentTenant.get(), new int[]{inode.getTailBlock()})[0]
+                                        : readBlock(inode.getTailBlock());
+            int tailLength = storedSize - offset;
+            System.arraycopy(tailData, inode.getTailOffset(), stored, offset, tailLength);
+
+            System.out.printf("Read tail block %d: %d bytes read\n", inode.getTailBlock(), tailLength);
+        }
+
+        return stored;
+    }
+
+    /**
+     * Appends the last <code>length</code> bytes of a file to the current shared
+     * tail block, starting a new tail block when the current one is full.
+     * A tail block starts with a header holding the number of tails stored
+     * in it and the number of bytes in use.
+     *
+     * @param inode The inode of the file, updated with the tail location
+     * @param dataBytes The contents of the file
+     * @param offset Offset of the tail within <code>dataBytes</code>
+     * @param length Length of the tail in bytes
+     * @throws IOException If there are no free blocks left for a new tail block
+     */
+    private void packTail(INode inode, byte[] dataBytes, int offset, int length) throws IOException {
+        packTail(inode, ByteBuffer.wrap(dataBytes, offset, length));
+    }
+
+    /**
+     * Packs the remaining bytes of <code>tail</code> into the current tail block
+     */
+    private void packTail(INode inode, ByteBuffer tail) throws IOException {
+        int length = tail.remaining();
+        byte[] tailData = null;
+        ByteBuffer header = null;
+
+        if (currentTailBlock != -1) {
+            tailData = readBlock(currentTailBlock);
+            header = ByteBuffer.wrap(tailData);
+            if (header.getInt(TAIL_USED_OFFSET) + length > Disk.BLOCK_SIZE) {
+                tailData = null;
+            }
+        }
+
+        if (tailData == null) {
+            currentTailBlock = allocateFreeBlock();
+            tailData = new byte[Disk.BLOCK_SIZE];
+            header = ByteBuffer.wrap(tailData);
+            header.putInt(TAIL_COUNT_OFFSET, 0);
+            header.putInt(TAIL_USED_OFFSET, TAIL_HEADER_SIZE);
+        }
+
+        // Only bytes past those in use are written, so tails a snapshot still points at are left alone
+        int tailOffset = header.getInt(TAIL_USED_OFFSET);
+        tail.get(tailData, tailOffset, length);
+        header.putInt(TAIL_COUNT_OFFSET, header.getInt(TAIL_COUNT_OFFSET) + 1);
+        header.putInt(TAIL_USED_OFFSET, tailOffset + length);
+        writeBlock(currentTailBlock, tailData);
+
+        inode.setTail(currentTailBlock, tailOffset);
+        inode.setFlags(inode.getFlags() | INode.FLAG_TAIL_PACKED);
+
+        System.out.printf("Packed %d byte tail into block %d at offset %d\n", length, currentTailBlock, tailOffset);
+    }
+
+    /**
+     * Drops the tail of a file from its shared tail block, freeing the block
+     * once no tails are left in it.
+     *
+     * @param inode The inode of the file whose tail is released
+     * @throws IOException If there is an issue reading or writing the disk data.
+     */
+    private void releaseTail(INode inode) throws IOException {
+        int tailBlock = inode.getTailBlock();
+        byte[] tailData = readBlock(tailBlock);
+        ByteBuffer header = ByteBuffer.wrap(tailData);
+        int tailsLeft = header.getInt(TAIL_COUNT_OFFSET) - 1;
+
+        if (tailsLeft > 0) {
+            header.putInt(TAIL_COUNT_OFFSET, tailsLeft);
+            writeBlock(tailBlock, tailData);
+            return;
+        }
+
+        // An emptied tail block never takes new tails, even if a snapshot keeps it alive
+        forgetTailBlock(tailBlock);
+        if (!blockTable.release(tailBlock)) {
+            header.putInt(TAIL_COUNT_OFFSET, 0);
+            writeBlock(tailBlock, tailData);
+            System.out.printf("Tail block %d is still held by a snapshot\n", tailBlock);
+            return;
+        }
+
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        freeBlockList.deallocateBlock(tailBlock);
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+
+        System.out.printf("Deallocating tail block %d\n", tailBlock);
+    }
+
+    private void freeBlock(int whichBlock) throws IOException {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        freeBlockList.deallocateBlock(whichBlock);
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+    }
+
+    /**
+     * Allocates the first free block in the free block list
+     *
+     * @return The allocated block
+     * @throws IOException If there are no free blocks left
+     */
+    private int allocateFreeBlock() throws IOException {
+        FreeBlockList freeBlockList = new FreeBlockList();
+        byte[] freeList = diskDevice.readFreeBlockList();
+        freeBlockList.setFreeBlockList(freeList);
+
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            if ((freeList[i / 8] & (1 << (i % 8))) == 0) {
+                freeBlockList.allocateBlock(i);
+                diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+                return i;
+            }
+        }
+
+        throw new IOException("Not enough free blocks available");
+    }
+
+    /**
+     * Stops packing new tails into <code>tailBlock</code>, for callers that
+     * free or rewrite tail blocks behind the file system's back
+     */
+    void forgetTailBlock(int tailBlock) {
+        if (tailBlock == currentTailBlock) {
+            currentTailBlock = -1;
+        }
+    }
+
+    private void chargeBlocks(int owner, int blocks) throws IOException {
+        Tenant tenant = tenants.get(owner);
+        if (tenant != null) {
+            tenant.chargeBlocks(blocks);
+        }
+    }
+
+    /**
+     * Fails if replacing the blocks a file is charged for with
+     * <code>blocks</code> new ones would take its owner over quota, so a
+     * rejected rewrite is turned down before the old contents are released
+     */
+    private void checkQuota(INode inode, int blocks) throws IOException {
+        Tenant tenant = tenants.get(inode.getOwner());
+        if (tenant == null) {
+            return;
+        }
+        int charged = 0;
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS && !inode.isInline(); i++) {
+            if (inode.getBlockPointer(i) != -1) {
+                charged++;
+            }
+        }
+        tenant.checkBlocks(blocks - charged);
+    }
+
+    private void releaseBlocks(int owner, int blocks) {
+        Tenant tenant = tenants.get(owner);
+        if (tenant != null) {
+            tenant.releaseBlocks(blocks);
+        }
+    }
+
+    /**
+     * Registers block I/O on a file that runs outside the lock, first
+     * waiting for conflicting I/O: a writer excludes everyone else, readers
+     * only exclude writers.  Must be called holding the lock.
+     */
+    private void beginIo(int inodeNumber, boolean isWrite) throws IOException {
+        try {
+            while (ioInFlight.containsKey(inodeNumber) && (isWrite || ioInFlight.get(inodeNumber) < 0)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("FileSystem::beginIo: interrupted waiting for inode " + inodeNumber);
+        }
+        ioInFlight.put(inodeNumber, isWrite ? -1 : ioInFlight.getOrDefault(inodeNumber, 0) + 1);
+    }
+
+    private void endIo(int inodeNumber) {
+        Integer count = ioInFlight.get(inodeNumber);
+        if (count != null && count > 1) {
+            ioInFlight.put(inodeNumber, count - 1);
+        } else {
+            ioInFlight.remove(inodeNumber);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until no block I/O on the file runs outside the lock
+     */
+    synchronized void awaitIo(int inodeNumber) throws IOException {
+        try {
+            while (ioInFlight.containsKey(inodeNumber)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("FileSystem::awaitIo: interrupted waiting for inode " + inodeNumber);
+        }
+    }
+
+    /**
+     * Waits until no block I/O runs outside the lock, so that every block
+     * allocated is referenced by an inode
+     */
+    synchronized void awaitIdle() throws IOException {
+        try {
+            while (!ioInFlight.isEmpty()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("FileSystem::awaitIdle: interrupted waiting for I/O to finish");
+        }
+    }
+
+    private void awaitIdleUninterruptibly() {
+        boolean interrupted = false;
+        while (!ioInFlight.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized boolean hasIoInFlight(int inodeNumber) {
+        return ioInFlight.containsKey(inodeNumber);
+    }
+
+    /**
+     * Returns the inode of the open file if <code>fileDescriptor</code> is
+     * the open file, saving a read of the inode table
+     */
+    private INode openOrReadINode(int fileDescriptor) throws IOException {
+        if (this.iNodeForFile != null && fileDescriptor == this.iNodeNumber) {
+            return this.iNodeForFile;
+        }
+        return loadINode(fileDescriptor);
+    }
+
+    /**
+     * Keeps the inode cached by <code>open</code> in step with the disk so that
+     * <code>close</code> does not write back stale contents.
+     */
+    void refreshOpenINode(int fileDescriptor, INode inode) {
+        if (this.iNodeForFile != null && fileDescriptor == this.iNodeNumber) {
+            this.iNodeForFile = inode;
+        }
+        if (names != null) {
+            names.set(fileDescriptor, inode.getFileName());
+        }
+    }
+
+    /**
+     * Reads a block from the disk it is striped onto
+     */
+    /**
+     * Reads file data for a path that works under the lock.  With a
+     * scheduler the reads are still queued in it on behalf of the current
+     * tenant, interleaved with other tenants' requests.
+     */
+    private byte[][] readDataBlocks(int[] blocks) throws IOException {
+        for (int block : blocks) {
+            if (log != null && log.isBuffered(block)) {
+                log.flush();
+                break;
+            }
+        }
+        return scheduler != null ? scheduler.readBlocks(currentTenant.get(), blocks) : raid.readBlocks(blocks);
+    }
+
+    /**
+     * Writes file data for a path that works under the lock, through the
+     * scheduler when there is one
+     */
+    private void writeDataBlocks(int[] blocks, byte[][] blockData) throws IOException {
+        if (scheduler != null) {
+            scheduler.writeBlocks(currentTenant.get(), blocks, blockData);
+        } else {
+            raid.writeBlocks(blocks, blockData);
+        }
+    }
+
+    private byte[] readBlock(int whichBlock) throws IOException {
+        if (log != null && log.isBuffered(whichBlock)) {
+            log.flush();
+        }
+        return raid.readBlock(whichBlock);
+    }
+
+    /**
+     * Writes a block to the disk it is striped onto
+     */
+    private void writeBlock(int whichBlock, byte[] blockData) throws IOException {
+        raid.writeBlock(whichBlock, blockData);
+    }
 }
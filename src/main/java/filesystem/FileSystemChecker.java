@@ -0,0 +1,342 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+/**
+ * Consistency checker for a <code>FileSystem</code>.  The inode table is
+ * read in one bulk read and split into chunks that are scanned in parallel
+ * on a fork/join pool, counting the references to every data block.  The
+ * counts are then compared against the free block list, the block table
+ * and the tail block headers to find out-of-range pointers, blocks
+ * allocated to more than one file, leaked blocks and referenced blocks
+ * that are marked free.  Blocks kept alive by snapshots count as
+ * referenced.  Optionally the problems are repaired.
+ */
+public class FileSystemChecker {
+    // Number of inodes a single fork/join task scans without splitting
+    private static final int INODES_PER_TASK = 64;
+
+    private final FileSystem fileSystem;
+
+    public FileSystemChecker(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * References to the data blocks gathered from the inode table
+     */
+    private static class Scan {
+        final INode[] inodes;
+        final AtomicIntegerArray dataRefs = new AtomicIntegerArray(Disk.NUM_BLOCKS);
+        final AtomicIntegerArray tailRefs = new AtomicIntegerArray(Disk.NUM_BLOCKS);
+        // Data references from snapshots, also included in dataRefs
+        final int[] snapshotDataRefs = new int[Disk.NUM_BLOCKS];
+        // Number of snapshots holding each tail block
+        final int[] snapshotTailRefs = new int[Disk.NUM_BLOCKS];
+        // {inode number, pointer index}, pointer index -1 for the tail block
+        final Queue<int[]> outOfRange = new ConcurrentLinkedQueue<>();
+        // Summaries, inode copies and reserved slots of the segment log, allocated but referenced by no inode
+        final BitSet logOwned;
+
+        Scan(INode[] inodes, BitSet logOwned) {
+            this.inodes = inodes;
+            this.logOwned = logOwned;
+        }
+    }
+
+    /**
+     * Counts the block references of a range of inodes, splitting the range
+     * in two until it is small enough to scan directly
+     */
+    private static class InodeScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+        private final int from;
+        private final int to;
+
+        InodeScanTask(Scan scan, int from, int to) {
+            this.scan = scan;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= INODES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    scanINode(i, scan.inodes[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new InodeScanTask(scan, from, middle), new InodeScanTask(scan, middle, to));
+        }
+
+        private void scanINode(int inodeNumber, INode inode) {
+            if (inode.getFileName() == null || inode.isInline()) {
+                return;
+            }
+
+            for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+                int blockPointer = inode.getBlockPointer(i);
+                // Holes of sparse files; other files have nothing after their first -1
+                if (blockPointer == -1) continue;
+
+                if (blockPointer < 0 || blockPointer >= Disk.NUM_BLOCKS) {
+                    scan.outOfRange.add(new int[]{inodeNumber, i});
+                } else {
+                    scan.dataRefs.incrementAndGet(blockPointer);
+                }
+            }
+
+            if (inode.isTailPacked()) {
+                int tailBlock = inode.getTailBlock();
+                if (tailBlock < 0 || tailBlock >= Disk.NUM_BLOCKS) {
+                    scan.outOfRange.add(new int[]{inodeNumber, -1});
+                } else {
+                    scan.tailRefs.incrementAndGet(tailBlock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the file system and optionally repairs what it finds
+     *
+     * @param repair True to fix the problems found
+     * @return The problems found
+     * @throws IOException If there is an issue reading or writing the disk data.
+     */
+    public FsckReport check(boolean repair) throws IOException {
+        synchronized (fileSystem) {
+            // Blocks of writes still in flight are allocated but not yet referenced
+            fileSystem.awaitIdle();
+            // Inodes still in the segment log go to the inode table first
+            fileSystem.sync();
+            Scan scan = scanINodes();
+            byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+            FsckReport report = new FsckReport();
+
+            for (int[] bad : scan.outOfRange) {
+                INode inode = scan.inodes[bad[0]];
+                int pointer = bad[1] == -1 ? inode.getTailBlock() : inode.getBlockPointer(bad[1]);
+                report.getOutOfRange().add("inode " + bad[0] +
+                        (bad[1] == -1 ? " tail block " : " pointer " + bad[1] + " ") + "-> " + pointer);
+            }
+
+            BlockReferenceTable blockTable = fileSystem.blockTable;
+            report.getDoubleAllocated().addAll(blocksWhere(b -> {
+                int refs = scan.dataRefs.get(b);
+                return (refs > 0 && isTail(scan, b)) ||
+                       refs > Math.max(1, blockTable.getRefCount(b));
+            }));
+            report.getLeaked().addAll(blocksWhere(b ->
+                    isAllocated(freeList, b) && !isReferenced(scan, b) && !scan.logOwned.get(b)));
+            report.getUnmarked().addAll(blocksWhere(b ->
+                    !isAllocated(freeList, b) && isReferenced(scan, b)));
+            // Tail blocks are counted by their header, not by the block table
+            report.getRefCountMismatches().addAll(blocksWhere(b ->
+                    blockTable.getRefCount(b) > 0 && !isTail(scan, b) &&
+                    blockTable.getRefCount(b) != scan.dataRefs.get(b)));
+
+            for (int b : blocksWhere(b -> scan.tailRefs.get(b) > 0)) {
+                if (tailCount(b) != scan.tailRefs.get(b)) {
+                    report.getTailCountMismatches().add(b);
+                }
+            }
+
+            System.out.println("fsck: " + report);
+            if (repair && !report.isClean()) {
+                repair(scan, report);
+                report.setRepaired(true);
+            }
+            return report;
+        }
+    }
+
+    /**
+     * Reads the inode table in bulk and counts block references in parallel,
+     * then adds the references held by snapshots
+     */
+    private Scan scanINodes() throws IOException {
+        SegmentLog log = fileSystem.getSegmentLog();
+        Scan scan = new Scan(fileSystem.diskDevice.readInodeTable(),
+                log == null ? new BitSet() : log.getOwnedBlocks());
+        ForkJoinPool.commonPool().invoke(new InodeScanTask(scan, 0, Disk.NUM_INODES));
+
+        for (int slot = 0; slot < Disk.NUM_SNAPSHOTS; slot++) {
+            if (fileSystem.diskDevice.readSnapshotName(slot) == null) {
+                continue;
+            }
+            Set<Integer> tailBlocks = new HashSet<>();
+            for (INode inode : Disk.parseInodeTable(fileSystem.diskDevice.readSnapshotInodeRegion(slot))) {
+                if (inode.getFileName() == null || inode.isInline()) {
+                    continue;
+                }
+                for (int i = 0; i < inode.getBlockSpan(); i++) {
+                    int blockPointer = inode.getBlockPointer(i);
+                    if (blockPointer >= 0 && blockPointer < Disk.NUM_BLOCKS) {
+                        scan.dataRefs.incrementAndGet(blockPointer);
+                        scan.snapshotDataRefs[blockPointer]++;
+                    }
+                }
+                int tailBlock = inode.getTailBlock();
+                if (inode.isTailPacked() && tailBlock >= 0 && tailBlock < Disk.NUM_BLOCKS &&
+                        tailBlocks.add(tailBlock)) {
+                    scan.snapshotTailRefs[tailBlock]++;
+                }
+            }
+        }
+        return scan;
+    }
+
+    private void repair(Scan scan, FsckReport report) throws IOException {
+        // Cut files off at their first out-of-range pointer
+        for (int[] bad : scan.outOfRange) {
+            INode inode = scan.inodes[bad[0]];
+            if (bad[1] == -1) {
+                inode.setSize(inode.getSize() - (inode.getSize() % Disk.BLOCK_SIZE));
+                inode.setTail(-1, -1);
+                inode.setFlags(inode.getFlags() & ~INode.FLAG_TAIL_PACKED);
+            } else {
+                for (int i = bad[1]; i < INode.NUM_BLOCK_POINTERS; i++) {
+                    inode.setBlockPointer(i, -1);
+                }
+                inode.setSize(bad[1] * Disk.BLOCK_SIZE);
+                inode.setTail(-1, -1);
+                inode.setFlags(inode.getFlags() & ~(INode.FLAG_TAIL_PACKED | INode.FLAG_COMPRESSED));
+            }
+            writeINode(bad[0], inode);
+        }
+        if (!scan.outOfRange.isEmpty()) {
+            scan = scanINodes();
+        }
+
+        // Give every extra owner of a block that is not meant to be shared its own copy
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(fileSystem.diskDevice.readFreeBlockList());
+        for (int block : report.getDoubleAllocated()) {
+            boolean tracked = fileSystem.blockTable.getRefCount(block) > 0 && !isTail(scan, block);
+            if (tracked) {
+                // Reference count is repaired below
+                continue;
+            }
+
+            // Snapshots are read-only, so the snapshot keeps the original when it has one
+            boolean ownerKept = isTail(scan, block) || scan.snapshotDataRefs[block] > 0;
+            byte[] contents = fileSystem.raid.readBlock(block);
+            for (int n = 0; n < Disk.NUM_INODES; n++) {
+                INode inode = scan.inodes[n];
+                if (inode.getFileName() == null || inode.isInline()) {
+                    continue;
+                }
+                for (int i = 0; i < inode.getBlockSpan(); i++) {
+                    if (inode.getBlockPointer(i) != block) {
+                        continue;
+                    }
+                    if (!ownerKept) {
+                        ownerKept = true;
+                        continue;
+                    }
+                    int copy = allocateUnreferenced(freeBlockList, scan);
+                    fileSystem.raid.writeBlock(copy, contents);
+                    inode.setBlockPointer(i, copy);
+                    writeINode(n, inode);
+                    System.out.printf("fsck: gave inode %d its own copy of block %d in block %d%n", n, block, copy);
+                }
+            }
+        }
+        fileSystem.diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        scan = scanINodes();
+
+        // Make the free block list, block table and tail headers match the references
+        freeBlockList.setFreeBlockList(fileSystem.diskDevice.readFreeBlockList());
+        BlockReferenceTable blockTable = fileSystem.blockTable;
+        for (int b = 0; b < Disk.NUM_BLOCKS; b++) {
+            int dataRefs = scan.dataRefs.get(b);
+            int tailRefs = scan.tailRefs.get(b);
+
+            if (scan.logOwned.get(b)) {
+                continue;
+            }
+            if (!isReferenced(scan, b)) {
+                if (blockTable.getRefCount(b) > 0) {
+                    blockTable.setRefCount(b, 0);
+                }
+                freeBlockList.deallocateBlock(b);
+                fileSystem.forgetTailBlock(b);
+                continue;
+            }
+
+            freeBlockList.allocateBlock(b);
+            if (!isTail(scan, b) && (blockTable.getRefCount(b) > 0 || dataRefs > 1) &&
+                    blockTable.getRefCount(b) != dataRefs) {
+                blockTable.setRefCount(b, dataRefs);
+            }
+            if (tailRefs > 0 && tailCount(b) != tailRefs) {
+                byte[] tailData = fileSystem.raid.readBlock(b);
+                ByteBuffer.wrap(tailData).putInt(FileSystem.TAIL_COUNT_OFFSET, tailRefs);
+                fileSystem.raid.writeBlock(b, tailData);
+            }
+        }
+        fileSystem.diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        System.out.println("fsck: repairs complete");
+    }
+
+    private void writeINode(int inodeNumber, INode inode) throws IOException {
+        fileSystem.diskDevice.writeInode(inode, inodeNumber);
+        fileSystem.refreshOpenINode(inodeNumber, inode);
+    }
+
+    /**
+     * Allocates a block that is free in the list and referenced by no file
+     */
+    private static int allocateUnreferenced(FreeBlockList freeBlockList, Scan scan) throws IOException {
+        byte[] freeList = freeBlockList.getFreeBlockList();
+        for (int b = 0; b < Disk.NUM_BLOCKS; b++) {
+            if (!isAllocated(freeList, b) && !isReferenced(scan, b)) {
+                freeBlockList.allocateBlock(b);
+                scan.dataRefs.incrementAndGet(b);
+                return b;
+            }
+        }
+        throw new IOException("FileSystemChecker: no free block left to repair a double allocation");
+    }
+
+    private int tailCount(int tailBlock) throws IOException {
+        return ByteBuffer.wrap(fileSystem.raid.readBlock(tailBlock)).getInt(FileSystem.TAIL_COUNT_OFFSET);
+    }
+
+    private static boolean isTail(Scan scan, int block) {
+        return scan.tailRefs.get(block) > 0 || scan.snapshotTailRefs[block] > 0;
+    }
+
+    private static boolean isReferenced(Scan scan, int block) {
+        return scan.dataRefs.get(block) > 0 || isTail(scan, block);
+    }
+
+    private static List<Integer> blocksWhere(IntPredicate test) {
+        return IntStream.range(0, Disk.NUM_BLOCKS).parallel().filter(test).boxed()
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    private static boolean isAllocated(byte[] freeList, int block) {
+        return (freeList[block / 8] & (1 << (block % 8))) != 0;
+    }
+}
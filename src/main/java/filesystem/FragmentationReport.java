@@ -0,0 +1,81 @@
+package filesystem;
+
+
+/**
+ * Snapshot of how fragmented the files and the free space of a
+ * <code>FileSystem</code> are, as measured by <code>Defragmenter</code>
+ */
+public class FragmentationReport {
+    private final int files;
+    private final int fragmentedFiles;
+    private final int fileExtents;
+    private final int freeBlocks;
+    private final int freeExtents;
+    private final int largestFreeRun;
+
+    public FragmentationReport(int files, int fragmentedFiles, int fileExtents,
+                               int freeBlocks, int freeExtents, int largestFreeRun) {
+        this.files = files;
+        this.fragmentedFiles = fragmentedFiles;
+        this.fileExtents = fileExtents;
+        this.freeBlocks = freeBlocks;
+        this.freeExtents = freeExtents;
+        this.largestFreeRun = largestFreeRun;
+    }
+
+    /**
+     * Returns the number of files stored in data blocks
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * Returns the number of files whose blocks are not one contiguous run
+     */
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    /**
+     * Returns the total number of contiguous runs making up the files
+     */
+    public int getFileExtents() {
+        return fileExtents;
+    }
+
+    /**
+     * Returns the number of free data blocks
+     */
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    /**
+     * Returns the number of separate runs of free blocks
+     */
+    public int getFreeExtents() {
+        return freeExtents;
+    }
+
+    /**
+     * Returns the length of the longest run of free blocks
+     */
+    public int getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    /**
+     * Returns the average number of runs per file, 1.0 when nothing is fragmented
+     */
+    public double getExtentsPerFile() {
+        return files == 0 ? 1.0 : (double) fileExtents / files;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d files fragmented, %.2f extents per file, " +
+                        "%d free blocks in %d runs, largest free run %d",
+                fragmentedFiles, files, getExtentsPerFile(), freeBlocks, freeExtents, largestFreeRun);
+    }
+}
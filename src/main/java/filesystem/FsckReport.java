@@ -0,0 +1,88 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Problems found by <code>FileSystemChecker</code> in the inode table,
+ * the free block list and the block table
+ */
+public class FsckReport {
+    private final List<String> outOfRange = new ArrayList<>();
+    private final List<Integer> doubleAllocated = new ArrayList<>();
+    private final List<Integer> leaked = new ArrayList<>();
+    private final List<Integer> unmarked = new ArrayList<>();
+    private final List<Integer> refCountMismatches = new ArrayList<>();
+    private final List<Integer> tailCountMismatches = new ArrayList<>();
+    private boolean repaired;
+
+    /**
+     * Returns a description of every block pointer that lies outside the data blocks
+     */
+    public List<String> getOutOfRange() {
+        return outOfRange;
+    }
+
+    /**
+     * Returns the blocks referenced by more files than are allowed to share them
+     */
+    public List<Integer> getDoubleAllocated() {
+        return doubleAllocated;
+    }
+
+    /**
+     * Returns the blocks marked in use in the free block list that no file references
+     */
+    public List<Integer> getLeaked() {
+        return leaked;
+    }
+
+    /**
+     * Returns the blocks referenced by a file but marked free in the free block list
+     */
+    public List<Integer> getUnmarked() {
+        return unmarked;
+    }
+
+    /**
+     * Returns the shared blocks whose reference count does not match their references
+     */
+    public List<Integer> getRefCountMismatches() {
+        return refCountMismatches;
+    }
+
+    /**
+     * Returns the tail blocks whose tail count does not match the tails packed in them
+     */
+    public List<Integer> getTailCountMismatches() {
+        return tailCountMismatches;
+    }
+
+    /**
+     * Returns true if the problems in this report have been repaired
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    void setRepaired(boolean repaired) {
+        this.repaired = repaired;
+    }
+
+    /**
+     * Returns true if no problems were found
+     */
+    public boolean isClean() {
+        return outOfRange.isEmpty() && doubleAllocated.isEmpty() && leaked.isEmpty() &&
+               unmarked.isEmpty() && refCountMismatches.isEmpty() && tailCountMismatches.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d out-of-range pointers, %d double-allocated, %d leaked, %d unmarked, " +
+                        "%d reference count mismatches, %d tail count mismatches%s",
+                outOfRange.size(), doubleAllocated.size(), leaked.size(), unmarked.size(),
+                refCountMismatches.size(), tailCountMismatches.size(), repaired ? " (repaired)" : "");
+    }
+}
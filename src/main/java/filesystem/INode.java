@@ -6,17 +6,69 @@ public class INode {
     public final static int FILE_NAME_SIZE = 64;
     public final static int SIZE_FIELD_SIZE = Integer.SIZE;
     public final static int BLOCK_POINTER_SIZE = Integer.SIZE;
+    public final static int FLAGS_FIELD_SIZE = Integer.SIZE;
+    public final static int TAIL_FIELD_SIZE = 2 * Integer.SIZE;
+    public final static int NUM_CHUNK_ENTRIES = 16;
+    public final static int CHUNK_INDEX_SIZE = NUM_CHUNK_ENTRIES * Integer.SIZE;
+    public final static int GENERATION_FIELD_SIZE = Integer.SIZE;
+    public final static int OWNER_FIELD_SIZE = Integer.SIZE;
+
+    /**
+     * Number of bytes a file may occupy and still be stored inside the
+     * block pointer area of its inode instead of in a data block
+     */
+    public final static int INLINE_DATA_SIZE = NUM_BLOCK_POINTERS * Integer.BYTES;
+
+    /**
+     * The file contents live in the block pointer area
+     */
+    public final static int FLAG_INLINE = 0x1;
+
+    /**
+     * The partial final block of the file lives in a shared tail block
+     */
+    public final static int FLAG_TAIL_PACKED = 0x2;
+
+    /**
+     * New contents written to the file are compressed
+     */
+    public final static int FLAG_COMPRESS = 0x4;
+
+    /**
+     * The stored contents are compressed chunks described by the chunk index
+     */
+    public final static int FLAG_COMPRESSED = 0x8;
+
+    /**
+     * Some block pointers before the end of the file are -1; those blocks
+     * are holes that read as zeros and take no space
+     */
+    public final static int FLAG_SPARSE = 0x10;
 
     /**
      * File name size + size(integer) + size(integer  * number_of_block_addresses
+     * + flags(integer) + tail block and tail offset(integers)
+     * + size(integer) * number_of_chunk_index_entries + generation(integer)
+     * + owner(integer)
      */
     public final static int INODE_SIZE = FILE_NAME_SIZE +
             Integer.SIZE +
-            (Integer.SIZE * NUM_BLOCK_POINTERS);
+            (Integer.SIZE * NUM_BLOCK_POINTERS) +
+            FLAGS_FIELD_SIZE +
+            TAIL_FIELD_SIZE +
+            CHUNK_INDEX_SIZE +
+            GENERATION_FIELD_SIZE +
+            OWNER_FIELD_SIZE;
 
     private String fileName;
     private int fileSize;
     private int[] blockPointers;
+    private int flags;
+    private int tailBlock;
+    private int tailOffset;
+    private int[] chunkIndex;
+    private int generation;
+    private int owner;
 
 
     public INode() {
@@ -26,6 +78,12 @@ public class INode {
         for (int i = 0; i < blockPointers.length; i++) {
             blockPointers[i] = -1;
         }
+        flags = 0;
+        tailBlock = -1;
+        tailOffset = -1;
+        chunkIndex = new int[NUM_CHUNK_ENTRIES];
+        generation = 0;
+        owner = Tenant.NO_TENANT;
     }
 
     /**
@@ -50,12 +108,272 @@ public class INode {
      * @return Returns the size of the file in bytes as a four byte array
      */
     public byte[] getSizeBytes() {
-        return new byte[]{
-                (byte) (this.fileSize >> 24),
-                (byte) (this.fileSize >> 16),
-                (byte) (this.fileSize >> 8),
-                (byte) this.fileSize
-        };
+        return toBytes(this.fileSize);
+    }
+
+    /**
+     * Sets the generation of the inode, which counts the writes to the file
+     * so that a snapshot copy can be told apart from later versions
+     *
+     * @param generation The generation number
+     */
+    public void setGeneration(int generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Returns the generation of the inode
+     * @return Returns the number of times the file has been written
+     */
+    public int getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Returns the generation of the inode as a four byte array
+     * @return Returns the generation of the inode as a four byte array
+     */
+    public byte[] getGenerationBytes() {
+        return toBytes(this.generation);
+    }
+
+    /**
+     * Sets the tenant that owns the file and is charged for its blocks
+     *
+     * @param owner Id of the owning tenant, <code>Tenant.NO_TENANT</code> if none
+     */
+    public void setOwner(int owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the tenant that owns the file
+     * @return Returns the id of the owning tenant, <code>Tenant.NO_TENANT</code> if none
+     */
+    public int getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * Returns the owner of the file as a four byte array
+     * @return Returns the owner of the file as a four byte array
+     */
+    public byte[] getOwnerBytes() {
+        return toBytes(this.owner);
+    }
+
+    /**
+     * Sets the layout flags of the file
+     *
+     * @param flags Combination of <code>FLAG_INLINE</code> and
+     *              <code>FLAG_TAIL_PACKED</code>
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * Returns the layout flags of the file
+     * @return Returns the layout flags of the file
+     */
+    public int getFlags() {
+        return this.flags;
+    }
+
+    /**
+     * Returns the layout flags of the file as a four byte array
+     * @return Returns the layout flags of the file as a four byte array
+     */
+    public byte[] getFlagsBytes() {
+        return toBytes(this.flags);
+    }
+
+    /**
+     * Returns true if the contents of the file are stored in the inode itself
+     * @return Returns true if the file is stored inline
+     */
+    public boolean isInline() {
+        return (flags & FLAG_INLINE) != 0;
+    }
+
+    /**
+     * Returns true if the partial final block of the file is packed into a
+     * tail block shared with other files
+     * @return Returns true if the file has a packed tail
+     */
+    public boolean isTailPacked() {
+        return (flags & FLAG_TAIL_PACKED) != 0;
+    }
+
+    /**
+     * Returns true if the stored contents of the file are compressed
+     * @return Returns true if the file is stored compressed
+     */
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Returns true if the file may have holes between its blocks
+     * @return Returns true if the file is sparse
+     */
+    public boolean isSparse() {
+        return (flags & FLAG_SPARSE) != 0;
+    }
+
+    /**
+     * Returns one past the position of the last block pointer in use.
+     * Pointers below it that are -1 are holes of a sparse file.
+     * @return Returns the number of block pointers the file spans
+     */
+    public int getBlockSpan() {
+        if (isInline()) {
+            return 0;
+        }
+        int span = NUM_BLOCK_POINTERS;
+        while (span > 0 && blockPointers[span - 1] == -1) {
+            span--;
+        }
+        return span;
+    }
+
+    /**
+     * Returns the number of bytes the file occupies on disk, which is less
+     * than its size when the contents are compressed
+     * @return Returns the stored size of the file in bytes
+     */
+    public int getStoredSize() {
+        if (!isCompressed()) {
+            return this.fileSize;
+        }
+
+        int numChunks = (this.fileSize + ChunkCompressor.CHUNK_SIZE - 1) / ChunkCompressor.CHUNK_SIZE;
+        return chunkIndex[numChunks - 1];
+    }
+
+    /**
+     * Sets entry <code>whichOne</code> of the compressed chunk index
+     *
+     * @param whichOne Position in the chunk index
+     * @param value Offset just past the end of the compressed chunk in the stored contents
+     * @throws IllegalArgumentException If <code>whichOne</code> exceeds the
+     *                                  size of the chunk index
+     */
+    public void setChunkEnd(int whichOne, int value) throws IllegalArgumentException {
+        if (whichOne >= NUM_CHUNK_ENTRIES) {
+            throw new IllegalArgumentException("INode::setChunkEnd:  " +
+                    "chunk index greater than " +
+                    NUM_CHUNK_ENTRIES);
+        }
+        chunkIndex[whichOne] = value;
+    }
+
+    /**
+     * Returns entry <code>whichOne</code> of the compressed chunk index
+     *
+     * @param whichOne Position in the chunk index
+     * @return Returns the offset just past the end of the compressed chunk
+     * @throws IllegalArgumentException If <code>whichOne</code> exceeds the
+     *                                  size of the chunk index
+     */
+    public int getChunkEnd(int whichOne) throws IllegalArgumentException {
+        if (whichOne >= NUM_CHUNK_ENTRIES) {
+            throw new IllegalArgumentException("INode::getChunkEnd:  " +
+                    "chunk index greater than " +
+                    NUM_CHUNK_ENTRIES);
+        }
+        return chunkIndex[whichOne];
+    }
+
+    /**
+     * Returns the chunk index as an array of bytes
+     * @return Returns the chunk index as an array of bytes
+     */
+    public byte[] getChunkIndexBytes() {
+        byte[] result = new byte[NUM_CHUNK_ENTRIES * Integer.BYTES];
+        for (int i = 0; i < NUM_CHUNK_ENTRIES; i++) {
+            System.arraycopy(toBytes(chunkIndex[i]), 0, result, i * Integer.BYTES, Integer.BYTES);
+        }
+        return result;
+    }
+
+    /**
+     * Records where the packed tail of the file is stored
+     *
+     * @param block The shared tail block holding the tail
+     * @param offset Byte offset of the tail within <code>block</code>
+     */
+    public void setTail(int block, int offset) {
+        this.tailBlock = block;
+        this.tailOffset = offset;
+    }
+
+    /**
+     * Returns the shared tail block holding the tail of the file
+     * @return Returns the tail block, or -1 if the file has no packed tail
+     */
+    public int getTailBlock() {
+        return this.tailBlock;
+    }
+
+    /**
+     * Returns the offset of the tail of the file within its tail block
+     * @return Returns the tail offset, or -1 if the file has no packed tail
+     */
+    public int getTailOffset() {
+        return this.tailOffset;
+    }
+
+    /**
+     * Returns the tail block and tail offset as an eight byte array
+     * @return Returns the tail block and tail offset as an eight byte array
+     */
+    public byte[] getTailBytes() {
+        byte[] result = new byte[2 * Integer.BYTES];
+        System.arraycopy(toBytes(this.tailBlock), 0, result, 0, Integer.BYTES);
+        System.arraycopy(toBytes(this.tailOffset), 0, result, Integer.BYTES, Integer.BYTES);
+        return result;
+    }
+
+    /**
+     * Stores <code>data</code> in the block pointer area of the inode.
+     * The block pointers are overwritten, so the caller must have released
+     * any blocks the file was using.
+     *
+     * @param data Contents of the file
+     * @throws IllegalArgumentException If <code>data</code> is longer than
+     *                                  <code>INLINE_DATA_SIZE</code>
+     */
+    public void setInlineData(byte[] data) throws IllegalArgumentException {
+        if (data.length > INLINE_DATA_SIZE) {
+            throw new IllegalArgumentException("INode::setInlineData:  " +
+                    "size exceeds " + INLINE_DATA_SIZE + " bytes");
+        }
+
+        byte[] padded = new byte[INLINE_DATA_SIZE];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            int base = i * Integer.BYTES;
+            blockPointers[i] = ((padded[base] & 0xFF) << 24) |
+                               ((padded[base + 1] & 0xFF) << 16) |
+                               ((padded[base + 2] & 0xFF) << 8) |
+                               (padded[base + 3] & 0xFF);
+        }
+        flags |= FLAG_INLINE;
+    }
+
+    /**
+     * Returns the first <code>length</code> bytes stored in the block pointer area
+     *
+     * @param length Number of bytes to return
+     * @return Returns the inline contents of the file
+     */
+    public byte[] getInlineData(int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (blockPointers[i / Integer.BYTES] >> (24 - 8 * (i % Integer.BYTES)));
+        }
+        return result;
     }
 
     /**
@@ -159,11 +477,15 @@ public class INode {
 
         int result = getBlockPointer(whichOne);
 
+        return toBytes(result);
+    }
+
+    private static byte[] toBytes(int value) {
         return new byte[]{
-                (byte) (result >> 24),
-                (byte) (result >> 16),
-                (byte) (result >> 8),
-                (byte) result
+                (byte) (value >> 24),
+                (byte) (value >> 16),
+                (byte) (value >> 8),
+                (byte) value
         };
     }
 }
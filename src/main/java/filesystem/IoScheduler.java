@@ -0,0 +1,286 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Weighted fair queue between a <code>FileSystem</code> and its disks.
+ * Every read or write is split into single block requests that wait in a
+ * queue per tenant, and the worker threads always dispatch the request
+ * with the smallest virtual finish tag.  A tenant's tag grows by one block
+ * divided by its weight per request, so a large write from one tenant is
+ * interleaved block by block with the requests of the others instead of
+ * holding the device until it is done.
+ *
+ * A worker also takes the requests queued right behind the one it
+ * dispatches that come from the same call and fall in the same RAID 5
+ * stripe, for writes, or the same run of a mirrored read, and sends them to
+ * the array together; the array then still writes whole stripes without
+ * reading old parity and splits long reads across the copies.  Each of them
+ * is charged to the tenant like any other request.
+ *
+ * A tenant whose operation or byte token bucket is empty is skipped until
+ * its tokens come back.  Requests made without a tenant share one queue
+ * with weight 1 and no limits.
+ */
+public class IoScheduler {
+    private final RaidArray raid;
+    private final Tenant unassigned = new Tenant(Integer.MAX_VALUE, "unassigned", 1);
+    private final Map<Tenant, TenantQueue> queues = new LinkedHashMap<>();
+    private final Thread[] workers;
+    private double virtualTime;
+    private boolean running = true;
+
+    /**
+     * The requests of one read or write call
+     */
+    private static class Batch {
+        final CountDownLatch done;
+        final byte[][] blockData;
+        volatile IOException error;
+
+        Batch(int size, byte[][] blockData) {
+            this.done = new CountDownLatch(size);
+            this.blockData = blockData;
+        }
+    }
+
+    /**
+     * A single block to read or write
+     */
+    private static class BlockRequest {
+        final Batch batch;
+        final int index;
+        final int whichBlock;
+        final boolean isWrite;
+        double finishTag;
+
+        BlockRequest(Batch batch, int index, int whichBlock, boolean isWrite) {
+            this.batch = batch;
+            this.index = index;
+            this.whichBlock = whichBlock;
+            this.isWrite = isWrite;
+        }
+    }
+
+    private static class TenantQueue {
+        final Tenant tenant;
+        final ArrayDeque<BlockRequest> pending = new ArrayDeque<>();
+        double lastFinishTag;
+        long served;
+
+        TenantQueue(Tenant tenant) {
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * Creates a scheduler and starts its worker threads
+     *
+     * @param raid The array the requests are dispatched to
+     * @param queueDepth Number of block requests the device works on at once
+     * @throws IllegalArgumentException If <code>queueDepth</code> is not positive
+     */
+    public IoScheduler(RaidArray raid, int queueDepth) throws IllegalArgumentException {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("IoScheduler: queue depth must be positive, got " + queueDepth);
+        }
+        this.raid = raid;
+        this.workers = new Thread[queueDepth];
+        for (int i = 0; i < queueDepth; i++) {
+            workers[i] = new Thread(this::runWorker, "io-scheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Reads blocks on behalf of a tenant, waiting for its turn on the device
+     *
+     * @param tenant The tenant making the request, or null
+     * @param blocks The logical blocks to read
+     * @return The contents of the blocks, in the order requested
+     * @throws IOException If a block cannot be read or the wait is interrupted
+     */
+    public byte[][] readBlocks(Tenant tenant, int[] blocks) throws IOException {
+        Batch batch = new Batch(blocks.length, new byte[blocks.length][]);
+        submit(tenant, batch, blocks, false);
+        return batch.blockData;
+    }
+
+    /**
+     * Writes blocks on behalf of a tenant, waiting for its turn on the device
+     *
+     * @param tenant The tenant making the request, or null
+     * @param blocks The logical blocks to write
+     * @param blockData The contents of each block
+     * @throws IOException If a block cannot be written or the wait is interrupted
+     */
+    public void writeBlocks(Tenant tenant, int[] blocks, byte[][] blockData) throws IOException {
+        submit(tenant, new Batch(blocks.length, blockData), blocks, true);
+    }
+
+    /**
+     * Returns the number of block requests dispatched for a tenant
+     *
+     * @param tenant The tenant, or null for requests made without one
+     * @return The number of blocks read or written on its behalf
+     */
+    public synchronized long getBlocksServed(Tenant tenant) {
+        TenantQueue queue = queues.get(tenant == null ? unassigned : tenant);
+        return queue == null ? 0 : queue.served;
+    }
+
+    /**
+     * Stops the workers; requests still queued fail
+     */
+    public synchronized void shutdown() {
+        running = false;
+        for (TenantQueue queue : queues.values()) {
+            for (BlockRequest request : queue.pending) {
+                request.batch.error = new IOException("IoScheduler: shut down before the request was served");
+                request.batch.done.countDown();
+            }
+            queue.pending.clear();
+        }
+        notifyAll();
+    }
+
+    private void submit(Tenant tenant, Batch batch, int[] blocks, boolean isWrite) throws IOException {
+        synchronized (this) {
+            if (!running) {
+                throw new IOException("IoScheduler: scheduler has been shut down");
+            }
+            TenantQueue queue = queues.computeIfAbsent(tenant == null ? unassigned : tenant, TenantQueue::new);
+            for (int i = 0; i < blocks.length; i++) {
+                BlockRequest request = new BlockRequest(batch, i, blocks[i], isWrite);
+                queue.lastFinishTag = Math.max(virtualTime, queue.lastFinishTag) +
+                                      (double) Disk.BLOCK_SIZE / queue.tenant.getWeight();
+                request.finishTag = queue.lastFinishTag;
+                queue.pending.addLast(request);
+            }
+            notifyAll();
+        }
+
+        try {
+            batch.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("IoScheduler: interrupted waiting for block I/O");
+        }
+        if (batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    /**
+     * Takes the eligible request with the smallest finish tag, and the
+     * requests behind it that the array should see together with it,
+     * waiting for requests or for tokens as needed
+     *
+     * @return The requests to dispatch, or null once the scheduler is shut down
+     */
+    private synchronized List<BlockRequest> next() throws InterruptedException {
+        while (running) {
+            TenantQueue best = null;
+            long earliestTokens = Long.MAX_VALUE;
+
+            for (TenantQueue queue : queues.values()) {
+                if (queue.pending.isEmpty()) {
+                    continue;
+                }
+                long delay = tokenDelay(queue.tenant);
+                if (delay > 0) {
+                    earliestTokens = Math.min(earliestTokens, delay);
+                } else if (best == null || queue.pending.peekFirst().finishTag < best.pending.peekFirst().finishTag) {
+                    best = queue;
+                }
+            }
+
+            if (best != null) {
+                List<BlockRequest> requests = new ArrayList<>();
+                requests.add(take(best));
+                BlockRequest first = requests.get(0);
+                int group = raid.dispatchGroup(first.whichBlock, first.isWrite);
+                while (group != -1 && !best.pending.isEmpty() && tokenDelay(best.tenant) == 0) {
+                    BlockRequest following = best.pending.peekFirst();
+                    if (following.batch != first.batch ||
+                            raid.dispatchGroup(following.whichBlock, following.isWrite) != group) {
+                        break;
+                    }
+                    requests.add(take(best));
+                }
+                return requests;
+            }
+
+            if (earliestTokens == Long.MAX_VALUE) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, earliestTokens);
+            }
+        }
+        return null;
+    }
+
+    private long tokenDelay(Tenant tenant) {
+        return Math.max(tenant.getIopsLimit().nanosUntilAvailable(1),
+                        tenant.getBandwidthLimit().nanosUntilAvailable(Disk.BLOCK_SIZE));
+    }
+
+    // Dequeues the first request of a queue and charges its tenant for it
+    private BlockRequest take(TenantQueue queue) {
+        BlockRequest request = queue.pending.pollFirst();
+        queue.tenant.getIopsLimit().take(1);
+        queue.tenant.getBandwidthLimit().take(Disk.BLOCK_SIZE);
+        queue.served++;
+        virtualTime = request.finishTag;
+        return request;
+    }
+
+    private void runWorker() {
+        while (true) {
+            List<BlockRequest> requests;
+            try {
+                requests = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (requests == null) {
+                return;
+            }
+
+            // The requests all come from one call, so they are all reads or all writes
+            Batch batch = requests.get(0).batch;
+            int[] blocks = new int[requests.size()];
+            byte[][] blockData = new byte[requests.size()][];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = requests.get(i).whichBlock;
+                blockData[i] = batch.blockData[requests.get(i).index];
+            }
+            try {
+                if (requests.get(0).isWrite) {
+                    raid.writeBlocks(blocks, blockData);
+                } else {
+                    blockData = raid.readBlocks(blocks);
+                    for (int i = 0; i < blocks.length; i++) {
+                        batch.blockData[requests.get(i).index] = blockData[i];
+                    }
+                }
+            } catch (IOException e) {
+                batch.error = e;
+            } finally {
+                for (int i = 0; i < blocks.length; i++) {
+                    batch.done.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package filesystem;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The file names of a namespace packed into one <code>byte[]</code>, one
+ * 64-byte zero padded slot per inode, so that looking a name up or listing
+ * the names that match a pattern streams through contiguous memory instead
+ * of reading and decoding every inode.  Slots are compared a whole name at a
+ * time by a <code>NameMatcher</code>, with the Vector API when it is
+ * available.
+ *
+ * Patterns for <code>list</code> are either a plain name, matched exactly,
+ * or a glob where <code>*</code> matches any run of characters and
+ * <code>?</code> matches one character.  The literal part of a glob before
+ * its first wildcard is matched as a prefix over the packed slots; only the
+ * names that pass are checked against the rest of the pattern.
+ */
+public class NameIndex {
+    private static final int NAME_SIZE = NameMatcher.NAME_SIZE;
+
+    private final byte[] names;
+    private final int capacity;
+    private final NameMatcher matcher;
+
+    public NameIndex(int capacity) {
+        this(capacity, NameMatcher.create());
+    }
+
+    NameIndex(int capacity, NameMatcher matcher) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("NameIndex: capacity must be positive");
+        }
+        this.names = new byte[Math.multiplyExact(capacity, NAME_SIZE)];
+        this.capacity = capacity;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Builds an index of the names in an inode table
+     */
+    static NameIndex of(INode[] inodes) {
+        NameIndex index = new NameIndex(inodes.length);
+        for (int i = 0; i < inodes.length; i++) {
+            index.set(i, inodes[i].getFileName());
+        }
+        return index;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stores the name of a slot; <code>null</code> or an empty name frees it.
+     * Names are trimmed the way lookups trim them.
+     */
+    public void set(int slot, String name) {
+        checkSlot(slot);
+        int base = slot * NAME_SIZE;
+        Arrays.fill(names, base, base + NAME_SIZE, (byte) 0);
+        if (name != null) {
+            byte[] bytes = name.trim().getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, names, base, Math.min(bytes.length, NAME_SIZE));
+        }
+    }
+
+    /**
+     * Returns the name stored in a slot, or null if the slot is free
+     */
+    public String getName(int slot) {
+        checkSlot(slot);
+        int base = slot * NAME_SIZE;
+        int length = 0;
+        while (length < NAME_SIZE && names[base + length] != 0) {
+            length++;
+        }
+        return length == 0 ? null : new String(names, base, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the slot holding <code>name</code>, or -1 if no slot does
+     */
+    public int find(String name) {
+        byte[] query = pad(name.trim());
+        if (query == null || query[0] == 0) {
+            return -1;
+        }
+        return matcher.nextEqual(names, 0, capacity, query);
+    }
+
+    /**
+     * Returns the slots, in order, whose names match <code>pattern</code>:
+     * a plain name or a glob with <code>*</code> and <code>?</code>
+     */
+    public List<Integer> list(String pattern) {
+        List<Integer> slots = new ArrayList<>();
+        int wildcard = firstWildcard(pattern);
+        if (wildcard < 0) {
+            int slot = find(pattern);
+            if (slot >= 0) {
+                slots.add(slot);
+            }
+            return slots;
+        }
+
+        byte[] glob = pattern.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = pad(pattern.substring(0, wildcard));
+        if (prefix == null) {
+            return slots;
+        }
+        int prefixLength = pattern.substring(0, wildcard).getBytes(StandardCharsets.UTF_8).length;
+        // A pattern that is a prefix and one trailing * needs nothing past the prefix compare
+        boolean prefixOnly = wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*';
+
+        int slot = matcher.nextWithPrefix(names, 0, capacity, prefix, prefixLength);
+        while (slot >= 0) {
+            if (prefixOnly || globMatches(glob, slot)) {
+                slots.add(slot);
+            }
+            slot = matcher.nextWithPrefix(names, slot + 1, capacity, prefix, prefixLength);
+        }
+        return slots;
+    }
+
+    @Override
+    public String toString() {
+        return "NameIndex[" + capacity + " slots, " + matcher + "]";
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= capacity) {
+            throw new IllegalArgumentException("NameIndex: slot " + slot + " out of range");
+        }
+    }
+
+    // The name as a zero padded slot, or null if it cannot fit in one and so matches nothing
+    private static byte[] pad(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > NAME_SIZE) {
+            return null;
+        }
+        return Arrays.copyOf(bytes, NAME_SIZE);
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Matches the name in a slot against a glob, byte by byte.  A
+     * <code>?</code> consumes a whole UTF-8 character.  A <code>*</code>
+     * remembers where it was seen so a later mismatch retries from one
+     * character further on, which keeps the match linear for one star and
+     * at worst quadratic otherwise.
+     */
+    private boolean globMatches(byte[] glob, int slot) {
+        int base = slot * NAME_SIZE;
+        int end = base;
+        while (end < base + NAME_SIZE && names[end] != 0) {
+            end++;
+        }
+
+        int n = base;
+        int g = 0;
+        int starGlob = -1;
+        int starName = -1;
+        while (n < end) {
+            if (g < glob.length && glob[g] == '?') {
+                n = nextCharacter(n, end);
+                g++;
+            } else if (g < glob.length && glob[g] == '*') {
+                starGlob = g++;
+                starName = n;
+            } else if (g < glob.length && glob[g] == names[n]) {
+                n++;
+                g++;
+            } else if (starGlob >= 0) {
+                starName = nextCharacter(starName, end);
+                n = starName;
+                g = starGlob + 1;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length && glob[g] == '*') {
+            g++;
+        }
+        return g == glob.length;
+    }
+
+    // Skips the UTF-8 continuation bytes of the character starting at position
+    private int nextCharacter(int position, int end) {
+        position++;
+        while (position < end && (names[position] & 0xC0) == 0x80) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,52 @@
+package filesystem;
+
+
+/**
+ * Compares the fixed-size name slots of a <code>NameIndex</code> against a
+ * query.  Each slot holds <code>NAME_SIZE</code> bytes, zero padded, so a
+ * whole name is compared without building a <code>String</code>.
+ *
+ * <code>create</code> picks the Vector API implementation when the
+ * <code>jdk.incubator.vector</code> module is present and the plain Java one
+ * otherwise.  The vector class is only loaded by name, so the file system
+ * also runs on a JVM started without the incubator module.
+ */
+interface NameMatcher {
+    int NAME_SIZE = INode.FILE_NAME_SIZE;
+
+    /**
+     * Returns the first slot from <code>from</code> up to <code>to</code>
+     * whose name equals <code>query</code>, or -1
+     *
+     * @param names Packed name slots
+     * @param query A name padded with zeros to <code>NAME_SIZE</code> bytes
+     */
+    int nextEqual(byte[] names, int from, int to, byte[] query);
+
+    /**
+     * Returns the first slot from <code>from</code> up to <code>to</code>
+     * whose name starts with the first <code>length</code> bytes of
+     * <code>prefix</code>, or -1.  Empty slots never match.
+     *
+     * @param names Packed name slots
+     * @param prefix A prefix padded with zeros to <code>NAME_SIZE</code> bytes
+     * @param length Number of bytes of <code>prefix</code> that have to match
+     */
+    int nextWithPrefix(byte[] names, int from, int to, byte[] prefix, int length);
+
+    /**
+     * Returns the Vector API matcher if the incubator module is available,
+     * the scalar one otherwise
+     */
+    static NameMatcher create() {
+        if (!Boolean.getBoolean("filesystem.scalarNames") &&
+                ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (NameMatcher) Class.forName("filesystem.VectorNameMatcher").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("NameMatcher: falling back to scalar matching: " + e);
+            }
+        }
+        return new ScalarNameMatcher();
+    }
+}
@@ -0,0 +1,107 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Measures how fast a <code>NameIndex</code> scans a large namespace.  An
+ * index is filled with random names, then searched for a name that is not
+ * there, so every slot is compared, and for a prefix that few names have.
+ * The Vector API matcher, the scalar one and a scan over already decoded
+ * <code>String</code> names, a lower bound for the inode by inode lookups
+ * the index replaces, are timed in turn; the cost per name and the bytes of
+ * names scanned per second are printed.
+ *
+ * Run with <code>--add-modules jdk.incubator.vector</code> to include the
+ * vector matcher.
+ *
+ * Usage: <code>NameScanBenchmark [names] [rounds]</code>
+ */
+public class NameScanBenchmark {
+    private static final int DEFAULT_NAMES = 1 << 20;
+    private static final int DEFAULT_ROUNDS = 10;
+    private static final int RUNS = 7;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NAMES;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        NameMatcher preferred = NameMatcher.create();
+        NameMatcher[] matchers = preferred instanceof ScalarNameMatcher
+                ? new NameMatcher[] {preferred}
+                : new NameMatcher[] {preferred, new ScalarNameMatcher()};
+
+        Random random = new Random(42);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "file-" + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36) + ".dat";
+        }
+        NameIndex[] indexes = new NameIndex[matchers.length];
+        for (int m = 0; m < matchers.length; m++) {
+            indexes[m] = new NameIndex(count, matchers[m]);
+            for (int i = 0; i < count; i++) {
+                indexes[m].set(i, names[i]);
+            }
+        }
+        String missing = "file-missing.dat";
+        String prefix = "file-zz*";
+
+        // Warm up every path before timing anything
+        for (NameIndex index : indexes) {
+            scan(index, missing, prefix, rounds);
+        }
+        scanStrings(names, missing, rounds);
+
+        // Matchers take turns so drift in the machine's speed affects all of them alike;
+        // the best run of each is kept to leave scheduling noise out of the comparison
+        double[] nanosPerName = new double[matchers.length + 1];
+        Arrays.fill(nanosPerName, Double.MAX_VALUE);
+        for (int run = 0; run < RUNS; run++) {
+            for (int m = 0; m < matchers.length; m++) {
+                long start = System.nanoTime();
+                scan(indexes[m], missing, prefix, rounds);
+                nanosPerName[m] = Math.min(nanosPerName[m], (System.nanoTime() - start) / (double) count / rounds / 2);
+            }
+            long start = System.nanoTime();
+            scanStrings(names, missing, rounds);
+            nanosPerName[matchers.length] = Math.min(nanosPerName[matchers.length],
+                    (System.nanoTime() - start) / (double) count / rounds);
+        }
+
+        System.out.printf("Scanned %d names %d times per run, best of %d runs%n", count, rounds, RUNS);
+        for (int m = 0; m < matchers.length; m++) {
+            System.out.printf("%-18s %6.2f ns/name  %6.2f GB/s%n", matchers[m], nanosPerName[m],
+                    NameMatcher.NAME_SIZE / nanosPerName[m]);
+        }
+        // Most names differ in length from the query, which String.equals checks before any byte
+        System.out.printf("%-18s %6.2f ns/name  (rejects on length)%n", "String equals",
+                nanosPerName[matchers.length]);
+    }
+
+    // One exact lookup that misses and one prefix listing per round
+    private static void scan(NameIndex index, String missing, String prefix, int rounds) {
+        int found = 0;
+        for (int round = 0; round < rounds; round++) {
+            found += index.find(missing);
+            found += index.list(prefix).size();
+        }
+        if (found == Integer.MIN_VALUE) {
+            System.out.println(found);
+        }
+    }
+
+    private static void scanStrings(String[] names, String missing, int rounds) {
+        int found = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].trim().equals(missing)) {
+                    found++;
+                }
+            }
+        }
+        if (found == Integer.MIN_VALUE) {
+            System.out.println(found);
+        }
+    }
+}
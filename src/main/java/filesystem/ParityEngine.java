@@ -0,0 +1,57 @@
+package filesystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+
+/**
+ * XOR parity computation for RAID 5 stripes.  Blocks are combined eight
+ * bytes at a time through a <code>long</code> view of the block arrays,
+ * which the JIT turns into wide loads and stores.
+ */
+public class ParityEngine {
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private ParityEngine() {
+    }
+
+    /**
+     * XORs <code>source</code> into <code>target</code>
+     *
+     * @param target Block that receives the result
+     * @param source Block to combine into <code>target</code>
+     * @throws IllegalArgumentException If the blocks differ in length
+     */
+    public static void xorInto(byte[] target, byte[] source) throws IllegalArgumentException {
+        if (target.length != source.length) {
+            throw new IllegalArgumentException("ParityEngine::xorInto:  " +
+                    "combining block of size " + source.length +
+                    " into block of size " + target.length);
+        }
+
+        int i = 0;
+        for (; i + Long.BYTES <= target.length; i += Long.BYTES) {
+            long value = (long) LONGS.get(target, i) ^ (long) LONGS.get(source, i);
+            LONGS.set(target, i, value);
+        }
+        for (; i < target.length; i++) {
+            target[i] ^= source[i];
+        }
+    }
+
+    /**
+     * Computes the XOR of a set of blocks
+     *
+     * @param blocks Blocks to combine, all of the same length
+     * @return A new block holding the XOR of <code>blocks</code>
+     */
+    public static byte[] parity(byte[][] blocks) {
+        byte[] result = new byte[Disk.BLOCK_SIZE];
+        for (byte[] block : blocks) {
+            xorInto(result, block);
+        }
+        return result;
+    }
+}
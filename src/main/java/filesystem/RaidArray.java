@@ -0,0 +1,882 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+/**
+ * Maps the logical data blocks of a <code>FileSystem</code> onto its member
+ * disks and performs the block I/O, fanning requests out to the members in
+ * parallel.
+ *
+ * With RAID 0, logical block b lives on member b % n at block b / n.
+ *
+ * With RAID 5, every stripe holds n - 1 data blocks and one parity block.
+ * The parity block of stripe s is on member (n - 1) - (s % n) and the data
+ * blocks follow it round-robin, so parity rotates across all members.
+ * Writes covering a whole stripe compute parity from the new data alone;
+ * partial stripes fall back to read-modify-write.  If a member has failed,
+ * its blocks are rebuilt from the other members of the stripe.
+ *
+ * With RAID 1 every member holds every block, at the same position.  With
+ * RAID 10 the members form mirrored pairs, 0-1, 2-3 and so on, and logical
+ * block b lives on both members of pair b % (n / 2) at block b / (n / 2).
+ * Writes go to all copies in parallel.  Each read goes to the copy whose
+ * member has the fewest requests queued, counting the other reads of the
+ * same batch, so a large read is split across the mirrors and concurrent
+ * readers spread over them.  A read only moves to another copy every
+ * <code>SPLIT_BLOCKS</code> blocks, which keeps short reads in one request.
+ * A copy on a failed member is skipped; one that fails its checksum is read
+ * from another copy instead.
+ *
+ * Every member keeps a checksum of each of its blocks.  A block that fails
+ * its checksum is treated like a block on a failed member and rebuilt from
+ * the rest of its stripe or its mirror; with RAID 0 the error is passed on
+ * to the caller.
+ */
+public class RaidArray {
+    // Blocks of a read that go to one copy before the rest is split onto another
+    private static final int SPLIT_BLOCKS = 8;
+
+    private final Disk[] members;
+    private final RaidLevel level;
+    private final boolean[] failed;
+    private final ExecutorService memberIo;
+
+    // Copies of each block, 1 for layouts without mirroring
+    private final int copies;
+
+    // Told about each member that fails, so the failure outlives the mount; null if nobody records it
+    private FailureListener failureListener;
+
+    // Block requests queued or in progress on each member, and blocks read from each member so far
+    private final AtomicInteger[] queued;
+    private final AtomicLong[] blocksRead;
+
+    /**
+     * Records member failures, e.g. in the superblock
+     */
+    interface FailureListener {
+        /**
+         * Called when a member is marked failed, before anything more is written to the array
+         *
+         * @throws IOException If the failure cannot be recorded
+         */
+        void memberFailed(int whichMember) throws IOException;
+    }
+
+    /**
+     * A single block transfer to or from one member disk
+     */
+    private static class MemberOp {
+        final int member;
+        final int physicalBlock;
+        byte[] data;
+        ChecksumMismatchException error;
+
+        MemberOp(int member, int physicalBlock, byte[] data) {
+            this.member = member;
+            this.physicalBlock = physicalBlock;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Creates an array over <code>members</code>
+     *
+     * @param members The member disks, already formatted
+     * @param level How blocks are laid out across the members
+     * @throws IllegalArgumentException If RAID 5 is requested with fewer than three members, RAID 1
+     *                                  with fewer than two, or RAID 10 with fewer than four or an odd number
+     */
+    public RaidArray(Disk[] members, RaidLevel level) throws IllegalArgumentException {
+        if (level == RaidLevel.RAID5 && members.length < 3) {
+            throw new IllegalArgumentException("RaidArray: RAID 5 needs at least 3 disks, got " + members.length);
+        }
+        if (level == RaidLevel.RAID1 && members.length < 2) {
+            throw new IllegalArgumentException("RaidArray: RAID 1 needs at least 2 disks, got " + members.length);
+        }
+        if (level == RaidLevel.RAID10 && (members.length < 4 || members.length % 2 != 0)) {
+            throw new IllegalArgumentException("RaidArray: RAID 10 needs an even number of at least 4 disks, got " +
+                    members.length);
+        }
+
+        this.members = members;
+        this.level = level;
+        this.failed = new boolean[members.length];
+        this.copies = level == RaidLevel.RAID1 ? members.length : level == RaidLevel.RAID10 ? 2 : 1;
+        this.queued = new AtomicInteger[members.length];
+        this.blocksRead = new AtomicLong[members.length];
+        for (int i = 0; i < members.length; i++) {
+            queued[i] = new AtomicInteger();
+            blocksRead[i] = new AtomicLong();
+        }
+        this.memberIo = Executors.newFixedThreadPool(members.length, runnable -> {
+            Thread thread = new Thread(runnable, "raid-member-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public RaidLevel getLevel() {
+        return level;
+    }
+
+    public int getNumMembers() {
+        return members.length;
+    }
+
+    /**
+     * Returns the number of data blocks in one stripe across the members
+     */
+    public int getStripeWidth() {
+        return level == RaidLevel.RAID5 ? members.length - 1 : members.length / copies;
+    }
+
+    /**
+     * Returns the number of copies of each block: 1 unless the members are mirrored
+     */
+    public int getCopies() {
+        return copies;
+    }
+
+    /**
+     * Sets who records member failures
+     */
+    synchronized void setFailureListener(FailureListener listener) {
+        this.failureListener = listener;
+    }
+
+    /**
+     * Marks a member as lost.  Its blocks are reconstructed from the other
+     * members, or read from their other copies, from now on and nothing more
+     * is written to it.  The failure is passed on to the failure listener,
+     * since the member's image goes stale from here on and must not be read
+     * again after a remount.
+     *
+     * @param whichMember Position of the failed disk in the array
+     * @throws IOException If the array cannot survive losing another member, or the failure cannot be recorded
+     */
+    public synchronized void failDisk(int whichMember) throws IOException {
+        if (!failed[whichMember] && !canLose(whichMember)) {
+            throw new IOException("RaidArray::failDisk: losing disk " + whichMember + " would lose data");
+        }
+        failed[whichMember] = true;
+        if (failureListener != null) {
+            failureListener.memberFailed(whichMember);
+        }
+        System.out.println("Disk " + whichMember + " failed, running degraded");
+    }
+
+    private boolean canLose(int whichMember) {
+        if (level == RaidLevel.RAID0) {
+            return false;
+        }
+        if (copies == 1) {
+            return failedCount() == 0;
+        }
+        int first = whichMember - whichMember % copies;
+        for (int replica = first; replica < first + copies; replica++) {
+            if (replica != whichMember && !failed[replica]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isDegraded() {
+        return failedCount() > 0;
+    }
+
+    /**
+     * Returns the member disk holding logical block <code>whichBlock</code>,
+     * or with mirroring the member holding its first copy
+     */
+    public int memberFor(int whichBlock) {
+        if (level != RaidLevel.RAID5) {
+            return (whichBlock % getStripeWidth()) * copies;
+        }
+        int dataPerStripe = members.length - 1;
+        int stripe = whichBlock / dataPerStripe;
+        return (parityMemberFor(stripe) + 1 + (whichBlock % dataPerStripe)) % members.length;
+    }
+
+    /**
+     * Returns the member disks holding a copy of logical block <code>whichBlock</code>
+     */
+    public int[] replicasFor(int whichBlock) {
+        int first = memberFor(whichBlock);
+        return IntStream.range(first, first + copies).toArray();
+    }
+
+    /**
+     * Returns the position of logical block <code>whichBlock</code> on its member disk
+     */
+    public int physicalBlock(int whichBlock) {
+        return whichBlock / getStripeWidth();
+    }
+
+    /**
+     * Returns the number of blocks read from a member so far
+     */
+    public long getBlocksRead(int whichMember) {
+        return blocksRead[whichMember].get();
+    }
+
+    /**
+     * Picks the member to read logical block <code>whichBlock</code> from:
+     * the healthy copy with the fewest requests queued, plus those already
+     * planned in <code>planned</code> for the batch being built, counted per
+     * <code>SPLIT_BLOCKS</code> so short reads stay on one copy.  Ties go to
+     * the copies in turn every <code>SPLIT_BLOCKS</code> blocks, so an idle
+     * array still spreads a long sequential read.  Without mirroring this is
+     * simply the member holding the block, even if it has failed.
+     */
+    private int replicaFor(int whichBlock, int[] planned) {
+        int first = memberFor(whichBlock);
+        if (copies == 1) {
+            return first;
+        }
+        int start = (physicalBlock(whichBlock) / SPLIT_BLOCKS) % copies;
+        int best = -1;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < copies; i++) {
+            int replica = first + (start + i) % copies;
+            if (isFailed(replica)) {
+                continue;
+            }
+            int load = queued[replica].get() + (planned == null ? 0 : planned[replica] / SPLIT_BLOCKS);
+            if (load < bestLoad) {
+                best = replica;
+                bestLoad = load;
+            }
+        }
+        // failDisk keeps at least one copy of every block healthy
+        return best;
+    }
+
+    /**
+     * Groups block requests that are worth sending to the array together:
+     * writes to the same RAID 5 stripe, so a full stripe gets its parity
+     * from the new data alone, and reads of the same run of
+     * <code>SPLIT_BLOCKS</code> blocks with mirroring, so a long read is
+     * still split across the copies.  Two blocks with the same group gain
+     * from one <code>readBlocks</code> or <code>writeBlocks</code> call.
+     *
+     * @param whichBlock The logical block
+     * @param isWrite True for a write
+     * @return The group of the block, or -1 if it gains nothing from company
+     */
+    int dispatchGroup(int whichBlock, boolean isWrite) {
+        if (level == RaidLevel.RAID5 && isWrite) {
+            return whichBlock / (members.length - 1);
+        }
+        if (copies > 1 && !isWrite) {
+            return physicalBlock(whichBlock) / SPLIT_BLOCKS;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the member disk holding the parity block of a RAID 5 stripe
+     */
+    public int parityMemberFor(int stripe) {
+        return (members.length - 1) - (stripe % members.length);
+    }
+
+    /**
+     * Reads a single logical block
+     *
+     * @param whichBlock The logical block to read
+     * @return The contents of the block
+     * @throws IOException If the block cannot be read or reconstructed
+     */
+    public byte[] readBlock(int whichBlock) throws IOException {
+        return readBlocks(new int[]{whichBlock})[0];
+    }
+
+    /**
+     * Reads a single logical block into a caller supplied buffer.  A block on
+     * a healthy member is read straight into the buffer without allocating.
+     *
+     * @param whichBlock The logical block to read
+     * @param into Buffer receiving up to a block of data at its position
+     * @throws IOException If the block cannot be read or reconstructed
+     */
+    public void readBlock(int whichBlock, ByteBuffer into) throws IOException {
+        int member = replicaFor(whichBlock, null);
+        if (!isFailed(member)) {
+            int position = into.position();
+            queued[member].incrementAndGet();
+            try {
+                members[member].readDataBlock(physicalBlock(whichBlock), into);
+                blocksRead[member].incrementAndGet();
+                return;
+            } catch (ChecksumMismatchException e) {
+                if (level == RaidLevel.RAID0) {
+                    throw e;
+                }
+                into.position(position);
+            } finally {
+                queued[member].decrementAndGet();
+            }
+        }
+        byte[] rebuilt = reconstruct(member, physicalBlock(whichBlock));
+        into.put(rebuilt, 0, Math.min(into.remaining(), Disk.BLOCK_SIZE));
+    }
+
+    /**
+     * Reads a set of logical blocks, issuing the reads of different members in
+     * parallel.  With mirroring the blocks are spread over the copies with
+     * the shortest queues.  Blocks on a failed member or failing their
+     * checksum are reconstructed from the rest of their stripe, again reading
+     * the members in parallel, or read from another copy.
+     *
+     * @param blocks The logical blocks to read
+     * @return The contents of the blocks, in the order requested
+     * @throws IOException If a block cannot be read or reconstructed
+     */
+    public byte[][] readBlocks(int[] blocks) throws IOException {
+        List<MemberOp> reads = new ArrayList<>();
+        List<MemberOp> healthy = new ArrayList<>();
+        int[] planned = new int[members.length];
+        for (int whichBlock : blocks) {
+            MemberOp read = new MemberOp(replicaFor(whichBlock, planned), physicalBlock(whichBlock), null);
+            planned[read.member]++;
+            reads.add(read);
+            if (!isFailed(read.member)) {
+                healthy.add(read);
+            }
+        }
+        runOnMembers(healthy, true);
+
+        byte[][] result = new byte[blocks.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            result[i] = reads.get(i).data;
+        }
+        for (int i = 0; i < blocks.length; i++) {
+            if (result[i] == null) {
+                MemberOp read = reads.get(i);
+                if (read.error != null && level == RaidLevel.RAID0) {
+                    throw read.error;
+                }
+                result[i] = reconstruct(read.member, read.physicalBlock);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a byte range of a list of logical blocks to a channel.  Blocks
+     * that sit back to back on the same member go out in one zero-copy
+     * transfer from that member's image; blocks on a failed member, or runs
+     * holding a block that fails its checksum, are reconstructed and sent
+     * from the heap.  With mirroring each run is sent from the copy with the
+     * shortest queue.
+     *
+     * @param blocks The logical blocks, in file order
+     * @param offset Offset of the first byte within the first block
+     * @param length Number of bytes to send
+     * @param target Channel receiving the bytes
+     * @throws IOException If a block cannot be read or reconstructed
+     */
+    public void transferTo(int[] blocks, int offset, long length, WritableByteChannel target) throws IOException {
+        int i = 0;
+        while (length > 0 && i < blocks.length) {
+            int member = replicaFor(blocks[i], null);
+            int physical = physicalBlock(blocks[i]);
+
+            if (isFailed(member)) {
+                int count = (int) Math.min(length, Disk.BLOCK_SIZE - offset);
+                writeFromHeap(reconstruct(member, physical), offset, count, target);
+                length -= count;
+                offset = 0;
+                i++;
+                continue;
+            }
+
+            int run = 1;
+            while (i + run < blocks.length && memberFor(blocks[i + run]) == memberFor(blocks[i]) &&
+                    physicalBlock(blocks[i + run]) == physical + run) {
+                run++;
+            }
+            long count = Math.min(length, (long) run * Disk.BLOCK_SIZE - offset);
+            queued[member].incrementAndGet();
+            try {
+                members[member].transferDataTo(physical, offset, count, target);
+                blocksRead[member].addAndGet(run);
+            } catch (ChecksumMismatchException e) {
+                if (level == RaidLevel.RAID0) {
+                    throw e;
+                }
+                // Nothing was sent yet; send the run block by block, rebuilding the corrupt ones
+                byte[][] runData = readBlocks(Arrays.copyOfRange(blocks, i, i + run));
+                long left = count;
+                for (int r = 0; r < run && left > 0; r++) {
+                    int start = r == 0 ? offset : 0;
+                    int part = (int) Math.min(left, Disk.BLOCK_SIZE - start);
+                    writeFromHeap(runData[r], start, part, target);
+                    left -= part;
+                }
+            } finally {
+                queued[member].decrementAndGet();
+            }
+            length -= count;
+            offset = 0;
+            i += run;
+        }
+    }
+
+    private static void writeFromHeap(byte[] blockData, int offset, int count, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(blockData, offset, count);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Returns true if blocks can be filled directly from a channel, which
+     * needs a layout without parity and with a single copy, since the
+     * channel can only be read once
+     */
+    public boolean supportsDirectWrites() {
+        return level == RaidLevel.RAID0;
+    }
+
+    /**
+     * Fills a logical block straight from a channel without copying the
+     * bytes through the Java heap
+     *
+     * @param source Channel supplying the bytes
+     * @param whichBlock The logical block to fill
+     * @return The number of bytes stored, less than a block only when <code>source</code> reached its end
+     * @throws IOException If the layout needs to see the data or the block cannot be written
+     */
+    public long transferFrom(ReadableByteChannel source, int whichBlock) throws IOException {
+        if (!supportsDirectWrites()) {
+            throw new IOException("RaidArray::transferFrom: " + level + " has to see the data to " +
+                    (copies > 1 ? "copy it" : "update parity"));
+        }
+        return members[memberFor(whichBlock)].transferDataFrom(source, physicalBlock(whichBlock), Disk.BLOCK_SIZE);
+    }
+
+    /**
+     * Writes a single logical block
+     *
+     * @param whichBlock The logical block to write
+     * @param blockData The contents of the block
+     * @throws IOException If the block cannot be written
+     */
+    public void writeBlock(int whichBlock, byte[] blockData) throws IOException {
+        writeBlocks(new int[]{whichBlock}, new byte[][]{blockData});
+    }
+
+    /**
+     * Writes a single logical block from a caller supplied buffer.  RAID 0
+     * writes the buffer straight to the member without allocating; RAID 5
+     * copies it out to compute the parity and mirrored layouts to write it
+     * to every copy in parallel.
+     *
+     * @param whichBlock The logical block to write
+     * @param from Buffer holding exactly one block between its position and limit
+     * @throws IOException If the block cannot be written
+     */
+    public void writeBlock(int whichBlock, ByteBuffer from) throws IOException {
+        if (supportsDirectWrites()) {
+            members[memberFor(whichBlock)].writeDataBlock(from, physicalBlock(whichBlock));
+            return;
+        }
+        byte[] blockData = new byte[Disk.BLOCK_SIZE];
+        from.get(blockData);
+        writeBlock(whichBlock, blockData);
+    }
+
+    /**
+     * Writes a batch of logical blocks.  With mirroring every block is
+     * written to each healthy copy.  For RAID 5 the blocks are grouped by
+     * stripe: a stripe that is written completely gets its parity computed
+     * from the new data, while a partially written stripe reads back what it
+     * needs to update its parity.  Parity for all stripes is computed in
+     * parallel and the member writes are issued in parallel.
+     *
+     * @param blocks The logical blocks to write
+     * @param blockData The contents of each block
+     * @throws IOException If a block cannot be written
+     */
+    public synchronized void writeBlocks(int[] blocks, byte[][] blockData) throws IOException {
+        List<MemberOp> writes = new ArrayList<>();
+
+        if (level != RaidLevel.RAID5) {
+            for (int i = 0; i < blocks.length; i++) {
+                for (int replica : replicasFor(blocks[i])) {
+                    if (!isFailed(replica)) {
+                        writes.add(new MemberOp(replica, physicalBlock(blocks[i]), blockData[i]));
+                    }
+                }
+            }
+            runOnMembers(writes, false);
+            return;
+        }
+
+        int dataPerStripe = members.length - 1;
+        Map<Integer, byte[][]> stripes = new LinkedHashMap<>();
+        for (int i = 0; i < blocks.length; i++) {
+            byte[][] stripe = stripes.computeIfAbsent(blocks[i] / dataPerStripe, s -> new byte[dataPerStripe][]);
+            stripe[blocks[i] % dataPerStripe] = blockData[i];
+        }
+
+        List<Integer> stripeNumbers = new ArrayList<>(stripes.keySet());
+        byte[][] oldParity = new byte[stripeNumbers.size()][];
+        byte[][][] oldData = new byte[stripeNumbers.size()][][];
+        readForParityUpdate(stripeNumbers, stripes, oldData, oldParity);
+
+        byte[][] newParity = new byte[stripeNumbers.size()][];
+        IntStream.range(0, stripeNumbers.size()).parallel().forEach(s ->
+                newParity[s] = computeParity(stripes.get(stripeNumbers.get(s)), oldData[s], oldParity[s]));
+
+        for (int s = 0; s < stripeNumbers.size(); s++) {
+            int stripe = stripeNumbers.get(s);
+            byte[][] data = stripes.get(stripe);
+            for (int idx = 0; idx < dataPerStripe; idx++) {
+                if (data[idx] != null) {
+                    int block = stripe * dataPerStripe + idx;
+                    writes.add(new MemberOp(memberFor(block), stripe, data[idx]));
+                }
+            }
+            writes.add(new MemberOp(parityMemberFor(stripe), stripe, newParity[s]));
+        }
+        writes.removeIf(op -> isFailed(op.member));
+        runOnMembers(writes, false);
+    }
+
+    /**
+     * Gathers the blocks needed to update the parity of partially written
+     * stripes.  With a healthy stripe the old contents of the written blocks
+     * and the old parity are read (read-modify-write).  In a degraded stripe,
+     * or one where one of those reads fails its checksum, the current
+     * contents of the unwritten blocks are read, reconstructing them if
+     * needed, so parity can be rebuilt from scratch.
+     */
+    private void readForParityUpdate(List<Integer> stripeNumbers, Map<Integer, byte[][]> stripes,
+                                     byte[][][] oldData, byte[][] oldParity) throws IOException {
+        int dataPerStripe = members.length - 1;
+        List<MemberOp> reads = new ArrayList<>();
+        List<int[]> targets = new ArrayList<>();
+
+        for (int s = 0; s < stripeNumbers.size(); s++) {
+            int stripe = stripeNumbers.get(s);
+            byte[][] data = stripes.get(stripe);
+            int written = 0;
+            boolean degraded = isFailed(parityMemberFor(stripe));
+            for (int idx = 0; idx < dataPerStripe; idx++) {
+                if (data[idx] != null) {
+                    written++;
+                }
+                degraded |= isFailed(memberFor(stripe * dataPerStripe + idx));
+            }
+            if (written == dataPerStripe) {
+                // Full stripe: parity comes from the new data alone
+                continue;
+            }
+
+            oldData[s] = new byte[dataPerStripe][];
+            if (degraded) {
+                for (int idx = 0; idx < dataPerStripe; idx++) {
+                    if (data[idx] == null) {
+                        oldData[s][idx] = readBlock(stripe * dataPerStripe + idx);
+                    }
+                }
+                continue;
+            }
+
+            for (int idx = 0; idx < dataPerStripe; idx++) {
+                if (data[idx] != null) {
+                    reads.add(new MemberOp(memberFor(stripe * dataPerStripe + idx), stripe, null));
+                    targets.add(new int[]{s, idx});
+                }
+            }
+            reads.add(new MemberOp(parityMemberFor(stripe), stripe, null));
+            targets.add(new int[]{s, -1});
+        }
+
+        runOnMembers(reads, true);
+        Set<Integer> corruptStripes = new HashSet<>();
+        for (int i = 0; i < reads.size(); i++) {
+            int[] target = targets.get(i);
+            if (reads.get(i).error != null) {
+                corruptStripes.add(target[0]);
+            } else if (target[1] == -1) {
+                oldParity[target[0]] = reads.get(i).data;
+            } else {
+                oldData[target[0]][target[1]] = reads.get(i).data;
+            }
+        }
+
+        for (int s : corruptStripes) {
+            int stripe = stripeNumbers.get(s);
+            byte[][] data = stripes.get(stripe);
+            oldParity[s] = null;
+            oldData[s] = new byte[dataPerStripe][];
+            for (int idx = 0; idx < dataPerStripe; idx++) {
+                if (data[idx] == null) {
+                    oldData[s][idx] = readBlock(stripe * dataPerStripe + idx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the new parity of a stripe.
+     *
+     * @param newData New contents of the written blocks, null for the others
+     * @param oldData Null for a full stripe write; otherwise the old contents of the
+     *                written blocks (read-modify-write) or the current contents of the
+     *                unwritten blocks (degraded stripe)
+     * @param oldParity The old parity for read-modify-write, otherwise null
+     */
+    private static byte[] computeParity(byte[][] newData, byte[][] oldData, byte[] oldParity) {
+        byte[] parity = new byte[Disk.BLOCK_SIZE];
+
+        if (oldParity != null) {
+            // Read-modify-write: parity ^= old ^ new for every written block
+            ParityEngine.xorInto(parity, oldParity);
+            for (int idx = 0; idx < newData.length; idx++) {
+                if (newData[idx] != null) {
+                    ParityEngine.xorInto(parity, oldData[idx]);
+                    ParityEngine.xorInto(parity, newData[idx]);
+                }
+            }
+            return parity;
+        }
+
+        for (int idx = 0; idx < newData.length; idx++) {
+            byte[] block = newData[idx] != null ? newData[idx] : oldData[idx];
+            ParityEngine.xorInto(parity, block);
+        }
+        return parity;
+    }
+
+    /**
+     * Rebuilds a block of a failed member by XORing the blocks of every other
+     * member at the same position, which are read in parallel.  With
+     * mirroring the block is read from the other copies in turn until one
+     * passes its checksum.
+     */
+    private byte[] reconstruct(int lostMember, int physicalBlock) throws IOException {
+        if (level == RaidLevel.RAID0) {
+            throw new IOException("RaidArray::reconstruct: disk " + lostMember + " has no redundancy");
+        }
+        if (copies > 1) {
+            return readOtherCopy(lostMember, physicalBlock);
+        }
+
+        List<MemberOp> survivors = new ArrayList<>();
+        for (int member = 0; member < members.length; member++) {
+            if (member != lostMember) {
+                if (isFailed(member)) {
+                    throw new IOException("RaidArray::reconstruct: more than one disk has failed");
+                }
+                survivors.add(new MemberOp(member, physicalBlock, null));
+            }
+        }
+        runOnMembers(survivors, true);
+
+        byte[][] blocks = new byte[survivors.size()][];
+        for (int i = 0; i < blocks.length; i++) {
+            if (survivors.get(i).error != null) {
+                throw new IOException("RaidArray::reconstruct: block " + physicalBlock + " of disk " + lostMember +
+                        " cannot be rebuilt", survivors.get(i).error);
+            }
+            blocks[i] = survivors.get(i).data;
+        }
+        return ParityEngine.parity(blocks);
+    }
+
+    private byte[] readOtherCopy(int lostMember, int physicalBlock) throws IOException {
+        ChecksumMismatchException error = null;
+        int first = lostMember - lostMember % copies;
+        for (int replica = first; replica < first + copies; replica++) {
+            if (replica == lostMember || isFailed(replica)) {
+                continue;
+            }
+            queued[replica].incrementAndGet();
+            try {
+                byte[] blockData = members[replica].readDataBlock(physicalBlock);
+                blocksRead[replica].incrementAndGet();
+                return blockData;
+            } catch (ChecksumMismatchException e) {
+                error = e;
+            } finally {
+                queued[replica].decrementAndGet();
+            }
+        }
+        throw new IOException("RaidArray::reconstruct: block " + physicalBlock + " of disk " + lostMember +
+                " has no good copy", error);
+    }
+
+    /**
+     * Runs a set of block transfers, one task per member disk so that the
+     * members work in parallel while each member handles its own requests in order.
+     * A read that fails its checksum leaves the op's data null and its error set.
+     */
+    private void runOnMembers(List<MemberOp> ops, boolean isRead) throws IOException {
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, List<MemberOp>> byMember = new LinkedHashMap<>();
+        for (MemberOp op : ops) {
+            byMember.computeIfAbsent(op.member, m -> new ArrayList<>()).add(op);
+        }
+
+        List<Future<?>> pending = new ArrayList<>();
+        for (Map.Entry<Integer, List<MemberOp>> entry : byMember.entrySet()) {
+            int member = entry.getKey();
+            Disk disk = members[member];
+            List<MemberOp> memberOps = entry.getValue();
+            queued[member].addAndGet(memberOps.size());
+            pending.add(memberIo.submit(() -> {
+                int done = 0;
+                try {
+                    for (MemberOp op : memberOps) {
+                        if (isRead) {
+                            try {
+                                op.data = disk.readDataBlock(op.physicalBlock);
+                                blocksRead[member].incrementAndGet();
+                            } catch (ChecksumMismatchException e) {
+                                op.error = e;
+                            }
+                        } else {
+                            disk.writeDataBlock(op.data, op.physicalBlock);
+                        }
+                        queued[member].decrementAndGet();
+                        done++;
+                    }
+                } finally {
+                    queued[member].addAndGet(done - memberOps.size());
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("RaidArray: interrupted waiting for disk I/O", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("RaidArray: disk I/O failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Verifies the checksum of every block on every healthy member, scrubbing
+     * the members in parallel.  With <code>repair</code> set, corrupt blocks
+     * of a RAID 5 array are rebuilt from the rest of their stripe, and those
+     * of a mirrored array copied from a good copy, and written back.
+     *
+     * @param repair Whether to rewrite the corrupt blocks that can be rebuilt
+     * @return What was scanned, found and repaired
+     * @throws IOException If a member cannot be read
+     */
+    public ScrubReport scrub(boolean repair) throws IOException {
+        ScrubReport report = new ScrubReport();
+        List<List<Integer>> corruptByMember;
+        try {
+            corruptByMember = IntStream.range(0, members.length).parallel()
+                    .mapToObj(member -> {
+                        try {
+                            return isFailed(member) ? new ArrayList<Integer>() : members[member].scrub();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        for (int member = 0; member < members.length; member++) {
+            if (!isFailed(member)) {
+                report.addScanned(Disk.NUM_BLOCKS);
+            }
+            for (int physical : corruptByMember.get(member)) {
+                String where = describe(member, physical);
+                if (!repair || level == RaidLevel.RAID0) {
+                    report.addCorrupt(where, false);
+                    continue;
+                }
+                try {
+                    // Hold off stripe writes while the block is rebuilt and written back
+                    synchronized (this) {
+                        members[member].writeDataBlock(reconstruct(member, physical), physical);
+                    }
+                    report.addCorrupt(where, true);
+                } catch (IOException e) {
+                    report.addCorrupt(where + " (" + e.getMessage() + ")", false);
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Names the contents of a physical block for a scrub report
+     */
+    private String describe(int member, int physical) {
+        if (level != RaidLevel.RAID5) {
+            return "block " + (physical * getStripeWidth() + member / copies) + " (disk " + member + ")";
+        }
+        int parityMember = parityMemberFor(physical);
+        if (member == parityMember) {
+            return "parity of stripe " + physical + " (disk " + member + ")";
+        }
+        int index = (member - parityMember - 1 + members.length) % members.length;
+        return "block " + (physical * (members.length - 1) + index) + " (disk " + member + ")";
+    }
+
+    /**
+     * Stops the member I/O threads once the array is no longer used
+     */
+    public void shutdown() {
+        memberIo.shutdown();
+    }
+
+    private synchronized boolean isFailed(int whichMember) {
+        return failed[whichMember];
+    }
+
+    private synchronized int failedCount() {
+        int count = 0;
+        for (boolean isFailed : failed) {
+            if (isFailed) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
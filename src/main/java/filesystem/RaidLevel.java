@@ -0,0 +1,30 @@
+package filesystem;
+
+
+/**
+ * Ways a <code>FileSystem</code> can lay data blocks out across its member disks
+ */
+public enum RaidLevel {
+    /**
+     * Blocks are striped round-robin across the members with no redundancy
+     */
+    RAID0,
+
+    /**
+     * Blocks are striped across the members with one parity block per stripe,
+     * rotating between members from stripe to stripe
+     */
+    RAID5,
+
+    /**
+     * Every member holds a copy of every block; reads go to whichever copy
+     * has the shortest queue
+     */
+    RAID1,
+
+    /**
+     * Members are paired into mirrors and blocks are striped round-robin
+     * across the pairs
+     */
+    RAID10
+}
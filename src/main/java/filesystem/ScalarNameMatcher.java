@@ -0,0 +1,36 @@
+package filesystem;
+
+import java.util.Arrays;
+
+
+/**
+ * Name matching in plain Java, used when the Vector API is not available
+ */
+class ScalarNameMatcher implements NameMatcher {
+    @Override
+    public int nextEqual(byte[] names, int from, int to, byte[] query) {
+        for (int slot = from; slot < to; slot++) {
+            int base = slot * NAME_SIZE;
+            if (Arrays.equals(names, base, base + NAME_SIZE, query, 0, NAME_SIZE)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int nextWithPrefix(byte[] names, int from, int to, byte[] prefix, int length) {
+        for (int slot = from; slot < to; slot++) {
+            int base = slot * NAME_SIZE;
+            if (names[base] != 0 && Arrays.equals(names, base, base + length, prefix, 0, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,67 @@
+package filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Blocks found by <code>RaidArray.scrub</code> whose contents no longer
+ * match their checksums
+ */
+public class ScrubReport {
+    private final List<String> corrupt = new ArrayList<>();
+    private final List<String> unrepaired = new ArrayList<>();
+    private long blocksScanned;
+
+    /**
+     * Returns a description of every corrupt block found
+     */
+    public List<String> getCorrupt() {
+        return corrupt;
+    }
+
+    /**
+     * Returns the corrupt blocks that are still corrupt after the scrub
+     */
+    public List<String> getUnrepaired() {
+        return unrepaired;
+    }
+
+    /**
+     * Returns the number of corrupt blocks that were rebuilt and rewritten
+     */
+    public int getRepairedCount() {
+        return corrupt.size() - unrepaired.size();
+    }
+
+    /**
+     * Returns the number of physical blocks verified, over all members
+     */
+    public long getBlocksScanned() {
+        return blocksScanned;
+    }
+
+    void addScanned(long blocks) {
+        blocksScanned += blocks;
+    }
+
+    void addCorrupt(String description, boolean repaired) {
+        corrupt.add(description);
+        if (!repaired) {
+            unrepaired.add(description);
+        }
+    }
+
+    /**
+     * Returns true if no corrupt blocks were found
+     */
+    public boolean isClean() {
+        return corrupt.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d blocks scanned, %d corrupt, %d repaired",
+                blocksScanned, corrupt.size(), getRepairedCount());
+    }
+}
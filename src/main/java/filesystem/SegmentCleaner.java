@@ -0,0 +1,199 @@
+package filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Reclaims space in the segment log of a <code>FileSystem</code>.
+ * Overwrites and deletes leave dead blocks behind in sealed segments;
+ * the cleaner picks the sealed segment with the fewest live blocks,
+ * appends those blocks to the log again and frees the whole segment, so
+ * the log keeps finding free segments to write into.  Work is done one
+ * segment at a time, either by calling <code>step</code> directly or from a
+ * background thread started with log-structured writes.
+ *
+ * A block is live if the inode named in the segment summary still points
+ * at it.  Segments holding live blocks that are shared with other files or
+ * snapshots, or that are being read or written through the I/O scheduler,
+ * are left alone.
+ */
+public class SegmentCleaner {
+    private static final long IDLE_SLEEP_MILLIS = 1000;
+
+    // Segments with a larger fraction of live blocks cost more to clean than they give back
+    private static final double MAX_LIVE_FRACTION = 0.75;
+
+    private final FileSystem fileSystem;
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Creates a cleaner for the segment log of <code>fileSystem</code>
+     *
+     * @param fileSystem The file system whose log is cleaned
+     */
+    public SegmentCleaner(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Cleans the sealed segment with the fewest live blocks if enough of it is dead
+     *
+     * @return The number of live blocks moved, or -1 if no segment was cleaned
+     * @throws IOException If there is an issue reading or writing the disk data.
+     */
+    public int step() throws IOException {
+        synchronized (fileSystem) {
+            SegmentLog log = fileSystem.getSegmentLog();
+            if (log == null) {
+                return -1;
+            }
+
+            int victim = -1;
+            List<int[]> victimLive = null;
+            for (int segment : log.getSealedSegments()) {
+                List<int[]> live = liveBlocks(log, segment);
+                if (live != null && (victimLive == null || live.size() < victimLive.size())) {
+                    victim = segment;
+                    victimLive = live;
+                }
+            }
+            if (victim == -1 || victimLive.size() > MAX_LIVE_FRACTION * (log.getSegmentBlocks() - 1)) {
+                return -1;
+            }
+
+            // Inode copies in the segment are dead once the inode table is current
+            fileSystem.sync();
+
+            Map<Integer, List<int[]>> byINode = new HashMap<>();
+            for (int[] live : victimLive) {
+                byINode.computeIfAbsent(live[1], k -> new ArrayList<>()).add(live);
+            }
+            for (Map.Entry<Integer, List<int[]>> file : byINode.entrySet()) {
+                if (!move(log, file.getKey(), file.getValue())) {
+                    // Files moved so far stay moved; the segment is tried again later
+                    log.flush();
+                    return -1;
+                }
+            }
+
+            log.releaseSegment(victim);
+            log.flush();
+            System.out.printf("SegmentCleaner cleaned segment %d, moving %d live blocks%n", victim, victimLive.size());
+            return victimLive.size();
+        }
+    }
+
+    /**
+     * Starts cleaning segments on a background thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, "segment-cleaner");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the background thread after the segment it is working on
+     *
+     * @throws InterruptedException If interrupted while waiting for the thread to finish
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        worker.join();
+        worker = null;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (step() < 0) {
+                    Thread.sleep(IDLE_SLEEP_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("SegmentCleaner: stopping after error: " + e.getMessage());
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the live data blocks of a segment as {block, inode number, index},
+     * or null if the segment cannot be cleaned now
+     */
+    private List<int[]> liveBlocks(SegmentLog log, int segment) throws IOException {
+        int[] summary = log.getSummary(segment);
+        int start = log.getSegmentStart(segment);
+        Map<Integer, INode> inodes = new HashMap<>();
+        List<int[]> live = new ArrayList<>();
+
+        for (int slot = 1; slot < summary.length; slot++) {
+            int entry = summary[slot];
+            if (entry == SegmentLog.EMPTY || SegmentLog.entryIndex(entry) == SegmentLog.INODE_COPY) {
+                continue;
+            }
+            int block = start + slot;
+            int inodeNumber = SegmentLog.entryINode(entry);
+            int index = SegmentLog.entryIndex(entry);
+            INode inode = inodes.get(inodeNumber);
+            if (inode == null) {
+                inode = fileSystem.loadINode(inodeNumber);
+                inodes.put(inodeNumber, inode);
+            }
+
+            if (inode.getFileName() == null || inode.isInline() || index >= INode.NUM_BLOCK_POINTERS ||
+                    inode.getBlockPointer(index) != block) {
+                continue;
+            }
+            if (fileSystem.blockTable.getRefCount(block) > 1 || fileSystem.hasIoInFlight(inodeNumber)) {
+                return null;
+            }
+            live.add(new int[] {block, inodeNumber, index});
+        }
+        return live;
+    }
+
+    /**
+     * Appends the live blocks of one file to the log and points its inode at the copies
+     *
+     * @return False if there is no free segment to move them into
+     */
+    private boolean move(SegmentLog log, int inodeNumber, List<int[]> live) throws IOException {
+        int[] blocks = new int[live.size()];
+        int[] indexes = new int[live.size()];
+        for (int i = 0; i < live.size(); i++) {
+            blocks[i] = live.get(i)[0];
+            indexes[i] = live.get(i)[2];
+        }
+
+        byte[][] contents = fileSystem.raid.readBlocks(blocks);
+        int[] target = log.append(inodeNumber, indexes, contents);
+        if (target == null) {
+            return false;
+        }
+
+        INode inode = fileSystem.loadINode(inodeNumber);
+        for (int i = 0; i < blocks.length; i++) {
+            fileSystem.blockTable.move(blocks[i], target[i]);
+            inode.setBlockPointer(indexes[i], target[i]);
+            log.free(blocks[i]);
+        }
+        fileSystem.storeINode(inode, inodeNumber);
+        fileSystem.refreshOpenINode(inodeNumber, inode);
+        return true;
+    }
+}
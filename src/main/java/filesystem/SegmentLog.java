@@ -0,0 +1,546 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Log-structured placement of data blocks and inodes, used by a
+ * <code>FileSystem</code> while log-structured writes are turned on.
+ *
+ * The data blocks are divided into segments of consecutive logical blocks
+ * that start on a stripe boundary.  A write does not look for free blocks
+ * one at a time: its blocks are appended to the segment being filled and
+ * kept in memory until the segment is flushed, so many small writes reach
+ * the members as a few large sequential ones, and with RAID 5 as whole
+ * stripes that need no read-modify-write.
+ *
+ * Inodes are appended too.  A changed inode is kept in memory and a copy
+ * is added to the segment when it is flushed; the inode map records which
+ * block holds the newest copy of every inode.  A checkpoint copies the
+ * newest versions into the inode table and frees the copies.  Blocks
+ * released by overwrites and deletes are freed when the segment is
+ * flushed, so the free block list is written once per flush instead of
+ * once per write.
+ *
+ * Block 0 of a segment is its summary: a magic number, a sequence number,
+ * the number of slots in use and, for every other slot, the inode it was
+ * written for and the index of the block in that file (0xFF for an inode
+ * copy).  The <code>SegmentCleaner</code> uses the summaries to tell live
+ * blocks from dead ones, and <code>replay</code> uses them to recover
+ * inodes that were logged but never checkpointed.
+ */
+public class SegmentLog {
+    static final int SUMMARY_MAGIC = 0x53454753;
+    static final int INODE_COPY_MAGIC = 0x494E4F44;
+    static final int EMPTY = -1;
+    static final int INODE_COPY = 0xFF;
+    private static final int MAX_SEGMENT_BLOCKS = 64;
+    private static final int COPY_HEADER_SIZE = 3 * Integer.BYTES;
+
+    // Inodes kept only in the log before a checkpoint is forced
+    private static final int CHECKPOINT_INODES = 128;
+
+    private final RaidArray raid;
+    private final Disk diskDevice;
+    private final int segmentBlocks;
+    private final int numSegments;
+
+    // Full segments written since log-structured writes were turned on, oldest first
+    private final Map<Integer, int[]> sealed = new LinkedHashMap<>();
+
+    // The segment being filled; slots from flushedSlots to nextSlot are only in the buffer
+    private int activeSegment = -1;
+    private int[] activeSummary;
+    private int activeSequence;
+    private final byte[][] buffer;
+    private int nextSlot;
+    private int flushedSlots;
+    private int lastOpened = -1;
+    private int segmentSequence;
+    private int copySequence;
+
+    // Inode map: block holding the newest copy of each inode, or -1 if the inode table is current
+    private final int[] inodeMap = new int[Disk.NUM_INODES];
+    // Newest version of every inode the inode table is behind on
+    private final Map<Integer, INode> latest = new HashMap<>();
+    // Inodes changed since the last flush
+    private final Set<Integer> unflushed = new LinkedHashSet<>();
+    private final BitSet pendingFrees = new BitSet(Disk.NUM_BLOCKS);
+
+    /**
+     * Creates an empty log over the data blocks of <code>raid</code>
+     *
+     * @param raid The array the segments are written to
+     * @param diskDevice The disk holding the inode table and the free block list
+     */
+    public SegmentLog(RaidArray raid, Disk diskDevice) {
+        this.raid = raid;
+        this.diskDevice = diskDevice;
+        this.segmentBlocks = segmentBlocks(raid);
+        this.numSegments = Disk.NUM_BLOCKS / segmentBlocks;
+        this.buffer = new byte[segmentBlocks][];
+        Arrays.fill(inodeMap, -1);
+    }
+
+    /**
+     * Returns the number of blocks in a segment of <code>raid</code>: as many
+     * whole stripes as fit in <code>MAX_SEGMENT_BLOCKS</code>, at least one
+     */
+    static int segmentBlocks(RaidArray raid) {
+        int stripeWidth = raid.getStripeWidth();
+        return Math.max(1, MAX_SEGMENT_BLOCKS / stripeWidth) * stripeWidth;
+    }
+
+    public int getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    /**
+     * Returns the first block of a segment, which holds its summary
+     */
+    public int getSegmentStart(int segment) {
+        return segment * segmentBlocks;
+    }
+
+    /**
+     * Returns the full segments written since the log was started, oldest first
+     */
+    public List<Integer> getSealedSegments() {
+        return new ArrayList<>(sealed.keySet());
+    }
+
+    /**
+     * Returns the summary entries of a sealed segment, one per slot
+     */
+    int[] getSummary(int segment) {
+        return sealed.get(segment);
+    }
+
+    /**
+     * Returns the block holding the newest logged copy of an inode, or -1
+     */
+    int getInodeCopy(int inodeNumber) {
+        return inodeMap[inodeNumber];
+    }
+
+    static int entry(int inodeNumber, int index) {
+        return (inodeNumber << 8) | index;
+    }
+
+    static int entryINode(int entry) {
+        return entry >>> 8;
+    }
+
+    static int entryIndex(int entry) {
+        return entry & 0xFF;
+    }
+
+    /**
+     * Appends the data blocks of a file to the log
+     *
+     * @param inodeNumber The file the blocks belong to
+     * @param blocks Contents of the blocks, in file order
+     * @return The blocks the data was placed in, or null if there are not enough free segments
+     * @throws IOException If a segment cannot be written
+     */
+    public int[] append(int inodeNumber, byte[][] blocks) throws IOException {
+        int[] indexes = new int[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            indexes[i] = i;
+        }
+        return append(inodeNumber, indexes, blocks);
+    }
+
+    /**
+     * Appends blocks of a file to the log
+     *
+     * @param inodeNumber The file the blocks belong to
+     * @param indexes Position of each block in the file
+     * @param blocks Contents of the blocks
+     * @return The blocks the data was placed in, or null if there are not enough free segments
+     * @throws IOException If a segment cannot be written
+     */
+    public int[] append(int inodeNumber, int[] indexes, byte[][] blocks) throws IOException {
+        int room = activeSegment == -1 ? 0 : segmentBlocks - nextSlot;
+        // Copies of the changed inodes may take slots of their own when a segment fills up
+        int needed = blocks.length + unflushed.size() + 1 - room;
+        if (needed > 0 && countFreeSegments((needed + segmentBlocks - 2) / (segmentBlocks - 1)) <
+                          (needed + segmentBlocks - 2) / (segmentBlocks - 1)) {
+            return null;
+        }
+
+        int[] placed = new int[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            if (activeSegment != -1 && nextSlot == segmentBlocks) {
+                flush();
+            }
+            if ((activeSegment == -1 || nextSlot == segmentBlocks) && !openSegment()) {
+                throw new IOException("SegmentLog::append: ran out of free segments");
+            }
+            placed[i] = getSegmentStart(activeSegment) + nextSlot;
+            buffer[nextSlot] = blocks[i];
+            activeSummary[nextSlot] = entry(inodeNumber, indexes[i]);
+            nextSlot++;
+        }
+        return placed;
+    }
+
+    /**
+     * Returns true if a block is in the segment buffer and not on the members yet
+     */
+    public boolean isBuffered(int whichBlock) {
+        if (activeSegment == -1) {
+            return false;
+        }
+        int start = getSegmentStart(activeSegment);
+        return whichBlock >= start + flushedSlots && whichBlock < start + nextSlot;
+    }
+
+    /**
+     * Records a new version of an inode.  It reaches the log with the next
+     * flush and the inode table with the next checkpoint.
+     *
+     * @param inodeNumber The inode
+     * @param inode Its new contents
+     * @throws IOException If a checkpoint is due and cannot be written
+     */
+    public void updateInode(int inodeNumber, INode inode) throws IOException {
+        latest.put(inodeNumber, copyOf(inode));
+        unflushed.add(inodeNumber);
+        if (latest.size() > CHECKPOINT_INODES) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Returns the newest version of an inode if the inode table is behind on it
+     *
+     * @param inodeNumber The inode
+     * @return A copy of the newest version, or null if the inode table is current
+     */
+    public INode getInode(int inodeNumber) {
+        INode inode = latest.get(inodeNumber);
+        return inode == null ? null : copyOf(inode);
+    }
+
+    /**
+     * Frees a block with the next flush
+     */
+    public void free(int whichBlock) {
+        pendingFrees.set(whichBlock);
+    }
+
+    /**
+     * Adds copies of the changed inodes to the log, writes everything still
+     * in the segment buffer to the members, then frees the released blocks
+     *
+     * @throws IOException If the segment cannot be written
+     */
+    public void flush() throws IOException {
+        for (int inodeNumber : unflushed) {
+            if ((activeSegment == -1 || nextSlot == segmentBlocks) && !openSegment()) {
+                // Nowhere to log it, so the inode table gets it directly
+                writeBack(inodeNumber);
+                continue;
+            }
+
+            ByteBuffer copy = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+            copy.putInt(INODE_COPY_MAGIC);
+            copy.putInt(inodeNumber);
+            copy.putInt(++copySequence);
+            copy.put(Disk.inodeRecord(latest.get(inodeNumber)));
+
+            if (inodeMap[inodeNumber] != -1) {
+                free(inodeMap[inodeNumber]);
+            }
+            inodeMap[inodeNumber] = getSegmentStart(activeSegment) + nextSlot;
+            buffer[nextSlot] = copy.array();
+            activeSummary[nextSlot] = entry(inodeNumber, INODE_COPY);
+            nextSlot++;
+        }
+        unflushed.clear();
+
+        writeOut();
+        applyFrees();
+    }
+
+    /**
+     * Writes the segment buffer out and copies the newest version of every
+     * logged inode into the inode table, after which the inode map is empty
+     *
+     * @throws IOException If the segment or the inode table cannot be written
+     */
+    public void checkpoint() throws IOException {
+        // The inode table is about to get these directly, so they need no copies in the log
+        unflushed.clear();
+        writeOut();
+
+        for (int inodeNumber : new ArrayList<>(latest.keySet())) {
+            writeBack(inodeNumber);
+        }
+        applyFrees();
+    }
+
+    /**
+     * Checkpoints, then gives back the unused part of the segment being
+     * filled and the summary blocks, leaving nothing on disk that only the
+     * log knows about
+     *
+     * @throws IOException If the log cannot be written out
+     */
+    public void close() throws IOException {
+        checkpoint();
+        if (activeSegment != -1) {
+            for (int slot = nextSlot; slot < segmentBlocks; slot++) {
+                free(getSegmentStart(activeSegment) + slot);
+            }
+            free(getSegmentStart(activeSegment));
+            activeSegment = -1;
+        }
+        for (int segment : sealed.keySet()) {
+            free(getSegmentStart(segment));
+        }
+        sealed.clear();
+        applyFrees();
+    }
+
+    /**
+     * Forgets a sealed segment whose live blocks have been moved out; its
+     * summary block is freed with the next flush
+     */
+    void releaseSegment(int segment) {
+        sealed.remove(segment);
+        free(getSegmentStart(segment));
+    }
+
+    /**
+     * Returns the blocks that are allocated for the log without any file
+     * pointing at them: summaries, inode copies, reserved slots not yet
+     * used and blocks waiting to be freed
+     */
+    public BitSet getOwnedBlocks() {
+        BitSet owned = (BitSet) pendingFrees.clone();
+        for (int segment : sealed.keySet()) {
+            owned.set(getSegmentStart(segment));
+        }
+        if (activeSegment != -1) {
+            int start = getSegmentStart(activeSegment);
+            owned.set(start);
+            owned.set(start + nextSlot, start + segmentBlocks);
+        }
+        for (int copy : inodeMap) {
+            if (copy != -1) {
+                owned.set(copy);
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Copies the newest version of every inode that was logged but never
+     * checkpointed into the inode table.  Used when mounting an image that
+     * was not unmounted cleanly, before it is checked; the summaries and
+     * copies are then freed by the checker like any other unreferenced block.
+     *
+     * @param raid The array holding the segments
+     * @param diskDevice The disk holding the inode table
+     * @return The number of inodes restored
+     * @throws IOException If the inode table cannot be written
+     */
+    public static int replay(RaidArray raid, Disk diskDevice) throws IOException {
+        int segmentBlocks = segmentBlocks(raid);
+        byte[] freeList = diskDevice.readFreeBlockList();
+        Map<Integer, ByteBuffer> newest = new HashMap<>();
+        Map<Integer, Integer> newestSequence = new HashMap<>();
+
+        for (int start = 0; start + segmentBlocks <= Disk.NUM_BLOCKS; start += segmentBlocks) {
+            if (!isAllocated(freeList, start)) {
+                continue;
+            }
+            try {
+                ByteBuffer summary = ByteBuffer.wrap(raid.readBlock(start));
+                if (summary.getInt() != SUMMARY_MAGIC) {
+                    continue;
+                }
+                summary.getInt(); // segment sequence
+                int used = summary.getInt();
+
+                for (int slot = 1; slot < used; slot++) {
+                    int entry = summary.getInt();
+                    if (entry == EMPTY || entryIndex(entry) != INODE_COPY || !isAllocated(freeList, start + slot)) {
+                        continue;
+                    }
+                    ByteBuffer copy = ByteBuffer.wrap(raid.readBlock(start + slot));
+                    if (copy.getInt() != INODE_COPY_MAGIC || copy.getInt() != entryINode(entry)) {
+                        continue;
+                    }
+                    int sequence = copy.getInt();
+                    Integer seen = newestSequence.get(entryINode(entry));
+                    if (seen == null || sequence > seen) {
+                        newestSequence.put(entryINode(entry), sequence);
+                        newest.put(entryINode(entry), copy);
+                    }
+                }
+            } catch (ChecksumMismatchException e) {
+                System.err.println("SegmentLog::replay: skipping segment at block " + start + ": " + e.getMessage());
+            }
+        }
+
+        for (Map.Entry<Integer, ByteBuffer> copy : newest.entrySet()) {
+            diskDevice.writeInode(Disk.parseInode(copy.getValue()), copy.getKey());
+        }
+        return newest.size();
+    }
+
+    /**
+     * Writes the slots of the segment buffer that are not on the members
+     * yet, then the summary, so a summary never names a slot that was not written
+     */
+    private void writeOut() throws IOException {
+        if (activeSegment == -1 || flushedSlots == nextSlot) {
+            return;
+        }
+
+        int start = getSegmentStart(activeSegment);
+        int count = nextSlot - flushedSlots;
+        int[] blocks = new int[count];
+        byte[][] blockData = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = start + flushedSlots + i;
+            blockData[i] = buffer[flushedSlots + i];
+            buffer[flushedSlots + i] = null;
+        }
+        raid.writeBlocks(blocks, blockData);
+        raid.writeBlock(start, encodeSummary());
+        flushedSlots = nextSlot;
+    }
+
+    /**
+     * Seals the segment being filled and reserves the next free one
+     *
+     * @return False if no segment is completely free
+     */
+    private boolean openSegment() throws IOException {
+        byte[] freeList = diskDevice.readFreeBlockList();
+        int segment = nextFreeSegment(freeList, lastOpened);
+        if (segment == -1) {
+            return false;
+        }
+
+        if (activeSegment != -1) {
+            writeOut();
+            sealed.put(activeSegment, activeSummary);
+        }
+
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(freeList);
+        int start = getSegmentStart(segment);
+        for (int block = start; block < start + segmentBlocks; block++) {
+            freeBlockList.allocateBlock(block);
+        }
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+
+        activeSegment = segment;
+        activeSummary = new int[segmentBlocks];
+        Arrays.fill(activeSummary, EMPTY);
+        activeSequence = ++segmentSequence;
+        nextSlot = 1;
+        flushedSlots = 1;
+        lastOpened = segment;
+
+        // An empty summary goes out first so whatever an earlier use of the segment left behind is never replayed
+        raid.writeBlock(start, encodeSummary());
+        System.out.printf("SegmentLog: opened segment %d at blocks %d-%d%n", segment, start, start + segmentBlocks - 1);
+        return true;
+    }
+
+    /**
+     * Returns the first completely free segment after <code>after</code>, wrapping around, or -1
+     */
+    private int nextFreeSegment(byte[] freeList, int after) {
+        for (int i = 1; i <= numSegments; i++) {
+            int segment = (after + i + numSegments) % numSegments;
+            if (segment != activeSegment && isFree(freeList, segment)) {
+                return segment;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Counts completely free segments, stopping once <code>enough</code> have been found
+     */
+    private int countFreeSegments(int enough) throws IOException {
+        byte[] freeList = diskDevice.readFreeBlockList();
+        int found = 0;
+        for (int segment = 0; segment < numSegments && found < enough; segment++) {
+            if (segment != activeSegment && isFree(freeList, segment)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private boolean isFree(byte[] freeList, int segment) {
+        int start = getSegmentStart(segment);
+        for (int block = start; block < start + segmentBlocks; block++) {
+            if (isAllocated(freeList, block)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encodeSummary() {
+        ByteBuffer summary = ByteBuffer.allocate(Disk.BLOCK_SIZE);
+        summary.putInt(SUMMARY_MAGIC);
+        summary.putInt(activeSequence);
+        summary.putInt(nextSlot);
+        for (int slot = 1; slot < nextSlot; slot++) {
+            summary.putInt(activeSummary[slot]);
+        }
+        return summary.array();
+    }
+
+    /**
+     * Copies the newest version of an inode into the inode table and drops it from the inode map
+     */
+    private void writeBack(int inodeNumber) throws IOException {
+        diskDevice.writeInode(latest.remove(inodeNumber), inodeNumber);
+        if (inodeMap[inodeNumber] != -1) {
+            free(inodeMap[inodeNumber]);
+            inodeMap[inodeNumber] = -1;
+        }
+    }
+
+    private void applyFrees() throws IOException {
+        if (pendingFrees.isEmpty()) {
+            return;
+        }
+        FreeBlockList freeBlockList = new FreeBlockList();
+        freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        for (int block = pendingFrees.nextSetBit(0); block >= 0; block = pendingFrees.nextSetBit(block + 1)) {
+            freeBlockList.deallocateBlock(block);
+        }
+        diskDevice.writeFreeBlockList(freeBlockList.getFreeBlockList());
+        pendingFrees.clear();
+    }
+
+    private static INode copyOf(INode inode) {
+        return Disk.parseInode(ByteBuffer.wrap(Disk.inodeRecord(inode)));
+    }
+
+    private static boolean isAllocated(byte[] freeList, int block) {
+        return (freeList[block / 8] & (1 << (block % 8))) != 0;
+    }
+}
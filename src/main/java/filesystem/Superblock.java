@@ -0,0 +1,180 @@
+package filesystem;
+
+import java.util.BitSet;
+
+
+/**
+ * The superblock records how an image was laid out and whether it was
+ * unmounted cleanly.  It also keeps a summary of the allocation state, the
+ * number of free blocks and which inodes hold a file, so a clean image can
+ * be mounted without scanning the inode table.  Member disks that failed
+ * are recorded too, so a stale copy is not taken back into use at the next
+ * mount.
+ *
+ * An image is marked dirty as soon as it is mounted and clean again only
+ * after everything has been flushed by <code>FileSystem.unmount</code>; an
+ * image found dirty at mount time is checked and repaired first.
+ */
+public class Superblock {
+    public static final int MAGIC = 0x46534B31;
+    public static final int VERSION = 3;
+    // Members whose failure can be recorded, one bit each
+    public static final int MAX_TRACKED_MEMBERS = Integer.SIZE;
+    public static final int STATE_CLEAN = 1;
+    public static final int STATE_DIRTY = 2;
+
+    private int magic;
+    private int version;
+    private int state;
+    private RaidLevel raidLevel;
+    private int numDisks;
+    private int mountCount;
+    private int freeBlockCount;
+    private BitSet inodesInUse;
+    private int failedMembers;
+
+    /**
+     * Creates the superblock of a freshly formatted image
+     *
+     * @param raidLevel How the data blocks are laid out across the member disks
+     * @param numDisks Number of member disks
+     */
+    public Superblock(RaidLevel raidLevel, int numDisks) {
+        this.magic = MAGIC;
+        this.version = VERSION;
+        this.state = STATE_CLEAN;
+        this.raidLevel = raidLevel;
+        this.numDisks = numDisks;
+        this.mountCount = 0;
+        this.freeBlockCount = Disk.NUM_BLOCKS;
+        this.inodesInUse = new BitSet(Disk.NUM_INODES);
+    }
+
+    /**
+     * Returns true if the magic number and version identify an image this code can mount
+     */
+    public boolean isValid() {
+        return magic == MAGIC && version == VERSION;
+    }
+
+    public int getMagic() {
+        return magic;
+    }
+
+    public void setMagic(int magic) {
+        this.magic = magic;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public boolean isClean() {
+        return state == STATE_CLEAN;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    public RaidLevel getRaidLevel() {
+        return raidLevel;
+    }
+
+    public void setRaidLevel(RaidLevel raidLevel) {
+        this.raidLevel = raidLevel;
+    }
+
+    public int getNumDisks() {
+        return numDisks;
+    }
+
+    public void setNumDisks(int numDisks) {
+        this.numDisks = numDisks;
+    }
+
+    public int getMountCount() {
+        return mountCount;
+    }
+
+    public void setMountCount(int mountCount) {
+        this.mountCount = mountCount;
+    }
+
+    public int getFreeBlockCount() {
+        return freeBlockCount;
+    }
+
+    public void setFreeBlockCount(int freeBlockCount) {
+        this.freeBlockCount = freeBlockCount;
+    }
+
+    public boolean isMemberFailed(int whichMember) {
+        return whichMember < MAX_TRACKED_MEMBERS && (failedMembers & (1 << whichMember)) != 0;
+    }
+
+    /**
+     * Records whether a member disk has failed
+     *
+     * @throws IllegalArgumentException If the member is beyond the ones that can be recorded
+     */
+    public void setMemberFailed(int whichMember, boolean isFailed) throws IllegalArgumentException {
+        if (whichMember < 0 || whichMember >= MAX_TRACKED_MEMBERS) {
+            throw new IllegalArgumentException("Superblock::setMemberFailed: only the first " +
+                    MAX_TRACKED_MEMBERS + " members can be recorded, got " + whichMember);
+        }
+        if (isFailed) {
+            failedMembers |= 1 << whichMember;
+        } else {
+            failedMembers &= ~(1 << whichMember);
+        }
+    }
+
+    /**
+     * Returns the failed members as a bitmask, bit i for member i
+     */
+    public int getFailedMembers() {
+        return failedMembers;
+    }
+
+    public void setFailedMembers(int failedMembers) {
+        this.failedMembers = failedMembers;
+    }
+
+    public boolean isInodeInUse(int whichInode) {
+        return inodesInUse.get(whichInode);
+    }
+
+    public void setInodeInUse(int whichInode, boolean inUse) {
+        inodesInUse.set(whichInode, inUse);
+    }
+
+    /**
+     * Returns the number of inodes holding a file
+     */
+    public int getFileCount() {
+        return inodesInUse.cardinality();
+    }
+
+    /**
+     * Returns the inode allocation bitmap, one bit per inode
+     */
+    public byte[] getInodeBitmap() {
+        byte[] bitmap = new byte[Disk.NUM_INODES / 8];
+        byte[] used = inodesInUse.toByteArray();
+        System.arraycopy(used, 0, bitmap, 0, used.length);
+        return bitmap;
+    }
+
+    public void setInodeBitmap(byte[] bitmap) {
+        this.inodesInUse = BitSet.valueOf(bitmap);
+    }
+}
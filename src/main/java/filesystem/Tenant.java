@@ -0,0 +1,175 @@
+package filesystem;
+
+import java.io.IOException;
+
+
+/**
+ * A client sharing a <code>FileSystem</code> with others.  A tenant has a
+ * weight that sets its share of the device when the <code>IoScheduler</code>
+ * is busy, optional limits on block operations and bytes per second, and
+ * optional quotas on the data blocks and inodes its files use.
+ *
+ * Files are charged to the tenant that created them; the owner is stored in
+ * the inode so the usage can be recomputed when the tenant is registered
+ * with a file system again.
+ */
+public class Tenant {
+    /**
+     * Owner of files created without a tenant; such files are never charged
+     */
+    public static final int NO_TENANT = 0;
+
+    private final int id;
+    private final String name;
+    private final int weight;
+    private TokenBucket iopsLimit = TokenBucket.unlimited();
+    private TokenBucket bandwidthLimit = TokenBucket.unlimited();
+    private int blockQuota = Integer.MAX_VALUE;
+    private int inodeQuota = Integer.MAX_VALUE;
+
+    // Usage, guarded by the file system the tenant is registered with
+    private int blocksUsed;
+    private int inodesUsed;
+
+    /**
+     * Creates a tenant without limits or quotas
+     *
+     * @param id Id stored in the inodes of the tenant's files, greater than <code>NO_TENANT</code>
+     * @param name Name used in messages
+     * @param weight Share of the device relative to the other tenants
+     * @throws IllegalArgumentException If the id or the weight is not positive
+     */
+    public Tenant(int id, String name, int weight) throws IllegalArgumentException {
+        if (id <= NO_TENANT) {
+            throw new IllegalArgumentException("Tenant: id must be positive, got " + id);
+        }
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Tenant: weight must be positive, got " + weight);
+        }
+        this.id = id;
+        this.name = name;
+        this.weight = weight;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Limits the tenant to a number of block reads and writes per second,
+     * allowing bursts of up to one second's worth
+     *
+     * @param opsPerSecond Block operations per second, 0 for no limit
+     */
+    public void setIopsLimit(int opsPerSecond) {
+        this.iopsLimit = opsPerSecond > 0 ? new TokenBucket(opsPerSecond, opsPerSecond) : TokenBucket.unlimited();
+    }
+
+    /**
+     * Limits the tenant to a number of bytes read and written per second,
+     * allowing bursts of up to one second's worth
+     *
+     * @param bytesPerSecond Bytes per second, 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        this.bandwidthLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond)
+                                                 : TokenBucket.unlimited();
+    }
+
+    public TokenBucket getIopsLimit() {
+        return iopsLimit;
+    }
+
+    public TokenBucket getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    public int getBlockQuota() {
+        return blockQuota;
+    }
+
+    public void setBlockQuota(int blockQuota) {
+        this.blockQuota = blockQuota;
+    }
+
+    public int getInodeQuota() {
+        return inodeQuota;
+    }
+
+    public void setInodeQuota(int inodeQuota) {
+        this.inodeQuota = inodeQuota;
+    }
+
+    public int getBlocksUsed() {
+        return blocksUsed;
+    }
+
+    public int getInodesUsed() {
+        return inodesUsed;
+    }
+
+    /**
+     * Charges data blocks to the tenant
+     *
+     * @param blocks Number of blocks about to be allocated
+     * @throws IOException If the blocks would take the tenant over its quota
+     */
+    void chargeBlocks(int blocks) throws IOException {
+        checkBlocks(blocks);
+        blocksUsed += blocks;
+    }
+
+    /**
+     * Checks that the tenant could take on more blocks, without charging them
+     *
+     * @param blocks Change in the number of blocks used; negative if some would be freed
+     * @throws IOException If the change would take the tenant over its quota
+     */
+    void checkBlocks(int blocks) throws IOException {
+        if (blocks > 0 && blocksUsed + blocks > blockQuota) {
+            throw new IOException("Tenant::chargeBlocks: " + name + " would use " + (blocksUsed + blocks) +
+                    " blocks, over its quota of " + blockQuota);
+        }
+    }
+
+    void releaseBlocks(int blocks) {
+        blocksUsed = Math.max(0, blocksUsed - blocks);
+    }
+
+    /**
+     * Charges an inode to the tenant
+     *
+     * @throws IOException If the tenant already has as many files as its quota allows
+     */
+    void chargeInode() throws IOException {
+        if (inodesUsed + 1 > inodeQuota) {
+            throw new IOException("Tenant::chargeInode: " + name + " is at its quota of " + inodeQuota + " files");
+        }
+        inodesUsed++;
+    }
+
+    void releaseInode() {
+        inodesUsed = Math.max(0, inodesUsed - 1);
+    }
+
+    /**
+     * Sets the usage found by scanning the inode table
+     */
+    void setUsage(int blocksUsed, int inodesUsed) {
+        this.blocksUsed = blocksUsed;
+        this.inodesUsed = inodesUsed;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (tenant " + id + ", weight " + weight + ")";
+    }
+}
@@ -0,0 +1,75 @@
+package filesystem;
+
+
+/**
+ * Token bucket rate limiter.  Tokens accumulate at a fixed rate up to the
+ * size of the bucket, and an operation may go ahead once enough tokens are
+ * available.  An operation larger than the whole bucket is let through
+ * when the bucket is full and leaves it in debt, so it is delayed rather
+ * than refused forever.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param tokensPerSecond Rate at which tokens are added, 0 or less for no limit
+     * @param capacity Maximum number of tokens the bucket holds
+     */
+    public TokenBucket(double tokensPerSecond, double capacity) {
+        this.tokensPerNano = tokensPerSecond / 1_000_000_000d;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Returns a bucket that never limits anything
+     */
+    public static TokenBucket unlimited() {
+        return new TokenBucket(0, 0);
+    }
+
+    public boolean isUnlimited() {
+        return tokensPerNano <= 0;
+    }
+
+    /**
+     * Returns how long to wait before <code>amount</code> tokens can be taken
+     *
+     * @param amount Number of tokens the operation needs
+     * @return Nanoseconds until the tokens are available, 0 if they are available now
+     */
+    public synchronized long nanosUntilAvailable(double amount) {
+        if (isUnlimited()) {
+            return 0;
+        }
+        refill();
+        double needed = Math.min(amount, capacity) - tokens;
+        return needed <= 0 ? 0 : (long) Math.ceil(needed / tokensPerNano);
+    }
+
+    /**
+     * Takes <code>amount</code> tokens; call only once
+     * <code>nanosUntilAvailable</code> has returned 0
+     *
+     * @param amount Number of tokens the operation uses
+     */
+    public synchronized void take(double amount) {
+        if (isUnlimited()) {
+            return;
+        }
+        refill();
+        tokens -= amount;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + ((now - lastRefill) * tokensPerNano));
+        lastRefill = now;
+    }
+}
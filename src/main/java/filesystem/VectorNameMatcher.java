@@ -0,0 +1,88 @@
+package filesystem;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Name matching with the Vector API: a name slot is compared with one
+ * vector compare per <code>SPECIES</code> lanes, a single compare for the
+ * whole 64-byte name on hardware with 512-bit vectors.  Only loaded by
+ * <code>NameMatcher.create</code> when <code>jdk.incubator.vector</code> is present.
+ */
+class VectorNameMatcher implements NameMatcher {
+    // The widest vectors the hardware has, but no wider than a name
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.vectorBitSize() <= NAME_SIZE * 8
+            ? ByteVector.SPECIES_PREFERRED
+            : VectorSpecies.of(byte.class, VectorShape.forBitSize(NAME_SIZE * 8));
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int nextEqual(byte[] names, int from, int to, byte[] query) {
+        if (LANES == NAME_SIZE) {
+            ByteVector wanted = ByteVector.fromArray(SPECIES, query, 0);
+            for (int slot = from; slot < to; slot++) {
+                if (ByteVector.fromArray(SPECIES, names, slot * NAME_SIZE).eq(wanted).allTrue()) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        for (int slot = from; slot < to; slot++) {
+            int base = slot * NAME_SIZE;
+            boolean equal = true;
+            for (int i = 0; i < NAME_SIZE && equal; i += LANES) {
+                equal = ByteVector.fromArray(SPECIES, names, base + i)
+                        .eq(ByteVector.fromArray(SPECIES, query, i)).allTrue();
+            }
+            if (equal) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int nextWithPrefix(byte[] names, int from, int to, byte[] prefix, int length) {
+        if (LANES == NAME_SIZE) {
+            ByteVector wanted = ByteVector.fromArray(SPECIES, prefix, 0);
+            VectorMask<Byte> inPrefix = SPECIES.indexInRange(0, length);
+            for (int slot = from; slot < to; slot++) {
+                int base = slot * NAME_SIZE;
+                if (names[base] != 0 &&
+                        !ByteVector.fromArray(SPECIES, names, base).compare(VectorOperators.NE, wanted, inPrefix).anyTrue()) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        int vectors = Math.max(1, (length + LANES - 1) / LANES);
+        for (int slot = from; slot < to; slot++) {
+            int base = slot * NAME_SIZE;
+            if (names[base] == 0) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < vectors * LANES && matches; i += LANES) {
+                matches = !ByteVector.fromArray(SPECIES, names, base + i)
+                        .compare(VectorOperators.NE, ByteVector.fromArray(SPECIES, prefix, i),
+                                 SPECIES.indexInRange(i, length))
+                        .anyTrue();
+            }
+            if (matches) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + LANES + " lanes)";
+    }
+}
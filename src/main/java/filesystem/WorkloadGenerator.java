@@ -0,0 +1,127 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Produces synthetic traces shaped like production load: a fixed set of
+ * files whose popularity follows a Zipf distribution, sizes drawn from a
+ * log-normal distribution, and a mix of reads and whole-file writes.
+ * Arrivals are spaced by exponentially distributed gaps, so a paced
+ * replay offers load like independent users would.
+ */
+public class WorkloadGenerator {
+    // Largest file the block pointers of an inode can describe
+    static final int MAX_FILE_SIZE = INode.NUM_BLOCK_POINTERS * Disk.BLOCK_SIZE;
+
+    private final int files;
+    private final double readFraction;
+    private final Random random;
+
+    // Cumulative probability of picking each popularity rank
+    private final double[] rankCdf;
+    // File behind each popularity rank, so the popular files are not all neighbours in the inode table
+    private final int[] fileForRank;
+    private final int[] sizes;
+
+    /**
+     * Creates a generator
+     *
+     * @param files Number of distinct files
+     * @param zipfExponent Skew of file popularity; 0 picks every file equally often, around 1 is typical
+     * @param medianSize Median file size in bytes
+     * @param sizeSigma Spread of the log-normal size distribution
+     * @param readFraction Fraction of operations that are reads, the rest are writes
+     * @param seed Seed of the random numbers, so a workload can be generated again
+     * @throws IllegalArgumentException If a parameter is out of range
+     */
+    public WorkloadGenerator(int files, double zipfExponent, int medianSize, double sizeSigma, double readFraction,
+                             long seed) throws IllegalArgumentException {
+        if (files <= 0 || files > Disk.NUM_INODES) {
+            throw new IllegalArgumentException("WorkloadGenerator: files must be between 1 and " +
+                    Disk.NUM_INODES + ", got " + files);
+        }
+        if (zipfExponent < 0 || medianSize <= 0 || sizeSigma < 0 || readFraction < 0 || readFraction > 1) {
+            throw new IllegalArgumentException("WorkloadGenerator: invalid distribution parameters");
+        }
+        this.files = files;
+        this.readFraction = readFraction;
+        this.random = new Random(seed);
+
+        rankCdf = new double[files];
+        double total = 0;
+        for (int rank = 0; rank < files; rank++) {
+            total += 1 / Math.pow(rank + 1, zipfExponent);
+            rankCdf[rank] = total;
+        }
+        for (int rank = 0; rank < files; rank++) {
+            rankCdf[rank] /= total;
+        }
+
+        fileForRank = new int[files];
+        for (int i = 0; i < files; i++) {
+            fileForRank[i] = i;
+        }
+        for (int i = files - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = fileForRank[i];
+            fileForRank[i] = fileForRank[j];
+            fileForRank[j] = swap;
+        }
+
+        sizes = new int[files];
+        double mu = Math.log(medianSize);
+        for (int i = 0; i < files; i++) {
+            double size = Math.exp(mu + sizeSigma * random.nextGaussian());
+            sizes[i] = (int) Math.max(1, Math.min(MAX_FILE_SIZE, Math.round(size)));
+        }
+    }
+
+    /**
+     * Returns the name of a generated file
+     */
+    public static String fileName(int file) {
+        return "workload-" + file;
+    }
+
+    /**
+     * Returns the size every operation on a file uses
+     */
+    public int sizeOf(int file) {
+        return sizes[file];
+    }
+
+    /**
+     * Generates a trace.  Every operation gets its own client number, so a
+     * replay spreads them evenly over however many clients it runs.
+     *
+     * @param operations Number of operations
+     * @param meanGapNanos Mean time between arrivals, 0 to have them all arrive at once
+     * @return The trace
+     */
+    public WorkloadTrace generate(int operations, long meanGapNanos) {
+        WorkloadTrace trace = new WorkloadTrace();
+        long offset = 0;
+        for (int i = 0; i < operations; i++) {
+            int file = nextFile();
+            WorkloadOp.Kind kind = random.nextDouble() < readFraction ? WorkloadOp.Kind.READ : WorkloadOp.Kind.WRITE;
+            trace.add(new WorkloadOp(offset, i, kind, fileName(file), sizes[file], 0));
+            if (meanGapNanos > 0) {
+                offset += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Picks a file by popularity
+     */
+    int nextFile() {
+        int rank = Arrays.binarySearch(rankCdf, random.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        return fileForRank[Math.min(rank, files - 1)];
+    }
+}
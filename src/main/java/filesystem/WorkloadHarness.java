@@ -0,0 +1,137 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+/**
+ * Runs a workload against a scratch image and prints its throughput and
+ * latency percentiles.  The workload is either a saved trace or a
+ * synthetic one with Zipf file popularity and log-normal file sizes.
+ *
+ * Usage:
+ * <pre>
+ *   WorkloadHarness synthetic [operations] [clients] [options]
+ *   WorkloadHarness replay &lt;trace&gt; [clients] [options]
+ * </pre>
+ * Options: <code>--raid RAID0|RAID5|RAID1|RAID10</code>, <code>--disks n</code>,
+ * <code>--log</code> for log-structured writes, <code>--paced</code> to
+ * keep the recorded timing, <code>--save &lt;trace&gt;</code> to keep a
+ * synthetic trace, and for synthetic workloads <code>--files n</code>,
+ * <code>--zipf s</code>, <code>--median-size bytes</code>,
+ * <code>--size-sigma s</code>, <code>--reads fraction</code> and
+ * <code>--gap-us microseconds</code>.
+ */
+public class WorkloadHarness {
+    private static final int DEFAULT_OPERATIONS = 10000;
+    private static final int DEFAULT_CLIENTS = 4;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || !(args[0].equals("synthetic") || (args[0].equals("replay") && args.length > 1))) {
+            System.err.println("Usage: WorkloadHarness synthetic [operations] [clients] [options]");
+            System.err.println("       WorkloadHarness replay <trace> [clients] [options]");
+            System.exit(1);
+        }
+
+        boolean synthetic = args[0].equals("synthetic");
+        int next = synthetic ? 1 : 2;
+        int operations = DEFAULT_OPERATIONS;
+        if (synthetic && next < args.length && !args[next].startsWith("--")) {
+            operations = Integer.parseInt(args[next++]);
+        }
+        int clients = DEFAULT_CLIENTS;
+        if (next < args.length && !args[next].startsWith("--")) {
+            clients = Integer.parseInt(args[next++]);
+        }
+
+        RaidLevel raidLevel = RaidLevel.RAID0;
+        int disks = 2;
+        boolean logStructured = false;
+        boolean paced = false;
+        String savePath = null;
+        int files = 500;
+        double zipf = 1.0;
+        int medianSize = 2048;
+        double sizeSigma = 1.0;
+        double reads = 0.8;
+        long gapNanos = 0;
+        for (int i = next; i < args.length; i++) {
+            switch (args[i]) {
+                case "--raid":
+                    raidLevel = RaidLevel.valueOf(args[++i]);
+                    break;
+                case "--disks":
+                    disks = Integer.parseInt(args[++i]);
+                    break;
+                case "--log":
+                    logStructured = true;
+                    break;
+                case "--paced":
+                    paced = true;
+                    break;
+                case "--save":
+                    savePath = args[++i];
+                    break;
+                case "--files":
+                    files = Integer.parseInt(args[++i]);
+                    break;
+                case "--zipf":
+                    zipf = Double.parseDouble(args[++i]);
+                    break;
+                case "--median-size":
+                    medianSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--size-sigma":
+                    sizeSigma = Double.parseDouble(args[++i]);
+                    break;
+                case "--reads":
+                    reads = Double.parseDouble(args[++i]);
+                    break;
+                case "--gap-us":
+                    gapNanos = Long.parseLong(args[++i]) * 1000;
+                    break;
+                default:
+                    throw new IllegalArgumentException("WorkloadHarness: unknown option " + args[i]);
+            }
+        }
+
+        WorkloadTrace trace;
+        if (synthetic) {
+            trace = new WorkloadGenerator(files, zipf, medianSize, sizeSigma, reads, 42).generate(operations, gapNanos);
+            if (savePath != null) {
+                trace.save(Paths.get(savePath));
+            }
+        } else {
+            trace = WorkloadTrace.load(Paths.get(args[1]));
+        }
+
+        File directory = Files.createTempDirectory("workload").toFile();
+        PrintStream console = System.out;
+        WorkloadReport report;
+        try {
+            // The file system reports every call on standard output, which would dominate the timings
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            FileSystem fileSystem = FileSystem.mount(directory.getPath(), disks, raidLevel);
+            fileSystem.setLogStructured(logStructured);
+            report = new WorkloadReplayer(fileSystem, clients, paced).replay(trace);
+            fileSystem.unmount();
+        } finally {
+            System.setOut(console);
+            File[] images = directory.listFiles();
+            if (images != null) {
+                for (File image : images) {
+                    image.delete();
+                }
+            }
+            directory.delete();
+        }
+
+        System.out.printf("%s over %d disks%s, %d operations%s%n", raidLevel, disks,
+                logStructured ? ", log-structured" : "", trace.size(), paced ? ", paced" : "");
+        System.out.print(report);
+    }
+}
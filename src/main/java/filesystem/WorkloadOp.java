@@ -0,0 +1,97 @@
+package filesystem;
+
+
+/**
+ * One operation of a <code>WorkloadTrace</code>: what was done to which
+ * file, by which client, and when
+ */
+public class WorkloadOp {
+    /**
+     * The <code>FileSystem</code> call an operation stands for
+     */
+    public enum Kind {
+        CREATE,
+        OPEN,
+        READ,
+        WRITE,
+        DELETE
+    }
+
+    private final long offsetNanos;
+    private final int client;
+    private final Kind kind;
+    private final String fileName;
+    private final int size;
+    private final long latencyNanos;
+
+    /**
+     * Creates an operation
+     *
+     * @param offsetNanos When the operation started, counted from the start of the trace
+     * @param client The client that issued it
+     * @param kind What was done
+     * @param fileName The file it was done to
+     * @param size Bytes read or written, 0 for metadata operations
+     * @param latencyNanos How long it took when it was recorded, 0 if it was not measured
+     */
+    public WorkloadOp(long offsetNanos, int client, Kind kind, String fileName, int size, long latencyNanos) {
+        this.offsetNanos = offsetNanos;
+        this.client = client;
+        this.kind = kind;
+        this.fileName = fileName;
+        this.size = size;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    public int getClient() {
+        return client;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Encodes the operation as a tab separated trace line; the file name
+     * comes last so it may contain spaces
+     */
+    String toLine() {
+        return offsetNanos + "\t" + client + "\t" + kind + "\t" + size + "\t" + latencyNanos + "\t" + fileName;
+    }
+
+    /**
+     * Decodes a line written by <code>toLine</code>
+     *
+     * @throws IllegalArgumentException If the line is not a trace line
+     */
+    static WorkloadOp fromLine(String line) throws IllegalArgumentException {
+        String[] fields = line.split("\t", 6);
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("WorkloadOp::fromLine: expected 6 fields in \"" + line + "\"");
+        }
+        return new WorkloadOp(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Kind.valueOf(fields[2]),
+                fields[5], Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+    }
+
+    @Override
+    public String toString() {
+        return "+" + offsetNanos / 1000 + "us client " + client + " " + kind + " " + fileName +
+                (size > 0 ? " (" + size + " bytes)" : "");
+    }
+}
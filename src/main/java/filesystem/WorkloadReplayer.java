@@ -0,0 +1,252 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Plays a <code>WorkloadTrace</code> back against a <code>FileSystem</code>
+ * with a number of concurrent clients and measures how it copes.
+ *
+ * Operation <i>i</i> of the trace goes to client <code>client % clients</code>,
+ * and each client issues its share in trace order.  Unpaced, every client
+ * goes as fast as the file system lets it and latency is the time each call
+ * takes.  Paced, operations are issued at their recorded offsets and
+ * latency is counted from the moment an operation was due, so time spent
+ * waiting behind a slow call is charged to the calls that waited instead of
+ * disappearing from the percentiles.
+ *
+ * Files a trace uses without creating them first are created and filled
+ * before the clock starts.
+ */
+public class WorkloadReplayer {
+    private final FileSystem fileSystem;
+    private final int clients;
+    private final boolean paced;
+
+    // File descriptors by name, shared by the clients
+    private final Map<String, Integer> descriptors = new ConcurrentHashMap<>();
+    private final String payload = "w".repeat(WorkloadGenerator.MAX_FILE_SIZE);
+
+    /**
+     * Creates a replayer
+     *
+     * @param fileSystem The file system to run the workload against
+     * @param clients Number of concurrent clients
+     * @param paced True to issue operations at their recorded offsets, false to issue them back to back
+     * @throws IllegalArgumentException If <code>clients</code> is not positive
+     */
+    public WorkloadReplayer(FileSystem fileSystem, int clients, boolean paced) throws IllegalArgumentException {
+        if (clients <= 0) {
+            throw new IllegalArgumentException("WorkloadReplayer: clients must be positive, got " + clients);
+        }
+        this.fileSystem = fileSystem;
+        this.clients = clients;
+        this.paced = paced;
+    }
+
+    /**
+     * Replays a trace
+     *
+     * @param trace The operations to issue
+     * @return Throughput and latencies of the replay
+     * @throws IOException If the files the trace expects cannot be set up
+     */
+    public WorkloadReport replay(WorkloadTrace trace) throws IOException {
+        List<WorkloadOp> operations = trace.getOperations();
+        prepare(operations);
+
+        List<List<WorkloadOp>> shares = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            shares.add(new ArrayList<>());
+        }
+        for (WorkloadOp op : operations) {
+            shares.get(Math.floorMod(op.getClient(), clients)).add(op);
+        }
+
+        Client[] workers = new Client[clients];
+        Thread[] threads = new Thread[clients];
+        CountDownLatch go = new CountDownLatch(1);
+        for (int c = 0; c < clients; c++) {
+            workers[c] = new Client(shares.get(c), go);
+            threads[c] = new Thread(workers[c], "workload-client-" + c);
+            threads[c].start();
+        }
+
+        long startNanos = System.nanoTime();
+        for (Client worker : workers) {
+            worker.startNanos = startNanos;
+        }
+        go.countDown();
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("WorkloadReplayer::replay: interrupted waiting for the clients");
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        return new WorkloadReport(mergeLatencies(workers), countErrors(workers), elapsedNanos, clients);
+    }
+
+    /**
+     * Creates the files that the trace reads, writes or opens before
+     * creating them, and removes the ones it is going to create
+     */
+    private void prepare(List<WorkloadOp> operations) throws IOException {
+        Set<String> seen = new HashSet<>();
+        for (WorkloadOp op : operations) {
+            String fileName = op.getFileName();
+            if (!seen.add(fileName)) {
+                continue;
+            }
+
+            boolean exists = true;
+            try {
+                descriptors.put(fileName, fileSystem.open(fileName));
+            } catch (IOException e) {
+                exists = false;
+            }
+
+            if (op.getKind() == WorkloadOp.Kind.CREATE) {
+                if (exists) {
+                    fileSystem.delete(fileName);
+                    descriptors.remove(fileName);
+                }
+            } else if (!exists && op.getKind() != WorkloadOp.Kind.DELETE) {
+                int fd = fileSystem.create(fileName);
+                fileSystem.write(fd, payload(op.getSize()));
+                descriptors.put(fileName, fd);
+            }
+        }
+    }
+
+    private String payload(int size) {
+        return payload.substring(0, Math.max(1, Math.min(size, payload.length())));
+    }
+
+    private void execute(WorkloadOp op) throws IOException {
+        String fileName = op.getFileName();
+        switch (op.getKind()) {
+            case CREATE:
+                descriptors.put(fileName, fileSystem.create(fileName));
+                break;
+            case OPEN:
+                descriptors.put(fileName, fileSystem.open(fileName));
+                break;
+            case READ:
+                fileSystem.read(descriptorOf(fileName));
+                break;
+            case WRITE:
+                fileSystem.write(descriptorOf(fileName), payload(op.getSize()));
+                break;
+            case DELETE:
+                fileSystem.delete(fileName);
+                descriptors.remove(fileName);
+                break;
+        }
+    }
+
+    private int descriptorOf(String fileName) throws IOException {
+        Integer fd = descriptors.get(fileName);
+        if (fd == null) {
+            fd = fileSystem.open(fileName);
+            descriptors.put(fileName, fd);
+        }
+        return fd;
+    }
+
+    private static Map<WorkloadOp.Kind, long[]> mergeLatencies(Client[] workers) {
+        Map<WorkloadOp.Kind, long[]> merged = new EnumMap<>(WorkloadOp.Kind.class);
+        for (WorkloadOp.Kind kind : WorkloadOp.Kind.values()) {
+            int count = 0;
+            for (Client worker : workers) {
+                for (int i = 0; i < worker.operations.size(); i++) {
+                    if (worker.latencies[i] >= 0 && worker.operations.get(i).getKind() == kind) {
+                        count++;
+                    }
+                }
+            }
+
+            long[] latencies = new long[count];
+            int filled = 0;
+            for (Client worker : workers) {
+                for (int i = 0; i < worker.operations.size(); i++) {
+                    if (worker.latencies[i] >= 0 && worker.operations.get(i).getKind() == kind) {
+                        latencies[filled++] = worker.latencies[i];
+                    }
+                }
+            }
+            merged.put(kind, latencies);
+        }
+        return merged;
+    }
+
+    private static int countErrors(Client[] workers) {
+        int errors = 0;
+        for (Client worker : workers) {
+            errors += worker.errors;
+        }
+        return errors;
+    }
+
+    /**
+     * Issues one client's share of the trace, keeping the latency of each
+     * operation, or -1 for one that failed
+     */
+    private class Client implements Runnable {
+        final List<WorkloadOp> operations;
+        final long[] latencies;
+        final CountDownLatch go;
+        volatile long startNanos;
+        int errors;
+
+        Client(List<WorkloadOp> operations, CountDownLatch go) {
+            this.operations = operations;
+            this.latencies = new long[operations.size()];
+            this.go = go;
+        }
+
+        @Override
+        public void run() {
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (int i = 0; i < operations.size(); i++) {
+                WorkloadOp op = operations.get(i);
+                long due = System.nanoTime();
+                if (paced) {
+                    due = startNanos + op.getOffsetNanos();
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                try {
+                    execute(op);
+                    latencies[i] = System.nanoTime() - due;
+                } catch (IOException | RuntimeException e) {
+                    latencies[i] = -1;
+                    errors++;
+                }
+            }
+        }
+    }
+}
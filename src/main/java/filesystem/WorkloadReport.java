@@ -0,0 +1,127 @@
+package filesystem;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+
+/**
+ * Throughput and latency percentiles of a workload replay, overall and
+ * for each kind of operation.  Latencies are kept in full, so the
+ * percentiles are exact rather than estimated from buckets.
+ */
+public class WorkloadReport {
+    private final Map<WorkloadOp.Kind, long[]> latencies = new EnumMap<>(WorkloadOp.Kind.class);
+    private final long[] all;
+    private final int errors;
+    private final long elapsedNanos;
+    private final int clients;
+
+    /**
+     * @param latencies Latency in nanoseconds of every completed operation, by kind
+     * @param errors Number of operations that failed
+     * @param elapsedNanos Wall clock time of the replay
+     * @param clients Number of clients that issued the operations
+     */
+    WorkloadReport(Map<WorkloadOp.Kind, long[]> latencies, int errors, long elapsedNanos, int clients) {
+        int total = 0;
+        for (Map.Entry<WorkloadOp.Kind, long[]> kind : latencies.entrySet()) {
+            long[] sorted = kind.getValue().clone();
+            Arrays.sort(sorted);
+            this.latencies.put(kind.getKey(), sorted);
+            total += sorted.length;
+        }
+
+        all = new long[total];
+        int filled = 0;
+        for (long[] sorted : this.latencies.values()) {
+            System.arraycopy(sorted, 0, all, filled, sorted.length);
+            filled += sorted.length;
+        }
+        Arrays.sort(all);
+
+        this.errors = errors;
+        this.elapsedNanos = elapsedNanos;
+        this.clients = clients;
+    }
+
+    /**
+     * Returns the number of operations that completed
+     */
+    public int getOperations() {
+        return all.length;
+    }
+
+    public int getOperations(WorkloadOp.Kind kind) {
+        long[] sorted = latencies.get(kind);
+        return sorted == null ? 0 : sorted.length;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the completed operations per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : all.length / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Returns a latency percentile over all operations
+     *
+     * @param percentile Between 0 and 100, for example 99.9
+     * @return The latency in nanoseconds, 0 if no operation completed
+     */
+    public long getPercentile(double percentile) {
+        return percentile(all, percentile);
+    }
+
+    /**
+     * Returns a latency percentile over the operations of one kind
+     *
+     * @param kind The kind of operation
+     * @param percentile Between 0 and 100, for example 99.9
+     * @return The latency in nanoseconds, 0 if no such operation completed
+     */
+    public long getPercentile(WorkloadOp.Kind kind, double percentile) {
+        long[] sorted = latencies.get(kind);
+        return sorted == null ? 0 : percentile(sorted, percentile);
+    }
+
+    /**
+     * Nearest-rank percentile of sorted latencies
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d clients, %d operations in %.1f ms: %.0f ops/s, %d errors%n",
+                clients, all.length, elapsedNanos / 1e6, getThroughput(), errors));
+        report.append(String.format("%-7s %9s %10s %10s %10s  (us)%n", "", "count", "p50", "p99", "p999"));
+        appendRow(report, "ALL", all);
+        for (Map.Entry<WorkloadOp.Kind, long[]> kind : latencies.entrySet()) {
+            if (kind.getValue().length > 0) {
+                appendRow(report, kind.getKey().toString(), kind.getValue());
+            }
+        }
+        return report.toString();
+    }
+
+    private static void appendRow(StringBuilder report, String label, long[] sorted) {
+        report.append(String.format("%-7s %9d %10.1f %10.1f %10.1f%n", label, sorted.length,
+                percentile(sorted, 50) / 1e3, percentile(sorted, 99) / 1e3, percentile(sorted, 99.9) / 1e3));
+    }
+}
@@ -0,0 +1,111 @@
+package filesystem;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An ordered list of file system operations, either recorded from a live
+ * <code>FileSystem</code> through <code>setRecorder</code> or produced by a
+ * <code>WorkloadGenerator</code>, that a <code>WorkloadReplayer</code> can
+ * play back.  Traces are stored as text, one tab separated operation per
+ * line after a header line.
+ */
+public class WorkloadTrace {
+    private static final String HEADER = "# offsetNanos\tclient\tkind\tsize\tlatencyNanos\tfileName";
+
+    private final List<WorkloadOp> operations = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+
+    // Recording threads by id, numbered in the order they first show up
+    private final Map<Long, Integer> clients = new HashMap<>();
+
+    /**
+     * Appends an operation
+     */
+    public synchronized void add(WorkloadOp op) {
+        operations.add(op);
+    }
+
+    /**
+     * Appends an operation the calling thread has just finished, counting
+     * each recording thread as its own client
+     */
+    synchronized void record(WorkloadOp.Kind kind, String fileName, int size, long opStartNanos, long opEndNanos) {
+        Integer client = clients.get(Thread.currentThread().getId());
+        if (client == null) {
+            client = clients.size();
+            clients.put(Thread.currentThread().getId(), client);
+        }
+        // Names read back from an inode are padded to the name field
+        operations.add(new WorkloadOp(opStartNanos - startNanos, client, kind, fileName.trim(), size,
+                opEndNanos - opStartNanos));
+    }
+
+    /**
+     * Returns the operations in the order they started
+     */
+    public synchronized List<WorkloadOp> getOperations() {
+        List<WorkloadOp> sorted = new ArrayList<>(operations);
+        sorted.sort(Comparator.comparingLong(WorkloadOp::getOffsetNanos));
+        return sorted;
+    }
+
+    public synchronized int size() {
+        return operations.size();
+    }
+
+    /**
+     * Writes the trace to a text file
+     *
+     * @param path The file to write
+     * @throws IOException If the file cannot be written
+     */
+    public void save(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (WorkloadOp op : getOperations()) {
+                writer.write(op.toLine());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Reads a trace written by <code>save</code>
+     *
+     * @param path The file to read
+     * @return The trace
+     * @throws IOException If the file cannot be read or holds a malformed line
+     */
+    public static WorkloadTrace load(Path path) throws IOException {
+        WorkloadTrace trace = new WorkloadTrace();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    trace.add(WorkloadOp.fromLine(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("WorkloadTrace::load: " + path + " line " + lineNumber + ": " +
+                            e.getMessage(), e);
+                }
+            }
+        }
+        return trace;
+    }
+}
@@ -3,7 +3,20 @@ package filesystem;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -141,4 +154,794 @@ class FileSystemTest {
 
         System.out.println("Write operation completed successfully.");
     }
+
+    @Test
+    void testSmallFileStoredInline() throws IOException {
+        int fd = fileSystem.create("testFile");
+        String data = "Omg Hello RAID 0!!!";
+        fileSystem.write(fd, data);
+
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertTrue(inode.isInline(), "A small file should be stored in its inode");
+        assertEquals(data, fileSystem.read(fd), "Inline data should read back unchanged");
+
+        byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+        for (byte b : freeList) {
+            assertEquals(0, b, "An inline file should not allocate any data blocks");
+        }
+    }
+
+    @Test
+    void testTailsShareBlock() throws IOException {
+        String first = "a".repeat(Disk.BLOCK_SIZE + 200);
+        String second = "b".repeat(300);
+
+        int fd1 = fileSystem.create("first");
+        fileSystem.write(fd1, first);
+        int fd2 = fileSystem.create("second");
+        fileSystem.write(fd2, second);
+
+        INode inode1 = fileSystem.diskDevice.readInode(fd1);
+        INode inode2 = fileSystem.diskDevice.readInode(fd2);
+        assertTrue(inode1.isTailPacked() && inode2.isTailPacked(), "Partial final blocks should be tail packed");
+        assertEquals(inode1.getTailBlock(), inode2.getTailBlock(), "Both tails should share one block");
+        assertEquals(first, fileSystem.read(fd1));
+        assertEquals(second, fileSystem.read(fd2));
+
+        fileSystem.delete("first");
+        assertEquals(second, fileSystem.read(fd2), "Deleting one file must keep the other tail intact");
+    }
+
+    @Test
+    void testCloseKeepsWrittenData() throws IOException {
+        int fd = fileSystem.create("testFile");
+        String data = "Hello, RAID 0! ".repeat(40);
+        fileSystem.write(fd, data);
+        fileSystem.close(fd);
+
+        fd = fileSystem.open("testFile");
+        assertEquals(data, fileSystem.read(fd), "Closing the file should not discard what was written");
+    }
+
+    @Test
+    void testCompressedWrite() throws IOException {
+        int fd = fileSystem.create("testFile");
+        fileSystem.setCompression(fd, true);
+
+        StringBuilder message = new StringBuilder();
+        for (int j = 0; j < 400; j++) {
+            message.append(Main.testData).append(j).append(".  ");
+        }
+        String data = message.toString();
+        fileSystem.write(fd, data);
+
+        INode inode = fileSystem.diskDevice.readInode(fd);
+        assertTrue(inode.isCompressed(), "Repetitive text should be stored compressed");
+        assertEquals(data.length(), inode.getSize(), "Inode size should be the uncompressed size");
+        assertTrue(inode.getStoredSize() < data.length() / 2, "Compressed contents should take far less space");
+        assertEquals(data, fileSystem.read(fd), "Compressed data should read back unchanged");
+    }
+
+    @Test
+    void testDeduplicatedBlocksAreShared() throws IOException {
+        fileSystem.setDeduplication(true);
+        String data = "x".repeat(Disk.BLOCK_SIZE * 2);
+
+        int fd1 = fileSystem.create("first");
+        fileSystem.write(fd1, data);
+        int fd2 = fileSystem.create("second");
+        fileSystem.write(fd2, data);
+
+        INode inode1 = fileSystem.diskDevice.readInode(fd1);
+        INode inode2 = fileSystem.diskDevice.readInode(fd2);
+        int shared = inode1.getBlockPointer(0);
+        assertEquals(shared, inode1.getBlockPointer(1), "Identical blocks within a file should be shared");
+        assertEquals(shared, inode2.getBlockPointer(0), "Identical blocks across files should be shared");
+        assertEquals(4, fileSystem.blockTable.getRefCount(shared), "Every pointer should hold a reference");
+
+        fileSystem.delete("first");
+        assertEquals(data, fileSystem.read(fd2), "Deleting one file must keep shared blocks");
+        assertEquals(2, fileSystem.blockTable.getRefCount(shared));
+
+        fileSystem.delete("second");
+        byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+        assertEquals(0, freeList[shared / 8] & (1 << (shared % 8)), "Last reference should free the block");
+    }
+
+    @Test
+    void testRaid5SurvivesLostDisk() throws IOException {
+        FileSystem raid5 = new FileSystem(3, RaidLevel.RAID5);
+        String first = "RAID 5 keeps going. ".repeat(100);
+        String second = "Parity rotates across the disks. ".repeat(20);
+
+        int fd1 = raid5.create("first");
+        raid5.write(fd1, first);
+        int fd2 = raid5.create("second");
+        raid5.write(fd2, second);
+
+        // Every stripe XORs to zero across data and parity
+        for (int stripe = 0; stripe < 4; stripe++) {
+            byte[] parity = new byte[Disk.BLOCK_SIZE];
+            for (Disk member : raid5.disks) {
+                ParityEngine.xorInto(parity, member.readDataBlock(stripe));
+            }
+            assertArrayEquals(new byte[Disk.BLOCK_SIZE], parity, "Stripe " + stripe + " parity should be consistent");
+        }
+
+        raid5.raid.failDisk(1);
+        assertEquals(first, raid5.read(fd1), "Blocks on the lost disk should be reconstructed");
+        assertEquals(second, raid5.read(fd2), "Blocks on the lost disk should be reconstructed");
+
+        String third = "Written while degraded. ".repeat(30);
+        int fd3 = raid5.create("third");
+        raid5.write(fd3, third);
+        assertEquals(third, raid5.read(fd3), "Writes should still work with a lost disk");
+        assertEquals(first, raid5.read(fd1));
+    }
+
+    @Test
+    void testDefragmenterMakesFilesContiguous() throws IOException {
+        String twoBlocks = "y".repeat(Disk.BLOCK_SIZE * 2);
+        for (int i = 0; i < 8; i++) {
+            int fd = fileSystem.create("file" + i);
+            fileSystem.write(fd, twoBlocks);
+        }
+        for (int i = 0; i < 8; i += 2) {
+            fileSystem.delete("file" + i);
+        }
+
+        String big = "Fragmented across the holes. ".repeat(150).substring(0, Disk.BLOCK_SIZE * 8);
+        int fd = fileSystem.create("big");
+        fileSystem.write(fd, big);
+
+        Defragmenter defragmenter = new Defragmenter(fileSystem, 1000);
+        FragmentationReport before = defragmenter.measure();
+        assertEquals(1, before.getFragmentedFiles(), "The new file should be spread over the holes");
+
+        assertEquals(8, defragmenter.step(), "The fragmented file should be relocated");
+        FragmentationReport after = defragmenter.measure();
+        assertEquals(0, after.getFragmentedFiles(), "No file should be fragmented after defragmenting");
+        assertEquals(0, defragmenter.step(), "There should be nothing left to relocate");
+        assertEquals(before.getFreeBlocks(), after.getFreeBlocks(), "Relocation must not leak blocks");
+        assertEquals(big, fileSystem.read(fd), "Relocated file should read back unchanged");
+    }
+
+    @Test
+    void testCheckerFindsAndRepairsDamage() throws IOException {
+        String data = "z".repeat(Disk.BLOCK_SIZE * 2);
+        int fd1 = fileSystem.create("first");
+        fileSystem.write(fd1, data);
+        int fd2 = fileSystem.create("second");
+        fileSystem.write(fd2, data);
+        int fd3 = fileSystem.create("third");
+        fileSystem.write(fd3, data);
+        FileSystemChecker checker = new FileSystemChecker(fileSystem);
+        assertTrue(checker.check(false).isClean(), "A freshly written file system should be consistent");
+
+        // Leak two blocks through an inode that has no file name
+        fileSystem.allocateBlocksForFile(Disk.NUM_INODES - 1, Disk.BLOCK_SIZE * 2);
+        // Point the second file at a block of the first
+        INode second = fileSystem.diskDevice.readInode(fd2);
+        int stolen = fileSystem.diskDevice.readInode(fd1).getBlockPointer(0);
+        int orphaned = second.getBlockPointer(0);
+        second.setBlockPointer(0, stolen);
+        fileSystem.diskDevice.writeInode(second, fd2);
+        // Point the third file past the end of the disk
+        INode third = fileSystem.diskDevice.readInode(fd3);
+        third.setBlockPointer(1, Disk.NUM_BLOCKS + 5);
+        fileSystem.diskDevice.writeInode(third, fd3);
+
+        FsckReport report = checker.check(true);
+        assertEquals(1, report.getOutOfRange().size(), "The out-of-range pointer should be found");
+        assertTrue(report.getDoubleAllocated().contains(stolen), "The shared block should be found");
+        assertTrue(report.getLeaked().contains(orphaned), "The block no file points at should be found");
+        assertEquals(4, report.getLeaked().size(), "Leaked blocks: 2 unnamed, 1 orphaned, 1 overwritten");
+        assertTrue(report.isRepaired());
+
+        assertTrue(checker.check(false).isClean(), "The repaired file system should be consistent");
+        assertNotEquals(fileSystem.diskDevice.readInode(fd1).getBlockPointer(0),
+                fileSystem.diskDevice.readInode(fd2).getBlockPointer(0), "Each file should own its blocks");
+        assertEquals(data, fileSystem.read(fd1), "The first file should be untouched");
+        assertEquals(Disk.BLOCK_SIZE, fileSystem.diskDevice.readInode(fd3).getSize(),
+                "The damaged file should be cut at the bad pointer");
+    }
+
+    @Test
+    void testSnapshotKeepsOldContents() throws IOException {
+        Defragmenter defragmenter = new Defragmenter(fileSystem, 1);
+        int freeBefore = defragmenter.measure().getFreeBlocks();
+        String blocks = "b".repeat(Disk.BLOCK_SIZE * 2 + 100);
+        String small = "tiny";
+        int fd1 = fileSystem.create("blocks");
+        fileSystem.write(fd1, blocks);
+        int fd2 = fileSystem.create("small");
+        fileSystem.write(fd2, small);
+
+        fileSystem.createSnapshot("before");
+        assertEquals(List.of("before"), fileSystem.listSnapshots());
+        assertThrows(IOException.class, () -> fileSystem.createSnapshot("before"));
+
+        fileSystem.close(fd2);
+        // A later tail goes into the tail block the snapshot holds, past the tails it points at
+        String later = "d".repeat(Disk.BLOCK_SIZE + 50);
+        int fd3 = fileSystem.create("later");
+        fileSystem.write(fd3, later);
+        assertEquals(fileSystem.loadINode(fd1).getTailBlock(), fileSystem.loadINode(fd3).getTailBlock());
+
+        fileSystem.write(fd1, "c".repeat(Disk.BLOCK_SIZE * 3));
+        fileSystem.delete("small");
+        assertEquals(blocks, fileSystem.readSnapshot("before", "blocks"), "The snapshot should keep the old blocks");
+        assertEquals(small, fileSystem.readSnapshot("before", "small"), "The snapshot should keep deleted files");
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean(),
+                "Blocks held by a snapshot should not be reported as leaked");
+
+        fileSystem.deleteSnapshot("before");
+        assertTrue(fileSystem.listSnapshots().isEmpty());
+        assertEquals("c".repeat(Disk.BLOCK_SIZE * 3), fileSystem.read(fd1));
+        assertEquals(later, fileSystem.read(fd3), "The tail block should outlive the snapshot while it has live tails");
+        assertEquals(freeBefore - 5, defragmenter.measure().getFreeBlocks(),
+                "Deleting the snapshot should free the blocks only it was using");
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+    }
+
+    @Test
+    void testExportAndImportThroughChannels() throws IOException {
+        String large = "e".repeat(Disk.BLOCK_SIZE * 3) + "tail of the file";
+        int fd = fileSystem.create("large");
+        fileSystem.write(fd, large);
+
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        assertEquals(large.length(), fileSystem.exportTo(fd, Channels.newChannel(exported)));
+        assertEquals(large, exported.toString(), "The export should contain blocks and tail in order");
+
+        int copy = fileSystem.importFrom(Channels.newChannel(new ByteArrayInputStream(exported.toByteArray())), "copy");
+        assertEquals(large, fileSystem.read(copy), "The imported file should read back the same");
+        assertTrue(fileSystem.diskDevice.readInode(copy).isTailPacked(), "A short last block should be packed as a tail");
+
+        int small = fileSystem.importFrom(Channels.newChannel(new ByteArrayInputStream("small".getBytes())), "small");
+        assertTrue(fileSystem.diskDevice.readInode(small).isInline());
+        assertEquals("small", fileSystem.read(small));
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+
+        // A channel failing partway leaves neither blocks nor a half imported file behind
+        int freeBefore = new Defragmenter(fileSystem, 1000).measure().getFreeBlocks();
+        ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(exported.toByteArray()));
+        ReadableByteChannel failing = new ReadableByteChannel() {
+            private int reads;
+
+            @Override
+            public int read(ByteBuffer target) throws IOException {
+                if (++reads == 4) {
+                    throw new IOException("Source failed");
+                }
+                return source.read(target);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertThrows(IOException.class, () -> fileSystem.importFrom(failing, "broken"));
+        assertThrows(IOException.class, () -> fileSystem.open("broken"), "The half imported file should be deleted");
+        assertEquals(freeBefore, new Defragmenter(fileSystem, 1000).measure().getFreeBlocks(),
+                "The blocks filled before the failure should be freed");
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+
+        // The blocks were verified by the first export, but ALWAYS checks them again on every export
+        corruptBlock(".", fileSystem.raid, fileSystem.loadINode(fd).getBlockPointer(1));
+        assertThrows(ChecksumMismatchException.class,
+                () -> fileSystem.exportTo(fd, Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    void testCallerBuffersUsePooledFrames() throws IOException {
+        String packed = "p".repeat(Disk.BLOCK_SIZE * 2 + 100);
+        String padded = "q".repeat(Disk.BLOCK_SIZE + 510);
+        int fd1 = fileSystem.create("packed");
+        fileSystem.write(fd1, ByteBuffer.wrap(packed.getBytes()));
+        int fd2 = fileSystem.create("padded");
+        fileSystem.write(fd2, ByteBuffer.allocateDirect(padded.length()).put(padded.getBytes()).flip());
+        assertEquals(packed, fileSystem.read(fd1));
+        assertEquals(padded, fileSystem.read(fd2));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Disk.BLOCK_SIZE * 4);
+        int frames = BlockBufferPool.shared().getAllocatedFrames();
+        for (int i = 0; i < 100; i++) {
+            buffer.clear();
+            assertEquals(packed.length(), fileSystem.read(fd1, buffer));
+        }
+        assertEquals(frames, BlockBufferPool.shared().getAllocatedFrames(), "Frames should be reused");
+
+        byte[] contents = new byte[packed.length()];
+        buffer.flip().get(contents);
+        assertEquals(packed, new String(contents));
+        assertThrows(IllegalArgumentException.class, () -> fileSystem.read(fd2, ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    void testMountKeepsFilesAndRecoversDirtyImage() throws IOException {
+        String path = Files.createTempDirectory("fs-mount").toString();
+        String contents = "m".repeat(Disk.BLOCK_SIZE + 300);
+
+        FileSystem formatted = FileSystem.mount(path, 2, RaidLevel.RAID0);
+        formatted.write(formatted.create("kept"), contents);
+        formatted.unmount();
+
+        FileSystem mounted = FileSystem.mount(path);
+        assertTrue(mounted.superblock.isInodeInUse(0), "The allocation summary should be persisted");
+        assertEquals(1, mounted.superblock.getFileCount());
+        assertEquals(contents, mounted.read(mounted.open("kept")), "Files should survive an unmount");
+        assertThrows(IOException.class, () -> mounted.create("kept"));
+        // Leak two blocks and go away without unmounting
+        mounted.allocateBlocksForFile(Disk.NUM_INODES - 1, Disk.BLOCK_SIZE * 2);
+        // One data block and one tail block stay in use
+        int freeBlocks = Disk.NUM_BLOCKS - 2;
+
+        FileSystem recovered = FileSystem.mount(path);
+        assertEquals(3, recovered.superblock.getMountCount());
+        assertEquals(freeBlocks, recovered.superblock.getFreeBlockCount(), "Recovery should free the leaked blocks");
+        assertTrue(new FileSystemChecker(recovered).check(false).isClean());
+        assertEquals(contents, recovered.read(recovered.open("kept")));
+        recovered.unmount();
+
+        assertThrows(IOException.class, () -> FileSystem.mount(path, 3, RaidLevel.RAID5));
+        assertThrows(IOException.class, () -> FileSystem.mount(path + "/missing"));
+
+        for (File image : new File(path).listFiles()) {
+            image.delete();
+        }
+        new File(path).delete();
+    }
+
+    @Test
+    void testTenantQuotasAndScheduledIo() throws Exception {
+        Tenant small = new Tenant(1, "small", 1);
+        small.setInodeQuota(2);
+        small.setBlockQuota(4);
+        Tenant throttled = new Tenant(2, "throttled", 1);
+        throttled.setIopsLimit(100);
+        fileSystem.addTenant(small);
+        fileSystem.addTenant(throttled);
+
+        fileSystem.setCurrentTenant(small);
+        int fd = fileSystem.create("small-1");
+        fileSystem.write(fd, "s".repeat(Disk.BLOCK_SIZE * 3));
+        assertEquals(3, small.getBlocksUsed());
+        int fd2 = fileSystem.create("small-2");
+        assertThrows(IOException.class, () -> fileSystem.write(fd2, "s".repeat(Disk.BLOCK_SIZE * 2)),
+                "The block quota should be enforced");
+        assertThrows(IOException.class, () -> fileSystem.create("small-3"), "The inode quota should be enforced");
+        fileSystem.delete("small-2");
+        assertEquals(1, small.getInodesUsed());
+
+        IoScheduler scheduler = new IoScheduler(fileSystem.raid, 1);
+        fileSystem.setScheduler(scheduler);
+        String bulk = "t".repeat(Disk.BLOCK_SIZE * 25);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long[] finishedAt = new long[2];
+        Thread throttledClient = new Thread(() -> {
+            try {
+                fileSystem.setCurrentTenant(throttled);
+                for (int i = 0; i < 3; i++) {
+                    int bulkFd = fileSystem.create("bulk-" + i);
+                    fileSystem.write(bulkFd, bulk);
+                    assertEquals(bulk, fileSystem.read(bulkFd));
+                }
+                finishedAt[1] = System.nanoTime();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        long start = System.nanoTime();
+        throttledClient.start();
+        for (int i = 0; i < 20; i++) {
+            fileSystem.write(fd, "u".repeat(Disk.BLOCK_SIZE * 3));
+            assertEquals("u".repeat(Disk.BLOCK_SIZE * 3), fileSystem.read(fd));
+        }
+        finishedAt[0] = System.nanoTime();
+        throttledClient.join();
+
+        assertNull(failure.get(), "The throttled client should not fail");
+        assertTrue(finishedAt[1] - start >= 400_000_000L, "150 block operations at 100 per second need time");
+        assertTrue(finishedAt[0] < finishedAt[1], "The unthrottled tenant should not wait for the throttled one");
+        assertEquals(3, small.getBlocksUsed());
+        assertEquals(75, throttled.getBlocksUsed());
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+
+        // The buffer, sparse, channel and deduplicated paths queue their blocks for the calling tenant too
+        Tenant metered = new Tenant(3, "metered", 1);
+        fileSystem.addTenant(metered);
+        fileSystem.setCurrentTenant(metered);
+        String blocks = "m".repeat(Disk.BLOCK_SIZE * 4);
+        int meteredFd = fileSystem.create("metered");
+        fileSystem.write(meteredFd, ByteBuffer.wrap(blocks.getBytes()));
+        assertEquals(4, scheduler.getBlocksServed(metered), "write(ByteBuffer) should be scheduled");
+        ByteBuffer readBack = ByteBuffer.allocate(blocks.length());
+        fileSystem.read(meteredFd, readBack);
+        assertEquals(blocks, new String(readBack.array()));
+        assertEquals(8, scheduler.getBlocksServed(metered), "read(ByteBuffer) should be scheduled");
+        fileSystem.writeAt(meteredFd, 10, "sparse");
+        assertEquals(10, scheduler.getBlocksServed(metered), "writeAt should read and write the block it changes");
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        fileSystem.exportTo(meteredFd, Channels.newChannel(exported));
+        assertEquals(14, scheduler.getBlocksServed(metered), "exportTo should be scheduled");
+        fileSystem.importFrom(Channels.newChannel(new ByteArrayInputStream(exported.toByteArray())), "imported");
+        assertEquals(18, scheduler.getBlocksServed(metered), "importFrom should be scheduled");
+        fileSystem.setDeduplication(true);
+        fileSystem.write(fileSystem.create("deduplicated"), blocks);
+        assertEquals(19, scheduler.getBlocksServed(metered),
+                "The one new block should be written through the scheduler");
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+    }
+
+    @Test
+    void testScheduledWritesKeepWholeStripes() throws IOException {
+        String path = Files.createTempDirectory("fs-scheduled").toString();
+        FileSystem raid5 = FileSystem.mount(path, 3, RaidLevel.RAID5);
+        raid5.setScheduler(new IoScheduler(raid5.raid, 1));
+        String contents = "w".repeat(Disk.BLOCK_SIZE * 20);
+
+        // Blocks of a stripe are dispatched together, so only stripes cut by the file's ends read old parity
+        long readBefore = 0;
+        for (int member = 0; member < 3; member++) {
+            readBefore += raid5.raid.getBlocksRead(member);
+        }
+        int fd = raid5.create("striped");
+        raid5.write(fd, contents);
+        long reads = -readBefore;
+        for (int member = 0; member < 3; member++) {
+            reads += raid5.raid.getBlocksRead(member);
+        }
+        assertTrue(reads <= 4, "A scheduled write should not read parity for every block, read " + reads);
+        assertEquals(contents, raid5.read(fd));
+        assertTrue(raid5.scrub(false).isClean());
+        raid5.unmount();
+    }
+
+    @Test
+    void testFailedWritesKeepContentsAndQuotaUsage() throws IOException {
+        Tenant tenant = new Tenant(1, "tenant", 1);
+        tenant.setBlockQuota(3);
+        fileSystem.addTenant(tenant);
+        fileSystem.setCurrentTenant(tenant);
+
+        int fd = fileSystem.create("kept");
+        String original = "k".repeat(Disk.BLOCK_SIZE * 3);
+        fileSystem.write(fd, original);
+        assertThrows(IOException.class, () -> fileSystem.write(fd, "n".repeat(Disk.BLOCK_SIZE * 4)));
+        assertThrows(IOException.class,
+                () -> fileSystem.write(fd, ByteBuffer.wrap("n".repeat(Disk.BLOCK_SIZE * 4).getBytes())));
+        assertEquals(original, fileSystem.read(fd), "A rewrite over the quota should keep the old contents");
+        assertEquals(3, tenant.getBlocksUsed());
+
+        // Running out of disk space gives the charge for the failed write back
+        tenant.setBlockQuota(Integer.MAX_VALUE);
+        String full = "f".repeat(Disk.BLOCK_SIZE * INode.NUM_BLOCK_POINTERS);
+        IOException diskFull = null;
+        for (int i = 0; diskFull == null; i++) {
+            try {
+                fileSystem.write(fileSystem.create("fill-" + i), full);
+            } catch (IOException e) {
+                diskFull = e;
+            }
+        }
+        int allocated = 0;
+        for (byte b : fileSystem.diskDevice.readFreeBlockList()) {
+            allocated += Integer.bitCount(b & 0xFF);
+        }
+        assertEquals(allocated, tenant.getBlocksUsed(), "Usage should match the blocks the files hold");
+        int sparse = fileSystem.create("sparse");
+        assertThrows(IOException.class, () -> fileSystem.writeAt(sparse, 0, full));
+        assertEquals(allocated, tenant.getBlocksUsed());
+        int stillAllocated = 0;
+        for (byte b : fileSystem.diskDevice.readFreeBlockList()) {
+            stillAllocated += Integer.bitCount(b & 0xFF);
+        }
+        assertEquals(allocated, stillAllocated, "Blocks taken before the disk ran out should be freed");
+    }
+
+    @Test
+    void testFailedDeduplicatedWriteTakesNoReferences() throws IOException {
+        fileSystem.setDeduplication(true);
+        String shared = "s".repeat(Disk.BLOCK_SIZE);
+        int fd1 = fileSystem.create("original");
+        fileSystem.write(fd1, shared + shared);
+        int sharedBlock = fileSystem.loadINode(fd1).getBlockPointer(0);
+        int refCount = fileSystem.blockTable.getRefCount(sharedBlock);
+        byte[] freeList = fileSystem.diskDevice.readFreeBlockList();
+
+        // A member that cannot be written fails the new blocks after the shared one was found
+        String fresh = "a".repeat(Disk.BLOCK_SIZE) + "b".repeat(Disk.BLOCK_SIZE) + "c".repeat(Disk.BLOCK_SIZE);
+        int fd2 = fileSystem.create("copy");
+        fileSystem.disks[1].close();
+        assertThrows(IOException.class, () -> fileSystem.write(fd2, shared + fresh));
+        fileSystem.disks[1].open();
+
+        assertEquals(refCount, fileSystem.blockTable.getRefCount(sharedBlock),
+                "The shared block should keep its count");
+        assertArrayEquals(freeList, fileSystem.diskDevice.readFreeBlockList(), "The new blocks should be freed");
+        INode inode = fileSystem.loadINode(fd2);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            assertEquals(-1, inode.getBlockPointer(i), "The failed file should point at no blocks");
+        }
+        long unwritten = fileSystem.blockTable.fingerprint("a".repeat(Disk.BLOCK_SIZE).getBytes());
+        assertEquals(-1, fileSystem.blockTable.lookup(unwritten), "Blocks that were never written must not be shared");
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+
+        fileSystem.write(fd2, shared + fresh);
+        assertEquals(shared + fresh, fileSystem.read(fd2));
+        assertEquals(refCount + 1, fileSystem.blockTable.getRefCount(sharedBlock));
+    }
+
+    @Test
+    void testChecksumsCatchAndRepairCorruptBlocks() throws IOException {
+        String path = Files.createTempDirectory("fs-checksum").toString();
+        String contents = "Checked on every read. ".repeat(100);
+
+        FileSystem raid5 = FileSystem.mount(path, 3, RaidLevel.RAID5);
+        int fd = raid5.create("guarded");
+        raid5.write(fd, contents);
+        corruptBlock(path, raid5.raid, 0);
+
+        assertEquals(contents, raid5.read(fd), "A corrupt block should be rebuilt from parity");
+        assertEquals(1, raid5.scrub(false).getCorrupt().size(), "Scrubbing should find the corrupt block");
+        assertEquals(1, raid5.scrub(true).getRepairedCount());
+        assertTrue(raid5.scrub(false).isClean(), "The rewritten block should match its checksum");
+        raid5.unmount();
+        for (File image : new File(path).listFiles()) {
+            image.delete();
+        }
+        new File(path).delete();
+
+        // RAID 0 has nothing to rebuild the block from
+        int fd0 = fileSystem.create("unguarded");
+        fileSystem.write(fd0, contents);
+        corruptBlock(".", fileSystem.raid, 0);
+        assertThrows(ChecksumMismatchException.class, () -> fileSystem.read(fd0));
+        ScrubReport report = fileSystem.scrub(true);
+        assertEquals(1, report.getUnrepaired().size(), "RAID 0 can only report corrupt blocks");
+    }
+
+    @Test
+    void testLogStructuredWritesAndCleaning() throws Exception {
+        String path = Files.createTempDirectory("fs-log").toString();
+        FileSystem logged = FileSystem.mount(path, 3, RaidLevel.RAID5);
+        logged.setLogStructured(true);
+        // Steps are taken by hand below
+        logged.getSegmentCleaner().stop();
+
+        int[] fds = new int[10];
+        String[] contents = new String[fds.length];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = logged.create("small" + i);
+        }
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < fds.length; i++) {
+                contents[i] = String.format("%-600s", "round " + round + " of file " + i);
+                logged.write(fds[i], contents[i]);
+            }
+        }
+
+        INode first = logged.loadINode(fds[0]);
+        INode second = logged.loadINode(fds[1]);
+        assertEquals(first.getBlockPointer(1) + 1, second.getBlockPointer(0), "Writes should be appended back to back");
+        assertNull(logged.diskDevice.readInode(fds[0]).getFileName(), "New inodes should only be in the inode map");
+        logged.sync();
+        assertEquals(600, logged.diskDevice.readInode(fds[0]).getSize(), "A checkpoint should update the inode table");
+
+        assertTrue(logged.getSegmentCleaner().step() >= 0, "A mostly dead segment should be cleaned");
+        for (int i = 0; i < fds.length; i++) {
+            assertEquals(contents[i], logged.read(fds[i]));
+        }
+        assertTrue(new FileSystemChecker(logged).check(false).isClean());
+
+        // Reading the file flushes its blocks and inode to the log; the image then goes away without a checkpoint
+        int lateFd = logged.create("late");
+        logged.write(lateFd, contents[0]);
+        assertEquals(contents[0], logged.read(lateFd));
+
+        FileSystem recovered = FileSystem.mount(path);
+        assertEquals(contents[0], recovered.read(recovered.open("late")), "Logged inodes should be replayed");
+        assertEquals(contents[9], recovered.read(recovered.open("small9")));
+        assertTrue(new FileSystemChecker(recovered).check(false).isClean());
+        recovered.unmount();
+
+        for (File image : new File(path).listFiles()) {
+            image.delete();
+        }
+        new File(path).delete();
+    }
+
+    @Test
+    void testWorkloadRecordAndReplay() throws IOException {
+        WorkloadTrace recorded = new WorkloadTrace();
+        fileSystem.setRecorder(recorded);
+        int fd = fileSystem.create("traced");
+        fileSystem.write(fd, "t".repeat(700));
+        fileSystem.read(fd);
+        fileSystem.delete("traced");
+        fileSystem.setRecorder(null);
+
+        List<WorkloadOp> ops = recorded.getOperations();
+        assertEquals(4, ops.size());
+        assertEquals(WorkloadOp.Kind.WRITE, ops.get(1).getKind());
+        assertEquals(700, ops.get(1).getSize());
+        assertEquals("traced", ops.get(2).getFileName());
+
+        Path saved = Files.createTempFile("trace", ".tsv");
+        recorded.save(saved);
+        WorkloadTrace loaded = WorkloadTrace.load(saved);
+        Files.delete(saved);
+        assertEquals(WorkloadOp.Kind.DELETE, loaded.getOperations().get(3).getKind());
+        assertEquals(0, new WorkloadReplayer(fileSystem, 1, true).replay(loaded).getErrors(),
+                "A recorded trace should replay cleanly");
+
+        WorkloadGenerator generator = new WorkloadGenerator(50, 1.2, 1500, 1.0, 0.7, 7);
+        int[] picks = new int[50];
+        for (int i = 0; i < 5000; i++) {
+            picks[generator.nextFile()]++;
+        }
+        assertTrue(Arrays.stream(picks).max().getAsInt() > 5000 / 5, "Zipf popularity should favour a few files");
+
+        WorkloadReport report = new WorkloadReplayer(fileSystem, 4, false).replay(generator.generate(400, 0));
+        assertEquals(400, report.getOperations());
+        assertEquals(0, report.getErrors());
+        assertTrue(report.getOperations(WorkloadOp.Kind.READ) > report.getOperations(WorkloadOp.Kind.WRITE));
+        assertTrue(report.getPercentile(50) <= report.getPercentile(99));
+        assertTrue(report.getPercentile(99) <= report.getPercentile(99.9));
+        assertTrue(report.getThroughput() > 0);
+    }
+
+    @Test
+    void testSparseFilesSkipHoles() throws IOException {
+        int fd = fileSystem.create("sparse");
+        int holeEnd = 10 * Disk.BLOCK_SIZE + 100;
+        fileSystem.writeAt(fd, holeEnd, "end");
+
+        int allocated = 0;
+        for (byte b : fileSystem.diskDevice.readFreeBlockList()) {
+            allocated += Integer.bitCount(b & 0xFF);
+        }
+        assertEquals(1, allocated, "Only the block written should be allocated");
+
+        String contents = fileSystem.read(fd);
+        assertEquals(holeEnd + 3, contents.length());
+        assertEquals("end", contents.substring(holeEnd));
+        assertTrue(contents.substring(0, holeEnd).chars().allMatch(c -> c == 0), "Holes should read as zeros");
+        assertEquals(10 * Disk.BLOCK_SIZE, fileSystem.seekData(fd, 0));
+        assertEquals(0, fileSystem.seekHole(fd, 0));
+        assertEquals(contents.length(), fileSystem.seekHole(fd, holeEnd));
+        assertEquals(-1, fileSystem.seekData(fd, contents.length()));
+
+        fileSystem.writeAt(fd, 0, "start");
+        fileSystem.writeAt(fd, holeEnd + 1, "N");
+        assertEquals(Disk.BLOCK_SIZE, fileSystem.seekHole(fd, 0));
+        contents = fileSystem.read(fd);
+        assertTrue(contents.startsWith("start") && contents.endsWith("eNd"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(contents.length());
+        fileSystem.read(fd, buffer);
+        assertEquals(contents, new String(buffer.array()));
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        fileSystem.exportTo(fd, Channels.newChannel(exported));
+        assertEquals(contents, exported.toString());
+        assertTrue(new FileSystemChecker(fileSystem).check(false).isClean());
+
+        // Writing into a small inline file turns it into blocks first
+        int small = fileSystem.create("small");
+        fileSystem.write(small, "inline");
+        fileSystem.writeAt(small, 2, "LI");
+        assertEquals("inLIne", fileSystem.read(small));
+
+        fileSystem.write(fd, "d".repeat(2 * Disk.BLOCK_SIZE));
+        assertEquals(2 * Disk.BLOCK_SIZE, fileSystem.seekHole(fd, 0), "A rewritten file has no holes");
+    }
+
+    @Test
+    void testNameIndexListing() throws IOException {
+        for (String name : new String[] {"log-1.txt", "log-2.txt", "log-10.txt", "notes.md", "b\u00fcro.txt"}) {
+            fileSystem.create(name);
+        }
+        assertEquals(List.of("notes.md"), fileSystem.listFiles("notes.md"));
+        assertEquals(List.of("log-1.txt", "log-2.txt", "log-10.txt"), fileSystem.listFiles("log-*"));
+        assertEquals(List.of("log-1.txt", "log-2.txt"), fileSystem.listFiles("log-?.txt"));
+        assertEquals(List.of("log-1.txt", "log-2.txt", "log-10.txt", "b\u00fcro.txt"), fileSystem.listFiles("*.txt"));
+        assertEquals(List.of("b\u00fcro.txt"), fileSystem.listFiles("b?ro*"));
+        assertTrue(fileSystem.listFiles("log").isEmpty(), "A plain name should only match exactly");
+
+        fileSystem.delete("log-2.txt");
+        assertEquals(List.of("log-1.txt", "log-10.txt"), fileSystem.listFiles("log-*"));
+        assertThrows(IOException.class, () -> fileSystem.open("log-2.txt"));
+        assertEquals(fileSystem.create("log-2.txt"), fileSystem.open("log-2.txt"));
+        assertThrows(IOException.class, () -> fileSystem.create("log-2.txt"));
+
+        // The vector and scalar matchers must agree on every query
+        NameIndex vector = new NameIndex(5000);
+        NameIndex scalar = new NameIndex(5000, new ScalarNameMatcher());
+        Random random = new Random(7);
+        for (int slot = 0; slot < 5000; slot++) {
+            String name = random.nextInt(10) == 0 ? null :
+                    "f" + Integer.toString(random.nextInt(1 << 20), 36) + "x".repeat(random.nextInt(60));
+            vector.set(slot, name);
+            scalar.set(slot, name);
+        }
+        for (String pattern : new String[] {"f1*", "fab*", "f?x*", "*xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx",
+                vector.getName(42) == null ? "f" : vector.getName(42)}) {
+            assertEquals(scalar.list(pattern), vector.list(pattern), "Matchers disagree on " + pattern);
+        }
+    }
+
+    @Test
+    void testMirroredReadsSpreadAndSurviveLostDisk() throws IOException {
+        String path = Files.createTempDirectory("raid10").toString();
+        FileSystem mirrored = FileSystem.mount(path, 4, RaidLevel.RAID10);
+        String contents = "Two copies of every block. ".repeat(500);
+        int fd = mirrored.create("mirrored");
+        mirrored.write(fd, contents);
+
+        int[] replicas = mirrored.raid.replicasFor(0);
+        assertEquals(2, replicas.length);
+        assertArrayEquals(mirrored.disks[replicas[0]].readDataBlock(0), mirrored.disks[replicas[1]].readDataBlock(0),
+                "Both copies should hold the block");
+
+        // One large read is split between the two copies of each pair
+        assertEquals(contents, mirrored.read(fd));
+        for (int member = 0; member < 4; member++) {
+            assertTrue(mirrored.raid.getBlocksRead(member) > 0, "Disk " + member + " should serve part of the read");
+        }
+
+        // A corrupt copy is read from its mirror and repaired by a scrub
+        int block = mirrored.loadINode(fd).getBlockPointer(1);
+        corruptBlock(path, mirrored.raid, block);
+        assertEquals(contents, mirrored.read(fd));
+        assertEquals(1, mirrored.scrub(true).getRepairedCount());
+        assertTrue(mirrored.scrub(false).getCorrupt().isEmpty());
+        mirrored.unmount();
+
+        // The image mounts without a member's file and keeps working with one copy of that pair
+        assertTrue(new File(path, Disk.memberDiskName(2)).delete());
+        FileSystem remounted = FileSystem.mount(path);
+        assertTrue(remounted.raid.isDegraded());
+        assertEquals(contents, remounted.read(remounted.open("mirrored")));
+        assertThrows(IOException.class, () -> remounted.raid.failDisk(3), "Losing both copies would lose data");
+        remounted.raid.failDisk(0);
+        assertEquals(contents, remounted.read(remounted.open("mirrored")));
+        String degraded = "Written with one copy left. ".repeat(100);
+        int fd2 = remounted.create("degraded");
+        remounted.write(fd2, degraded);
+        assertEquals(degraded, remounted.read(fd2));
+        String rewritten = "Rewritten after a failure. ".repeat(400);
+        remounted.write(remounted.open("mirrored"), rewritten);
+        remounted.unmount();
+
+        // The failed member's image is still there but stale, so it stays out of the array
+        assertTrue(new File(path, Disk.memberDiskName(0)).exists());
+        FileSystem again = FileSystem.mount(path);
+        assertTrue(again.raid.isDegraded());
+        assertTrue(again.superblock.isMemberFailed(0), "The failure should be recorded");
+        assertTrue(again.superblock.isMemberFailed(2), "The missing member should be recorded");
+        assertEquals(rewritten, again.read(again.open("mirrored")));
+        assertEquals(degraded, again.read(again.open("degraded")));
+        assertThrows(IOException.class, () -> again.raid.failDisk(1), "Member 0 must not stand in for member 1");
+        again.unmount();
+    }
+
+    /**
+     * Flips a byte of a logical block in its member's image behind the file system's back
+     */
+    private static void corruptBlock(String directory, RaidArray raid, int whichBlock) throws IOException {
+        File image = new File(directory, Disk.memberDiskName(raid.memberFor(whichBlock)));
+        try (RandomAccessFile raw = new RandomAccessFile(image, "rw")) {
+            raw.seek(Disk.BYTES_IN_FREE_SPACE_LIST + ((long) Disk.INODE_SIZE * Disk.NUM_INODES) +
+                     ((long) Disk.BLOCK_SIZE * raid.physicalBlock(whichBlock)) + 17);
+            int original = raw.read();
+            raw.seek(raw.getFilePointer() - 1);
+            raw.write(original ^ 0xFF);
+        }
+    }
 }